@@ -0,0 +1,234 @@
+package searchengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * This class evaluates many two word searches at once, with the same results as
+ * calling RUMDbSearchEngine.topKSearch for each of them.
+ *
+ * Queries of a batch often share words. Each distinct word's posting list is decoded
+ * only once, into arrays: its distinct movie ids, and for each movie the range of its
+ * positions. Queries are grouped by the alphabetically smaller of their two words, and
+ * the groups are evaluated in parallel on a fork-join pool, the queries of a group one
+ * after the other so the shared word's arrays stay in the processor's cache. A word is
+ * decoded by the first group that needs it; the others wait for it and reuse it.
+ *
+ * Two decoded words are intersected by walking the one with fewer movies and
+ * galloping (doubling then binary searching) through the other, so a rare word paired
+ * with a frequent one costs about log(frequent movies) per movie of the rare word
+ * instead of a scan of both lists.
+ *
+ */
+class BatchSearch {
+
+    /*
+     * A decoded posting list.
+     */
+    static final class Decoded {
+        final int[] movies;    // distinct movie ids, increasing
+        final int[] starts;    // positions of movies[i] are positions[starts[i]..starts[i + 1])
+        final int[] positions;
+
+        Decoded (PostingList postings) {
+            int[] m = new int[postings.getMovieCount()];
+            int[] s = new int[m.length + 1];
+            int[] p = new int[postings.size()];
+            int movie = 0, count = 0;
+            PostingList.Cursor c = postings.cursor();
+            while ( c.next() && count < p.length ) {
+                if ( count == 0 || c.movieId() != m[movie - 1] ) {
+                    if ( movie == m.length ) {
+                        break; // postings added after getMovieCount was read
+                    }
+                    s[movie] = count;
+                    m[movie++] = c.movieId();
+                }
+                p[count++] = c.position();
+            }
+            s[movie] = count;
+            movies    = movie == m.length ? m : Arrays.copyOf(m, movie);
+            starts    = movie == m.length ? s : Arrays.copyOf(s, movie + 1);
+            positions = p;
+        }
+    }
+
+    private final RUMDbSearchEngine engine;
+    private final MovieDictionary   titles;
+    private final int               k;
+    private final ConcurrentHashMap<String, Decoded> decoded = new ConcurrentHashMap<String, Decoded>();
+    private static final Decoded MISSING = new Decoded(new PostingList());
+
+    /*
+     * @param engine the search engine whose words are searched
+     * @param titles translates the postings' movie ids into titles
+     * @param k the maximum number of results per query
+     */
+    BatchSearch (RUMDbSearchEngine engine, MovieDictionary titles, int k) {
+        this.engine = engine;
+        this.titles = titles;
+        this.k      = k;
+    }
+
+    /*
+     * Evaluates @queries on @pool.
+     *
+     * @param queries pairs of words
+     * @return the results of each query, in the order of @queries; null for a query
+     * with a word that is not in the search engine
+     */
+    ArrayList<ArrayList<MovieSearchResult>> search (String[][] queries, ForkJoinPool pool) {
+        HashMap<String, ArrayList<Integer>> byWord = new HashMap<String, ArrayList<Integer>>();
+        for ( int q = 0; q < queries.length; q++ ) {
+            String a = queries[q][0], b = queries[q][1];
+            String key = a.compareTo(b) <= 0 ? a : b;
+            ArrayList<Integer> group = byWord.get(key);
+            if ( group == null ) {
+                group = new ArrayList<Integer>();
+                byWord.put(key, group);
+            }
+            group.add(q);
+        }
+        ArrayList<ArrayList<Integer>> groups = new ArrayList<ArrayList<Integer>>(byWord.values());
+        // each task sets the entries of its own queries, which invoke then makes visible
+        ArrayList<MovieSearchResult> none = null;
+        ArrayList<ArrayList<MovieSearchResult>> results =
+            new ArrayList<ArrayList<MovieSearchResult>>(Collections.nCopies(queries.length, none));
+        pool.invoke(new GroupTask(queries, groups, 0, groups.size(), results));
+        return results;
+    }
+
+    /*
+     * Evaluates groups[@from..@to), splitting the range in two until it is one group.
+     */
+    private class GroupTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[][] queries;
+        private final ArrayList<ArrayList<Integer>> groups;
+        private final int from, to;
+        private final ArrayList<ArrayList<MovieSearchResult>> results;
+
+        GroupTask (String[][] queries, ArrayList<ArrayList<Integer>> groups, int from, int to,
+                   ArrayList<ArrayList<MovieSearchResult>> results) {
+            this.queries = queries;
+            this.groups  = groups;
+            this.from    = from;
+            this.to      = to;
+            this.results = results;
+        }
+
+        protected void compute () {
+            if ( to - from > 1 ) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new GroupTask(queries, groups, from, mid, results),
+                          new GroupTask(queries, groups, mid, to, results));
+                return;
+            }
+            for ( int q : groups.get(from) ) {
+                results.set(q, search(queries[q][0], queries[q][1]));
+            }
+        }
+    }
+
+    private Decoded decode (String word) {
+        return decoded.computeIfAbsent(word, w -> {
+            WordOccurrence occ = engine.getWordOccurrence(w);
+            return occ == null ? MISSING : new Decoded(occ.getPostings());
+        });
+    }
+
+    /*
+     * topKSearch over the decoded posting lists of @wordA and @wordB.
+     */
+    private ArrayList<MovieSearchResult> search (String wordA, String wordB) {
+        Decoded a = decode(wordA), b = decode(wordB);
+        if ( a == MISSING || b == MISSING ) {
+            return null;
+        }
+        // no more results than movies with the rarer word, so a huge k costs nothing
+        int most = Math.max(0, Math.min(k, Math.min(a.movies.length, b.movies.length)));
+        PriorityQueue<MovieSearchResult> heap = new PriorityQueue<MovieSearchResult>(most + 1, MovieSearchResult.WORST_FIRST);
+        if ( k > 0 ) {
+            boolean aSmaller = a.movies.length <= b.movies.length;
+            Decoded small = aSmaller ? a : b, large = aSmaller ? b : a;
+            int j = 0;
+            for ( int i = 0; i < small.movies.length && j < large.movies.length; i++ ) {
+                int movie = small.movies[i];
+                j = gallop(large.movies, j, movie);
+                if ( j == large.movies.length || large.movies[j] != movie ) {
+                    continue;
+                }
+                int ia = aSmaller ? i : j, ib = aSmaller ? j : i;
+                int distance = minDistance(a.positions, a.starts[ia], a.starts[ia + 1],
+                                           b.positions, b.starts[ib], b.starts[ib + 1]);
+                if ( heap.size() == k && distance >= heap.peek().getMinDistance() ) {
+                    continue;
+                }
+                MovieSearchResult msr = new MovieSearchResult(titles.getTitle(movie), movie);
+                for ( int p = a.starts[ia]; p < a.starts[ia + 1]; p++ ) {
+                    msr.addOccurrenceA(a.positions[p]);
+                }
+                for ( int p = b.starts[ib]; p < b.starts[ib + 1]; p++ ) {
+                    msr.addOccurrenceB(b.positions[p]);
+                }
+                msr.setMinDistance(distance);
+                heap.add(msr);
+                if ( heap.size() > k ) {
+                    heap.poll();
+                }
+            }
+        }
+        ArrayList<MovieSearchResult> top = new ArrayList<MovieSearchResult>(heap);
+        top.sort(MovieSearchResult.WORST_FIRST.reversed());
+        return top;
+    }
+
+    /*
+     * @return the index of the first element of @sorted, from @from on, not smaller
+     * than @target, or sorted.length
+     */
+    private static int gallop (int[] sorted, int from, int target) {
+        int step = 1, hi = from;
+        while ( hi < sorted.length && sorted[hi] < target ) {
+            from = hi + 1;
+            hi  += step;
+            step *= 2;
+        }
+        hi = Math.min(hi, sorted.length);
+        while ( from < hi ) {
+            int mid = (from + hi) >>> 1;
+            if ( sorted[mid] < target ) {
+                from = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return from;
+    }
+
+    /*
+     * Two pointer walk over a[@fromA..@toA) and b[@fromB..@toB), both sorted and non
+     * empty, as in RUMDbSearchEngine.calculateMinDistance.
+     * @return the smallest |a[i] - b[j]|
+     */
+    private static int minDistance (int[] a, int fromA, int toA, int[] b, int fromB, int toB) {
+        int i = fromA, j = fromB;
+        int min = Math.abs(a[i] - b[j]);
+        while ( min > 0 ) {
+            if ( a[i] < b[j] ) {
+                if ( ++i == toA ) break;
+            } else {
+                if ( ++j == toB ) break;
+            }
+            min = Math.min(min, Math.abs(a[i] - b[j]));
+        }
+        return min;
+    }
+}
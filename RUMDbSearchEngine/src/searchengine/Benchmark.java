@@ -0,0 +1,1440 @@
+package searchengine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Simple timing harness for RUMDbSearchEngine.
+ *
+ * Builds a synthetic index with a given number of unique words and reports the
+ * time to build it and the average latency of word lookups and two word searches.
+ * Run from the RUMDbSearchEngine directory so that noisewords.txt can be found:
+ *
+ *      java -cp bin searchengine.Benchmark [uniqueWords ...]
+ *      java -cp bin searchengine.Benchmark postings [inputFile]
+ *      java -cp bin searchengine.Benchmark pair wordA wordB [inputFile]
+ *      java -cp bin searchengine.Benchmark topk [movies]
+ *      java -cp bin searchengine.Benchmark concurrent [millisPerRun]
+ *      java -cp bin searchengine.Benchmark parallel [movies]
+ *      java -cp bin searchengine.Benchmark tokens [inputFile]
+ *      java -cp bin searchengine.Benchmark segment [movies ...]
+ *      java -cp bin searchengine.Benchmark ranked [movies]
+ *      java -cp bin searchengine.Benchmark cache [capacity [movies]]
+ *      java -cp bin searchengine.Benchmark terms [vocabulary]
+ *      java -cp bin searchengine.Benchmark batch [movies]
+ *      java -cp bin searchengine.Benchmark hashing [words]
+ *      java -cp bin searchengine.Benchmark boolean [movies]
+ *      java -cp bin searchengine.Benchmark bitmap [movies]
+ *      java -cp bin searchengine.Benchmark offheap [postings]
+ *      java -cp bin searchengine.Benchmark bulkload [movies]
+ *      java -cp bin searchengine.Benchmark documents [movies]
+ *
+ * See BenchmarkSuite for repeatable measurements over a grid of parameters, with JSON
+ * results to track regressions between versions.
+ *
+ */
+public class Benchmark {
+
+    private static final int    WORDS_PER_MOVIE = 20;
+    private static final int    QUERIES         = 100000;
+    private static final String NOISE_WORDS     = "noisewords.txt";
+    private static final int    LOCATION_BYTES  = 28;
+
+    public static void main (String[] args) {
+
+        if ( args.length > 0 && args[0].equals("postings") ) {
+            postingsBenchmark(args.length > 1 ? args[1] : "data.txt");
+            return;
+        }
+
+        if ( args.length > 2 && args[0].equals("pair") ) {
+            pairBenchmark(args[1], args[2], args.length > 3 ? args[3] : "data.txt");
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("topk") ) {
+            topKBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("concurrent") ) {
+            int millis = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+            for ( int readers : new int[] { 1, 4, 16, 64 } ) {
+                concurrentBenchmark(readers, millis, false);
+                concurrentBenchmark(readers, millis, true);
+            }
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("parallel") ) {
+            parallelBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("tokens") ) {
+            tokensBenchmark(args.length > 1 ? args[1] : "data.txt");
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("segment") ) {
+            StdOut.printf("%10s %12s %12s %12s %14s%n", "movies", "build ms", "write ms", "open ms",
+                          "first search us");
+            if ( args.length == 1 ) {
+                args = new String[] { "segment", "10000", "100000", "1000000" };
+            }
+            for ( int i = 1; i < args.length; i++ ) {
+                segmentBenchmark(Integer.parseInt(args[i]));
+            }
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("ranked") ) {
+            rankedBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("cache") ) {
+            int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            int movies   = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+            cacheBenchmark(capacity, movies);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("batch") ) {
+            batchBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 50000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("hashing") ) {
+            int words = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+            StdOut.printf("%-10s %-9s %10s %10s %6s %10s %12s %14s%n", "words", "hashing", "count", "build ms",
+                          "load", "max chain", "probes/hit", "lookup ns/op");
+            String[][] datasets = { syntheticWords(words), floodWords(13) };
+            String[]   names    = { "synthetic", "flood" };
+            for ( int d = 0; d < datasets.length; d++ ) {
+                for ( HashStrategy hashing : new HashStrategy[] { HashStrategy.MODULO, HashStrategy.MIXED,
+                                                                  HashStrategy.sipHash() } ) {
+                    hashingBenchmark(names[d], datasets[d], hashing);
+                }
+            }
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("boolean") ) {
+            booleanBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("bitmap") ) {
+            bitmapBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("offheap") ) {
+            int postings = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+            StdOut.printf("%d postings, %s%n", postings, garbageCollectors());
+            StdOut.printf("%10s %10s %12s %14s %14s %14s %14s%n", "backend", "build ms", "heap MB", "off-heap MB",
+                          "full gc ms", "search us/op", "gc ms/1000 q");
+            for ( String backend : new String[] { "chained", "compact", "off-heap" } ) {
+                offHeapBenchmark(backend, postings);
+            }
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("bulkload") ) {
+            int movies = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+            StdOut.printf("%d movies%n", movies);
+            StdOut.printf("%10s %10s %8s %10s %9s %10s %8s %10s %8s%n", "vocabulary", "words", "load", "load ms",
+                          "rehashes", "rehash ms", "rehash %", "estimate", "error %");
+            for ( int vocabulary : new int[] { 10000, 100000, 1000000 } ) {
+                bulkLoadBenchmark(movies, vocabulary);
+            }
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("documents") ) {
+            documentsBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+            return;
+        }
+
+        if ( args.length > 0 && args[0].equals("terms") ) {
+            termsBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+
+        int[] sizes = { 10000, 100000, 1000000 };
+        if ( args.length > 0 ) {
+            sizes = new int[args.length];
+            for ( int i = 0; i < args.length; i++ ) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        StdOut.printf("%10s %12s %12s %14s %16s %16s%n", "backend", "words", "build ms",
+                      "heap B/posting", "lookup ns/op", "search us/op");
+        for ( int size : sizes ) {
+            loadBenchmark(size, false);
+            loadBenchmark(size, true);
+        }
+    }
+
+    /*
+     * Builds an index with @uniqueWords words, each occurring twice, and times lookups
+     * and searches over random words.
+     *
+     * @param uniqueWords number of distinct words to insert
+     * @param compact true to benchmark the CompactIndex backend
+     */
+    private static void loadBenchmark (int uniqueWords, boolean compact) {
+
+        String[] words = syntheticWords(uniqueWords);
+        int movies = Math.max(1, 2 * uniqueWords / WORDS_PER_MOVIE);
+        String[] titles = new String[movies];
+        for ( int m = 0; m < movies; m++ ) {
+            titles[m] = "movie" + m;
+        }
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS, compact);
+        for ( int m = 0; m < movies; m++ ) {
+            String title = titles[m];
+            for ( int p = 1; p <= WORDS_PER_MOVIE; p++ ) {
+                int w = (m * WORDS_PER_MOVIE + p) % uniqueWords;
+                rudb.insertWordLocation(words[w], new Location(title, p));
+            }
+        }
+        long buildNanos = System.nanoTime() - start;
+        double heapPerPosting = (double) (usedHeap() - heapBefore) / ((long) movies * WORDS_PER_MOVIE);
+
+        Random random = new Random(42);
+        int found = 0;
+        start = System.nanoTime();
+        for ( int i = 0; i < QUERIES; i++ ) {
+            if ( rudb.getWordOccurrence(words[random.nextInt(uniqueWords)]) != null ) {
+                found++;
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        int results = 0;
+        start = System.nanoTime();
+        for ( int i = 0; i < QUERIES; i++ ) {
+            ArrayList<MovieSearchResult> r = rudb.topTenSearch(words[random.nextInt(uniqueWords)],
+                                                               words[random.nextInt(uniqueWords)]);
+            if ( r != null ) {
+                results += r.size();
+            }
+        }
+        long searchNanos = System.nanoTime() - start;
+
+        StdOut.printf("%10s %12d %12.1f %14.1f %16.1f %16.2f%n", compact ? "compact" : "chained",
+                      uniqueWords, buildNanos / 1e6, heapPerPosting,
+                      (double) lookupNanos / QUERIES, searchNanos / 1e3 / QUERIES);
+        if ( found != QUERIES ) {
+            StdOut.println("unexpected lookup misses: " + (QUERIES - found) + " (" + results + " results)");
+        }
+    }
+
+    /*
+     * Loads @inputFile and compares the bytes used per posting by the compressed
+     * PostingLists with the heap used by the same postings as ArrayList<Location>
+     * (a 24 byte Location object plus a 4 byte array slot, with compressed oops).
+     *
+     * @param inputFile movies file in the format read by readInputFile
+     */
+    private static void postingsBenchmark (String inputFile) {
+
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        rudb.insertMoviesIntoHashTable(inputFile);
+
+        ArrayList<WordOccurrence> words = indexedWords(rudb, inputFile);
+
+        long postings = 0, compressed = 0;
+        for ( WordOccurrence occ : words ) {
+            postings   += occ.getPostings().size();
+            compressed += occ.getPostings().getByteSize();
+        }
+
+        StdOut.printf("%d words, %d postings, load factor %.2f%n", words.size(), postings,
+                      rudb.getLoadFactor());
+        StdOut.printf("ArrayList<Location>: %.1f bytes/posting%n", (double) LOCATION_BYTES);
+        StdOut.printf("PostingList:         %.1f bytes/posting%n", (double) compressed / postings);
+    }
+
+    /*
+     * Times createMovieSearchResult plus calculateMinDistance, and topTenSearch, for a
+     * single pair of words over the movies in @inputFile.
+     *
+     * @param wordA the first word
+     * @param wordB the second word
+     * @param inputFile movies file in the format read by readInputFile
+     */
+    private static void pairBenchmark (String wordA, String wordB, String inputFile) {
+
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        rudb.insertMoviesIntoHashTable(inputFile);
+        if ( rudb.getWordOccurrence(wordA) == null || rudb.getWordOccurrence(wordB) == null ) {
+            StdOut.println("both words must occur in " + inputFile);
+            return;
+        }
+
+        int iterations = QUERIES / 10;
+        int candidates = 0;
+        for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+            long start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ ) {
+                ArrayList<MovieSearchResult> results = rudb.createMovieSearchResult(wordA, wordB);
+                for ( MovieSearchResult msr : results ) {
+                    rudb.calculateMinDistance(msr);
+                }
+                candidates = results.size();
+            }
+            long mergeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ ) {
+                rudb.topTenSearch(wordA, wordB);
+            }
+            long searchNanos = System.nanoTime() - start;
+
+            if ( round == 1 ) {
+                StdOut.printf("%s/%s: %d postings, %d candidate movies%n", wordA, wordB,
+                              rudb.getWordOccurrence(wordA).getPostings().size()
+                              + rudb.getWordOccurrence(wordB).getPostings().size(), candidates);
+                StdOut.printf("createMovieSearchResult + calculateMinDistance: %.2f us/op%n",
+                              mergeNanos / 1e3 / iterations);
+                StdOut.printf("topTenSearch:                                   %.2f us/op%n",
+                              searchNanos / 1e3 / iterations);
+            }
+        }
+    }
+
+    /*
+     * Builds a synthetic index of @movieCount movies in which the words "alpha" and
+     * "beta" each appear in about half of the descriptions, and times topKSearch for
+     * K = 10, 100 and 1000, returning a list and writing to a ResultSink. Checks that a
+     * sink receives the results of the list, also when it runs a search from accept.
+     *
+     * @param movieCount number of movies
+     */
+    private static void topKBenchmark (int movieCount) {
+
+        String[] words = syntheticWords(10000);
+        Random random = new Random(42);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        for ( int m = 0; m < movieCount; m++ ) {
+            String title = "movie" + m;
+            for ( int p = 1; p <= WORDS_PER_MOVIE; p++ ) {
+                int r = random.nextInt(2 * WORDS_PER_MOVIE);
+                String word = r == 0 ? "alpha" : r == 1 ? "beta" : words[random.nextInt(words.length)];
+                rudb.insertWordLocation(word, new Location(title, p));
+            }
+        }
+        StdOut.printf("%d movies, alpha: %d postings, beta: %d postings%n", movieCount,
+                      rudb.getWordOccurrence("alpha").getPostings().size(),
+                      rudb.getWordOccurrence("beta").getPostings().size());
+
+        int[] ks = { 10, 100, 1000 };
+        int iterations = 200;
+        ResultSink discard = (rank, movieId, title, minDistance, positionsA, countA, positionsB, countB) -> { };
+        for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+            for ( int k : ks ) {
+                long start = System.nanoTime();
+                int size = 0;
+                for ( int i = 0; i < iterations; i++ ) {
+                    size = rudb.topKSearch("alpha", "beta", k).size();
+                }
+                long nanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for ( int i = 0; i < iterations; i++ ) {
+                    rudb.topKSearch("alpha", "beta", k, discard);
+                }
+                long sinkNanos = System.nanoTime() - start;
+                if ( round == 1 ) {
+                    StdOut.printf("K = %4d: %4d results, %8.1f us/op, %8.1f us/op to a ResultSink%n", k, size,
+                                  nanos / 1e3 / iterations, sinkNanos / 1e3 / iterations);
+                }
+            }
+        }
+
+        // a sink gets the results of topKSearch, even when it searches from accept itself
+        ArrayList<String> expected = render(rudb.topKSearch("alpha", "beta", 100));
+        ArrayList<String> inner    = render(rudb.topKSearch("beta", words[0], 10));
+        ArrayList<String> outer    = new ArrayList<String>();
+        int[] nestedMismatches = new int[1];
+        rudb.topKSearch("alpha", "beta", 100, (rank, movieId, title, minDistance, positionsA, countA, positionsB,
+                                               countB) -> {
+            ArrayList<String> nested = new ArrayList<String>();
+            rudb.topKSearch("beta", words[0], 10, (r, id, t, d, a, ca, b, cb) -> nested.add(render(id, d, a, ca, b, cb)));
+            if ( !nested.equals(inner) ) {
+                nestedMismatches[0]++;
+            }
+            outer.add(render(movieId, minDistance, positionsA, countA, positionsB, countB));
+        });
+        if ( !outer.equals(expected) || nestedMismatches[0] > 0 ) {
+            StdOut.println("ResultSink results differ from topKSearch: " + (outer.equals(expected) ? "" : "outer ")
+                           + nestedMismatches[0] + " nested searches");
+        }
+    }
+
+    /*
+     * @return each result of @results as render(int, int, int[], int, int[], int) writes it
+     */
+    private static ArrayList<String> render (ArrayList<MovieSearchResult> results) {
+        ArrayList<String> rendered = new ArrayList<String>();
+        for ( MovieSearchResult msr : results ) {
+            int[] a = msr.getArrayListA().stream().mapToInt(Integer::intValue).toArray();
+            int[] b = msr.getArrayListB().stream().mapToInt(Integer::intValue).toArray();
+            rendered.add(render(msr.getMovieId(), msr.getMinDistance(), a, a.length, b, b.length));
+        }
+        return rendered;
+    }
+
+    /*
+     * @return a result as a ResultSink receives it, as one string
+     */
+    private static String render (int movieId, int minDistance, int[] positionsA, int countA, int[] positionsB,
+                                  int countB) {
+        return movieId + " " + minDistance + " " + Arrays.toString(Arrays.copyOf(positionsA, countA)) + " "
+               + Arrays.toString(Arrays.copyOf(positionsB, countB));
+    }
+
+    /*
+     * Stress test and throughput benchmark for searches running while movies are
+     * inserted. An index of 20000 movies is built first; then one writer thread keeps
+     * inserting movies made of new words (forcing rehashes) while @readers threads run
+     * lookups and topTenSearch over the words of the first movies. Readers check that
+     * those words are always found with at least their initial postings, and that
+     * results are sorted; any violation is reported.
+     *
+     * @param readers number of searching threads
+     * @param millis how long to run
+     * @param compact true to use the CompactIndex backend
+     */
+    private static void concurrentBenchmark (int readers, int millis, boolean compact) {
+
+        final String[] words = syntheticWords(10000);
+        final RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS, compact);
+        for ( int m = 0; m < 20000; m++ ) {
+            for ( int p = 1; p <= WORDS_PER_MOVIE; p++ ) {
+                rudb.insertWordLocation(words[(m * 7 + p * 13) % words.length], new Location("movie" + m, p));
+            }
+        }
+        final int[] initialPostings = new int[words.length];
+        for ( int w = 0; w < words.length; w++ ) {
+            initialPostings[w] = rudb.getWordOccurrence(words[w]).getPostings().size();
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong searches = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong inserted = new AtomicLong();
+
+        Thread writer = new Thread(() -> {
+            for ( int m = 20000; !stop.get(); m++ ) {
+                for ( int p = 1; p <= WORDS_PER_MOVIE; p++ ) {
+                    String word = p % 2 == 0 ? words[(m + p) % words.length] : "new" + m + "x" + p;
+                    rudb.insertWordLocation(word, new Location("movie" + m, p));
+                }
+                inserted.incrementAndGet();
+            }
+        });
+        Thread[] threads = new Thread[readers];
+        for ( int t = 0; t < readers; t++ ) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while ( !stop.get() ) {
+                    int w = random.nextInt(words.length);
+                    WordOccurrence occ = rudb.getWordOccurrence(words[w]);
+                    if ( occ == null || occ.getPostings().size() < initialPostings[w] ) {
+                        errors.incrementAndGet();
+                    }
+                    ArrayList<MovieSearchResult> results =
+                        rudb.topTenSearch(words[w], words[random.nextInt(words.length)]);
+                    for ( int i = 1; results != null && i < results.size(); i++ ) {
+                        if ( results.get(i - 1).getMinDistance() > results.get(i).getMinDistance() ) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    count++;
+                }
+                searches.addAndGet(count);
+            });
+        }
+
+        writer.start();
+        for ( Thread t : threads ) {
+            t.start();
+        }
+        try {
+            Thread.sleep(millis);
+            stop.set(true);
+            writer.join();
+            for ( Thread t : threads ) {
+                t.join();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+
+        StdOut.printf("%-8s %3d readers: %10.0f searches/s, %8.0f movies inserted/s, %d errors%n",
+                      compact ? "compact" : "chained", readers, searches.get() * 1000.0 / millis,
+                      inserted.get() * 1000.0 / millis, errors.get());
+    }
+
+    /*
+     * Writes a synthetic movies file and compares the serial insertMoviesIntoHashTable
+     * with the parallel build for 1, 2, 4, ... threads (up to the number of cores, at
+     * least 4). Every word's postings from the parallel builds are checked against the
+     * serial build.
+     *
+     * @param movieCount number of movies in the synthetic file
+     */
+    private static void parallelBenchmark (int movieCount) {
+
+        String[] words = syntheticWords(50000);
+        String inputFile;
+        try {
+            inputFile = writeSyntheticMovies(movieCount, words);
+        } catch ( IOException e ) {
+            StdOut.println("could not write synthetic movies: " + e.getMessage());
+            return;
+        }
+
+        long start = System.nanoTime();
+        RUMDbSearchEngine serial = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        serial.insertMoviesIntoHashTable(inputFile);
+        double serialMillis = (System.nanoTime() - start) / 1e6;
+        StdOut.printf("%d movies, serial build: %.0f ms%n", movieCount, serialMillis);
+
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for ( int threads = 1; threads <= maxThreads; threads *= 2 ) {
+            start = System.nanoTime();
+            RUMDbSearchEngine parallel = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+            parallel.insertMoviesIntoHashTable(inputFile, threads);
+            double millis = (System.nanoTime() - start) / 1e6;
+
+            int mismatches = 0;
+            for ( String word : words ) {
+                WordOccurrence a = serial.getWordOccurrence(word);
+                WordOccurrence b = parallel.getWordOccurrence(word);
+                if ( a == null ? b != null : b == null || !a.getPostings().equals(b.getPostings()) ) {
+                    mismatches++;
+                }
+            }
+            StdOut.printf("%2d threads: %8.0f ms, speedup %.2f, load factor %.2f / %.2f, %d mismatches%n",
+                          threads, millis, serialMillis / millis, parallel.getLoadFactor(),
+                          serial.getLoadFactor(), mismatches);
+        }
+        new File(inputFile).delete();
+    }
+
+    /*
+     * Loads a synthetic file of @movieCount movies drawn from @vocabulary words into a
+     * chained table of 20 buckets, with insertMoviesIntoHashTable, which rehashes each
+     * time the load factor passes the threshold, then with bulkLoad, which sizes the
+     * table once from a HyperLogLog estimate of the distinct words. Reports the load
+     * time, the number of rehashes and the time spent in them, and the estimate against
+     * the number of words indexed. Each load runs twice, the first to warm up the JIT.
+     *
+     * @param movieCount number of movies in the synthetic file
+     * @param vocabulary number of distinct words the movies are drawn from
+     */
+    private static void bulkLoadBenchmark (int movieCount, int vocabulary) {
+
+        String inputFile;
+        try {
+            inputFile = writeSyntheticMovies(movieCount, syntheticWords(vocabulary));
+        } catch ( IOException e ) {
+            StdOut.println("could not write synthetic movies: " + e.getMessage());
+            return;
+        }
+        for ( int round = 0; round < 2; round++ ) {
+            for ( boolean bulk : new boolean[] { false, true } ) {
+                RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+                SearchStats stats = new SearchStats();
+                rudb.setMetricsSink(stats);
+                long estimate = -1;
+                long start = System.nanoTime();
+                if ( bulk ) {
+                    estimate = rudb.bulkLoad(inputFile);
+                } else {
+                    rudb.insertMoviesIntoHashTable(inputFile);
+                }
+                double millis = (System.nanoTime() - start) / 1e6;
+                if ( round == 0 ) {
+                    continue;
+                }
+                Histogram rehashes = stats.getRehashTime();
+                double rehashMillis = rehashes.getMean() * rehashes.getCount() / 1e6;
+                int words = rudb.getTermDictionary().size();
+                StdOut.printf("%10d %10d %8s %10.0f %9d %10.1f %8.1f %10s %8s%n", vocabulary, words,
+                              bulk ? "bulk" : "insert", millis, rehashes.getCount(), rehashMillis,
+                              100 * rehashMillis / millis, bulk ? String.valueOf(estimate) : "-",
+                              bulk ? String.format("%+.2f", 100.0 * (estimate - words) / words) : "-");
+            }
+        }
+        new File(inputFile).delete();
+    }
+
+    /*
+     * Loads a synthetic file of @movieCount movies with a DocumentStore, then reports
+     * how much the store compresses the text and the latency of snippets of the
+     * results of random two word searches. Checks that every snippet highlights both
+     * words, and that a movie inserted word by word with insertWordLocation, whose
+     * description is not stored, has no snippet.
+     *
+     * @param movieCount number of movies in the synthetic file
+     */
+    private static void documentsBenchmark (int movieCount) {
+
+        String[] words = syntheticWords(5000);
+        String inputFile;
+        try {
+            inputFile = writeSyntheticMovies(movieCount, words);
+        } catch ( IOException e ) {
+            StdOut.println("could not write synthetic movies: " + e.getMessage());
+            return;
+        }
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        DocumentStore store = new DocumentStore();
+        rudb.setDocumentStore(store);
+        long start = System.nanoTime();
+        rudb.insertMoviesIntoHashTable(inputFile);
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+        new File(inputFile).delete();
+        StdOut.printf("%d movies loaded in %.0f ms, stored in %d of %d bytes (%.1f%%)%n", movieCount, buildMillis,
+                      store.getStoredBytes(), store.getRawBytes(),
+                      100.0 * store.getStoredBytes() / store.getRawBytes());
+
+        Random random = new Random(7);
+        long snippets = 0, unmarked = 0, nanos = 0;
+        for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+            snippets = unmarked = nanos = 0;
+            for ( int q = 0; q < 2000; q++ ) {
+                String wordA = words[random.nextInt(words.length)], wordB = words[random.nextInt(words.length)];
+                ArrayList<MovieSearchResult> results = rudb.topKSearch(wordA, wordB, 10);
+                if ( results == null || wordA.equals(wordB) ) {
+                    continue;
+                }
+                for ( MovieSearchResult msr : results ) {
+                    start = System.nanoTime();
+                    String snippet = rudb.snippet(msr, 5);
+                    nanos += System.nanoTime() - start;
+                    snippets++;
+                    if ( snippet == null || !snippet.contains("[" + wordA) || !snippet.contains("[" + wordB) ) {
+                        unmarked++;
+                    }
+                }
+            }
+        }
+        StdOut.printf("%d snippets, %.2f us/snippet%n", snippets, nanos / 1e3 / Math.max(1, snippets));
+        if ( unmarked > 0 ) {
+            StdOut.println(unmarked + " snippets do not highlight both words");
+        }
+
+        rudb.insertWordLocation("snippeta", new Location("word by word", 1));
+        rudb.insertWordLocation("snippetb", new Location("word by word", 2));
+        ArrayList<MovieSearchResult> results = rudb.topKSearch("snippeta", "snippetb", 1);
+        if ( results == null || results.size() != 1 || rudb.snippet(results.get(0), 5) != null ) {
+            StdOut.println("a movie inserted word by word has a snippet");
+        }
+    }
+
+    /*
+     * Times the per-token work of a load: normalizing every description word of
+     * @inputFile with a WordNormalizer and hashing the words that are kept, then the
+     * whole insertMoviesIntoHashTable.
+     *
+     * @param inputFile movies file in the format read by readInputFile
+     */
+    private static void tokensBenchmark (String inputFile) {
+
+        WordNormalizer normalizer = WordNormalizer.fromFile(NOISE_WORDS);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        ArrayList<String> tokens = new ArrayList<String>();
+        for ( ArrayList<String> movie : rudb.readInputFile(inputFile) ) {
+            tokens.addAll(movie.subList(1, movie.size()));
+        }
+
+        int rounds = 50, kept = 0, hashes = 0;
+        for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+            long start = System.nanoTime();
+            for ( int r = 0; r < rounds; r++ ) {
+                kept = 0;
+                for ( int i = 0; i < tokens.size(); i++ ) {
+                    String word = normalizer.normalize(tokens.get(i));
+                    if ( word != null ) {
+                        hashes += WordNormalizer.hash(word);
+                        kept++;
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            if ( round == 1 ) {
+                StdOut.printf("%d tokens, %d kept, checksum %08x%n", tokens.size(), kept, hashes);
+                StdOut.printf("normalize + hash:          %.1f M tokens/s%n",
+                              (double) tokens.size() * rounds / nanos * 1e3);
+            }
+        }
+
+        long start = System.nanoTime();
+        for ( int r = 0; r < rounds; r++ ) {
+            new RUMDbSearchEngine(20, 8, NOISE_WORDS).insertMoviesIntoHashTable(inputFile);
+        }
+        StdOut.printf("insertMoviesIntoHashTable: %.1f M tokens/s%n",
+                      (double) tokens.size() * rounds / (System.nanoTime() - start) * 1e3);
+    }
+
+    /*
+     * Compares the cold start of a search engine built from a synthetic movies file
+     * with opening the same index from a segment file, and checks that both answer
+     * a search the same way.
+     *
+     * @param movieCount number of movies in the synthetic file
+     */
+    private static void segmentBenchmark (int movieCount) {
+
+        String[] words = syntheticWords(50000);
+        String inputFile;
+        File segmentFile;
+        try {
+            inputFile   = writeSyntheticMovies(movieCount, words);
+            segmentFile = File.createTempFile("rumdb", ".seg");
+        } catch ( IOException e ) {
+            StdOut.println("could not write synthetic movies: " + e.getMessage());
+            return;
+        }
+
+        long start = System.nanoTime();
+        RUMDbSearchEngine built = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        built.insertMoviesIntoHashTable(inputFile);
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        built.writeSegment(segmentFile.getPath());
+        double writeMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        RUMDbSearchEngine opened = RUMDbSearchEngine.openSegment(segmentFile.getPath(), false);
+        double openMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        ArrayList<MovieSearchResult> top = opened.topTenSearch(words[0], words[1]);
+        double searchMicros = (System.nanoTime() - start) / 1e3;
+
+        ArrayList<MovieSearchResult> expected = built.topTenSearch(words[0], words[1]);
+        boolean same = top.size() == expected.size();
+        for ( int i = 0; same && i < top.size(); i++ ) {
+            same = top.get(i).getTitle().equals(expected.get(i).getTitle())
+                && top.get(i).getMinDistance() == expected.get(i).getMinDistance();
+        }
+        StdOut.printf("%10d %12.0f %12.0f %12.2f %14.0f%s%n", movieCount, buildMillis, writeMillis,
+                      openMillis, searchMicros, same ? "" : "  MISMATCH");
+        new File(inputFile).delete();
+        segmentFile.delete();
+    }
+
+    /*
+     * Builds a synthetic index with skewed word frequencies: word i of a 10000 word
+     * vocabulary appears in about 1 / (i + 1) of the descriptions (Zipf). Times
+     * rankedSearch for queries mixing frequent and rare words and reports how many of
+     * the query words' postings MaxScore scored and decoded; the skipped ones were
+     * never decoded.
+     *
+     * @param movieCount number of movies
+     */
+    private static void rankedBenchmark (int movieCount) {
+
+        ZipfCorpus corpus = new ZipfCorpus(10000, 1.0);
+        String[] words = syntheticWords(corpus.size());
+        Random random = new Random(42);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        for ( int m = 0; m < movieCount; m++ ) {
+            String title = "movie" + m;
+            int length = WORDS_PER_MOVIE / 2 + random.nextInt(WORDS_PER_MOVIE);
+            for ( int p = 1; p <= length; p++ ) {
+                rudb.insertWordLocation(corpus.next(random), new Location(title, p));
+            }
+        }
+
+        String[][] queries = {
+            { words[0], words[500] },
+            { words[0], words[1], words[2000] },
+            { words[1], words[5], words[50], words[5000] },
+        };
+        StdOut.printf("%-40s %5s %10s %10s %10s %8s %10s%n", "query", "k", "postings", "scored",
+                      "decoded", "skipped", "us/op");
+        for ( String[] query : queries ) {
+            for ( int k : new int[] { 10, 100 } ) {
+                PostingList[] postings = new PostingList[query.length];
+                for ( int i = 0; i < query.length; i++ ) {
+                    postings[i] = rudb.getWordOccurrence(query[i]).getPostings();
+                }
+                RankedSearch search = new RankedSearch(postings, rudb.getMovies(), false);
+                search.topK(k);
+
+                int iterations = 200;
+                for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+                    long start = System.nanoTime();
+                    for ( int i = 0; i < iterations; i++ ) {
+                        rudb.rankedSearch(query, k, false);
+                    }
+                    long nanos = System.nanoTime() - start;
+                    if ( round == 1 ) {
+                        StdOut.printf("%-40s %5d %10d %10d %10d %7.1f%% %10.1f%n", String.join(" ", query), k,
+                                      search.getPostingsTotal(), search.getPostingsScored(),
+                                      search.getPostingsDecoded(),
+                                      100.0 * (search.getPostingsTotal() - search.getPostingsDecoded())
+                                      / search.getPostingsTotal(), nanos / 1e3 / iterations);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Replays a skewed query log over a synthetic index of @movieCount movies drawn
+     * from a 2000 word vocabulary: pairs of words, the pair of rank r asked with
+     * probability proportional to 1 / r (Zipf), with one query in four a pair asked
+     * once (a scan). Reports the throughput of topTenSearch without a cache and with
+     * each eviction policy, and the cache counters. The log is replayed three times
+     * per configuration to warm up the JIT; the last replay is reported.
+     *
+     * @param capacity cache capacity
+     * @param movieCount number of movies
+     */
+    private static void cacheBenchmark (int capacity, int movieCount) {
+
+        String[] words = syntheticWords(2000);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        try {
+            String inputFile = writeSyntheticMovies(movieCount, words);
+            rudb.insertMoviesIntoHashTable(inputFile);
+            new File(inputFile).delete();
+        } catch ( IOException e ) {
+            StdOut.println("could not write synthetic movies: " + e.getMessage());
+            return;
+        }
+
+        int pairs = 100000;
+        double[] cumulative = new double[pairs];
+        double sum = 0;
+        for ( int i = 0; i < pairs; i++ ) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(42);
+        String[][] log = new String[QUERIES][];
+        for ( int q = 0; q < log.length; q++ ) {
+            int pair = random.nextInt(4) == 0 ? pairs + q : Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            pair = pair < 0 ? -pair - 1 : pair;
+            Random pairWords = new Random(pair); // the same pair always maps to the same words
+            log[q] = new String[] { words[pairWords.nextInt(words.length)], words[pairWords.nextInt(words.length)] };
+        }
+
+        SearchCache.Policy[] policies = { null, SearchCache.Policy.LRU, SearchCache.Policy.TINY_LFU };
+        for ( int round = 0; round < 3; round++ ) {
+            for ( SearchCache.Policy policy : policies ) {
+                rudb.setResultCache(policy == null ? null : new SearchCache(capacity, policy));
+                long start = System.nanoTime();
+                for ( String[] query : log ) {
+                    rudb.topTenSearch(query[0], query[1]);
+                }
+                double micros = (System.nanoTime() - start) / 1e3 / log.length;
+                SearchCache cache = rudb.getResultCache();
+                if ( round < 2 ) {
+                    continue;
+                }
+                if ( cache == null ) {
+                    StdOut.printf("%-9s %8.2f us/query%n", "no cache", micros);
+                } else {
+                    StdOut.printf("%-9s %8.2f us/query, hit rate %5.1f%%, %d hits, %d misses, %d evictions%n",
+                                  policy, micros, 100.0 * cache.getHitCount() / log.length, cache.getHitCount(),
+                                  cache.getMissCount(), cache.getEvictionCount());
+                }
+            }
+        }
+    }
+
+    /*
+     * Builds a TermDictionary of @vocabulary random words of 4 to 12 letters and
+     * reports the average latency and number of matches of each kind of expansion,
+     * over patterns derived from random words of the vocabulary: their first three
+     * letters as a prefix, a '?' in place of one letter, '*' followed by their last
+     * three letters, and the word with one or two letters replaced for fuzzy matching.
+     *
+     * @param vocabulary number of words
+     */
+    private static void termsBenchmark (int vocabulary) {
+
+        Random random = new Random(42);
+        HashSet<String> set = new HashSet<String>();
+        StringBuilder sb = new StringBuilder();
+        while ( set.size() < vocabulary ) {
+            sb.setLength(0);
+            int length = 4 + random.nextInt(9);
+            for ( int i = 0; i < length; i++ ) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            set.add(sb.toString());
+        }
+        String[] words = set.toArray(new String[0]);
+        long start = System.nanoTime();
+        TermDictionary dictionary = new TermDictionary(set);
+        StdOut.printf("%d words, dictionary built in %d ms%n%n", vocabulary, (System.nanoTime() - start) / 1000000);
+
+        String[] kinds = { "prefix abc*", "wildcard ab?de", "suffix *xyz", "fuzzy ~1", "fuzzy ~2" };
+        int queries = 2000;
+        StdOut.printf("%-16s %10s %10s%n", "expansion", "matches", "us/op");
+        for ( int kind = 0; kind < kinds.length; kind++ ) {
+            for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+                long matches = 0;
+                start = System.nanoTime();
+                for ( int q = 0; q < queries; q++ ) {
+                    String word = words[random.nextInt(words.length)];
+                    int i = random.nextInt(word.length());
+                    switch ( kind ) {
+                    case 0: matches += dictionary.prefix(word.substring(0, 3)).size(); break;
+                    case 1: matches += dictionary.wildcard(word.substring(0, i) + '?' + word.substring(i + 1)).size(); break;
+                    case 2: matches += dictionary.wildcard("*" + word.substring(word.length() - 3)).size(); break;
+                    default:
+                        char[] typo = word.toCharArray();
+                        for ( int e = 0; e < kind - 2; e++ ) {
+                            typo[random.nextInt(typo.length)] = (char) ('a' + random.nextInt(26));
+                        }
+                        matches += dictionary.fuzzy(new String(typo), kind - 2).size();
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                if ( round == 1 ) {
+                    StdOut.printf("%-16s %10.1f %10.1f%n", kinds[kind], (double) matches / queries,
+                                  nanos / 1e3 / queries);
+                }
+            }
+        }
+    }
+
+    /*
+     * Builds a ZipfCorpus index of @movieCount movies and compares the throughput of
+     * topTenSearch called once per query with the batch topTenSearch, for batches of
+     * 10 to 10000 queries whose words follow the corpus distribution, so that many
+     * queries of a batch share their frequent words.
+     *
+     * @param movieCount number of movies
+     */
+    private static void batchBenchmark (int movieCount) {
+
+        ZipfCorpus corpus = new ZipfCorpus(50000, 1.0);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        corpus.index(rudb, movieCount, WORDS_PER_MOVIE, 42);
+        Random random = new Random(7);
+        int total = 20000;
+
+        StdOut.printf("%d movies, %d processors%n", movieCount, Runtime.getRuntime().availableProcessors());
+        StdOut.printf("%8s %16s %16s %8s%n", "batch", "single q/s", "batch q/s", "speedup");
+        for ( int size : new int[] { 10, 100, 1000, 10000 } ) {
+            String[][][] batches = new String[total / size][size][2];
+            for ( String[][] batch : batches ) {
+                for ( String[] query : batch ) {
+                    query[0] = corpus.next(random);
+                    query[1] = corpus.next(random);
+                }
+            }
+            double single = 0, batched = 0;
+            for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+                long start = System.nanoTime();
+                long results = 0;
+                for ( String[][] batch : batches ) {
+                    for ( String[] query : batch ) {
+                        ArrayList<MovieSearchResult> r = rudb.topTenSearch(query[0], query[1]);
+                        results += r == null ? 0 : r.size();
+                    }
+                }
+                single = total / ((System.nanoTime() - start) / 1e9);
+
+                start = System.nanoTime();
+                for ( String[][] batch : batches ) {
+                    for ( ArrayList<MovieSearchResult> r : rudb.topTenSearch(batch) ) {
+                        results -= r == null ? 0 : r.size();
+                    }
+                }
+                batched = total / ((System.nanoTime() - start) / 1e9);
+                if ( results != 0 ) {
+                    StdOut.println("batch results differ");
+                }
+            }
+            StdOut.printf("%8d %16.0f %16.0f %7.2fx%n", size, single, batched, batched / single);
+        }
+    }
+
+    /*
+     * Writes @movieCount movies of WORDS_PER_MOVIE random @words in the format read by
+     * readInputFile to a temporary file.
+     *
+     * @return the file's path
+     */
+    static String writeSyntheticMovies (int movieCount, String[] words) throws IOException {
+        File file = File.createTempFile("rumdb", ".txt");
+        Random random = new Random(42);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            for ( int m = 0; m < movieCount; m++ ) {
+                out.print("Movie " + m + "|");
+                for ( int p = 1; p <= WORDS_PER_MOVIE; p++ ) {
+                    out.print(" " + words[random.nextInt(words.length)]);
+                    if ( p % 7 == 0 ) out.print(",");
+                }
+                out.println(";");
+            }
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    /*
+     * @return the WordOccurrence of every distinct word of @inputFile present in @rudb
+     */
+    private static ArrayList<WordOccurrence> indexedWords (RUMDbSearchEngine rudb, String inputFile) {
+        HashSet<String> seen = new HashSet<String>();
+        ArrayList<WordOccurrence> words = new ArrayList<WordOccurrence>();
+        for ( ArrayList<String> movie : rudb.readInputFile(inputFile) ) {
+            for ( int i = 1; i < movie.size(); i++ ) {
+                String word = movie.get(i).toLowerCase().replaceAll("[.,?:;!]+$", "");
+                WordOccurrence occ = rudb.getWordOccurrence(word);
+                if ( occ != null && seen.add(word) ) {
+                    words.add(occ);
+                }
+            }
+        }
+        return words;
+    }
+
+    /*
+     * @return bytes of heap in use after a garbage collection
+     */
+    static long usedHeap () {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for ( int i = 0; i < 10; i++ ) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if ( now >= used ) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /*
+     * Builds a ZipfCorpus index of @movieCount movies and times "rare AND common"
+     * boolean queries, a word of the given rank with one of the 10 most frequent
+     * words, against a linear merge decoding both posting lists in full. With skip
+     * pointers the boolean search costs about rare * log(common) and does not grow
+     * with the frequent word's list. The same queries also run on the index written to
+     * an IndexSegment and opened again, whose posting lists get their skip pointers
+     * on first use.
+     *
+     * @param movieCount number of movies
+     */
+    private static void booleanBenchmark (int movieCount) {
+
+        ZipfCorpus corpus = new ZipfCorpus(50000, 1.0);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        corpus.index(rudb, movieCount, WORDS_PER_MOVIE, 42);
+        RUMDbSearchEngine segment;
+        File segmentFile;
+        try {
+            segmentFile = File.createTempFile("rumdb", ".seg");
+        } catch ( IOException e ) {
+            StdOut.println("could not write a segment: " + e.getMessage());
+            return;
+        }
+        rudb.writeSegment(segmentFile.getPath());
+        segment = RUMDbSearchEngine.openSegment(segmentFile.getPath(), false);
+        Random random = new Random(7);
+        int queries = 2000;
+
+        StdOut.printf("%d movies%n", movieCount);
+        StdOut.printf("%10s %10s %12s %10s %16s %16s %16s%n", "rare rank", "rare df", "common df", "matches",
+                      "boolean us/op", "segment us/op", "linear us/op");
+        for ( int rank : new int[] { 10, 100, 1000, 10000 } ) {
+            String[][] pairs = new String[queries][2];
+            for ( String[] pair : pairs ) {
+                pair[0] = corpus.word(rank + random.nextInt(rank));
+                pair[1] = corpus.word(1 + random.nextInt(10));
+            }
+            long rareDf = 0, commonDf = 0, matches = 0, segmentMatches = 0, linearMatches = 0;
+            long booleanNanos = 0, segmentNanos = 0, linearNanos = 0;
+            for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+                rareDf = commonDf = matches = segmentMatches = linearMatches = 0;
+                long start = System.nanoTime();
+                for ( String[] pair : pairs ) {
+                    matches += rudb.booleanSearch(pair[0] + " AND " + pair[1], Integer.MAX_VALUE).size();
+                }
+                booleanNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for ( String[] pair : pairs ) {
+                    segmentMatches += segment.booleanSearch(pair[0] + " AND " + pair[1], Integer.MAX_VALUE).size();
+                }
+                segmentNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for ( String[] pair : pairs ) {
+                    WordOccurrence a = rudb.getWordOccurrence(pair[0]), b = rudb.getWordOccurrence(pair[1]);
+                    if ( a == null || b == null ) {
+                        continue;
+                    }
+                    rareDf   += a.getPostings().getMovieCount();
+                    commonDf += b.getPostings().getMovieCount();
+                    PostingList.Cursor ca = a.getPostings().cursor(), cb = b.getPostings().cursor();
+                    boolean moreA = ca.next(), moreB = cb.next();
+                    int last = -1;
+                    while ( moreA && moreB ) {
+                        if ( ca.movieId() < cb.movieId() ) {
+                            moreA = ca.next();
+                        } else if ( ca.movieId() > cb.movieId() ) {
+                            moreB = cb.next();
+                        } else {
+                            if ( ca.movieId() != last ) {
+                                last = ca.movieId();
+                                linearMatches++;
+                            }
+                            moreA = ca.next();
+                        }
+                    }
+                }
+                linearNanos = System.nanoTime() - start;
+            }
+            StdOut.printf("%10d %10.1f %12.1f %10.1f %16.2f %16.2f %16.2f%n", rank, (double) rareDf / queries,
+                          (double) commonDf / queries, (double) matches / queries, booleanNanos / 1e3 / queries,
+                          segmentNanos / 1e3 / queries, linearNanos / 1e3 / queries);
+            if ( matches != linearMatches || segmentMatches != linearMatches ) {
+                StdOut.println("boolean, segment and linear matches differ");
+            }
+        }
+        segmentFile.delete();
+    }
+
+    /*
+     * Builds a Zipf corpus index of about @postings postings with @backend, then reports
+     * the heap it takes, the direct memory (off-heap) it takes, the mean pause of a full
+     * garbage collection with the index live, and the latency of searches along with the
+     * time the collector spent, mostly in young collections, while they ran.
+     *
+     * @param backend "chained", "compact" or "off-heap"
+     * @param postings number of postings, WORDS_PER_MOVIE per movie
+     */
+    private static void offHeapBenchmark (String backend, int postings) {
+
+        ZipfCorpus corpus = new ZipfCorpus(50000, 1.0);
+        long heapBefore = usedHeap(), directBefore = directMemory();
+        long start = System.nanoTime();
+        RUMDbSearchEngine rudb = backend.equals("off-heap") ? RUMDbSearchEngine.offHeap(20, 8, NOISE_WORDS)
+                                 : new RUMDbSearchEngine(20, 8, NOISE_WORDS, backend.equals("compact"));
+        corpus.index(rudb, postings / WORDS_PER_MOVIE, WORDS_PER_MOVIE, 42);
+        long buildNanos = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore, direct = directMemory() - directBefore;
+
+        int collections = 5;
+        start = System.nanoTime();
+        for ( int i = 0; i < collections; i++ ) {
+            System.gc();
+        }
+        long gcNanos = (System.nanoTime() - start) / collections;
+
+        Random random = new Random(7);
+        int queries = 20000;
+        long results = 0, gcBefore = gcMillis();
+        start = System.nanoTime();
+        for ( int i = 0; i < queries; i++ ) {
+            ArrayList<MovieSearchResult> r = rudb.topTenSearch(corpus.next(random), corpus.next(random));
+            if ( r != null ) {
+                results += r.size();
+            }
+        }
+        long searchNanos = System.nanoTime() - start;
+        long searchGcMillis = gcMillis() - gcBefore;
+
+        StdOut.printf("%10s %10.1f %12.1f %14.1f %14.2f %14.2f %14.2f%n", backend, buildNanos / 1e6, heap / 1e6,
+                      direct / 1e6, gcNanos / 1e6, searchNanos / 1e3 / queries, searchGcMillis * 1000.0 / queries);
+        if ( results == 0 ) {
+            StdOut.println("no search results");
+        }
+    }
+
+    /*
+     * @return bytes of direct ByteBuffers allocated
+     */
+    private static long directMemory () {
+        for ( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class) ) {
+            if ( pool.getName().equals("direct") ) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * @return milliseconds spent in garbage collection so far, by every collector
+     */
+    private static long gcMillis () {
+        long millis = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /*
+     * @return the names of the garbage collectors
+     */
+    private static String garbageCollectors () {
+        ArrayList<String> names = new ArrayList<String>();
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            names.add(gc.getName());
+        }
+        return String.join(", ", names);
+    }
+
+    /*
+     * Compares candidate generation for pairs of common words: the movies containing
+     * both words (AND) or either (OR), from their cached RoaringBitmaps, against a merge
+     * of their posting lists by movie id. Also reports the time to build the bitmaps of
+     * all words with one and their size next to the posting lists'.
+     *
+     * @param movieCount the number of movies of the Zipf corpus
+     */
+    private static void bitmapBenchmark (int movieCount) {
+
+        int vocabulary = 50000;
+        ZipfCorpus corpus = new ZipfCorpus(vocabulary, 1.0);
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS);
+        corpus.index(rudb, movieCount, WORDS_PER_MOVIE, 42);
+        Random random = new Random(7);
+        int queries = 500;
+
+        long start = System.nanoTime(), bitmapBytes = 0, postingBytes = 0;
+        int bitmaps = 0;
+        for ( int rank = 1; rank <= vocabulary; rank++ ) {
+            WordOccurrence occ = rudb.getWordOccurrence(corpus.word(rank));
+            RoaringBitmap movies = occ == null ? null : occ.getPostings().movieBitmap();
+            if ( movies != null ) {
+                bitmaps++;
+                bitmapBytes  += movies.getSizeInBytes();
+                postingBytes += occ.getPostings().getByteSize();
+            }
+        }
+        StdOut.printf("%d movies, %d words with bitmaps built in %.1f ms, %d bitmap bytes for %d posting bytes%n",
+                      movieCount, bitmaps, (System.nanoTime() - start) / 1e6, bitmapBytes, postingBytes);
+        StdOut.printf("%10s %10s %10s %10s %13s %13s %10s %13s %13s%n", "ranks A", "ranks B", "and", "and/or df",
+                      "and bm us/op", "and list us", "or", "or bm us/op", "or list us");
+        int[][] buckets = { { 1, 10, 1, 10 }, { 10, 100, 1, 10 }, { 10, 100, 10, 100 }, { 100, 200, 100, 200 } };
+        for ( int[] bucket : buckets ) {
+            PostingList[][] pairs = new PostingList[queries][2];
+            for ( PostingList[] pair : pairs ) {
+                pair[0] = rudb.getWordOccurrence(corpus.word(bucket[0] + random.nextInt(bucket[1] - bucket[0]))).getPostings();
+                pair[1] = rudb.getWordOccurrence(corpus.word(bucket[2] + random.nextInt(bucket[3] - bucket[2]))).getPostings();
+            }
+            long df = 0, and = 0, or = 0, listAnd = 0, listOr = 0;
+            long[] nanos = new long[4]; // and bitmap, and list, or bitmap, or list
+            for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+                df = and = or = listAnd = listOr = 0;
+                start = System.nanoTime();
+                for ( PostingList[] pair : pairs ) {
+                    and += RoaringBitmap.and(pair[0].movieBitmap(), pair[1].movieBitmap()).getCardinality();
+                }
+                nanos[0] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for ( PostingList[] pair : pairs ) {
+                    listAnd += mergeMovies(pair[0], pair[1], true);
+                }
+                nanos[1] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for ( PostingList[] pair : pairs ) {
+                    or += RoaringBitmap.or(pair[0].movieBitmap(), pair[1].movieBitmap()).getCardinality();
+                }
+                nanos[2] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for ( PostingList[] pair : pairs ) {
+                    listOr += mergeMovies(pair[0], pair[1], false);
+                }
+                nanos[3] = System.nanoTime() - start;
+                for ( PostingList[] pair : pairs ) {
+                    df += pair[0].getMovieCount() + pair[1].getMovieCount();
+                }
+            }
+            StdOut.printf("%10s %10s %10.1f %10.1f %13.2f %13.2f %10.1f %13.2f %13.2f%n",
+                          bucket[0] + "-" + bucket[1], bucket[2] + "-" + bucket[3], (double) and / queries,
+                          (double) df / queries, nanos[0] / 1e3 / queries, nanos[1] / 1e3 / queries,
+                          (double) or / queries, nanos[2] / 1e3 / queries, nanos[3] / 1e3 / queries);
+            if ( and != listAnd || or != listOr ) {
+                StdOut.println("bitmap and list candidates differ");
+            }
+        }
+
+        // during a load every search finds the bitmap of a common word stale
+        PostingList common = rudb.getWordOccurrence(corpus.word(1)).getPostings();
+        long fullNanos = 0, refreshNanos = 0;
+        int refreshes = 500;
+        for ( int r = 0; r < refreshes; r++ ) {
+            for ( int m = 0; m < 10; m++ ) {
+                String title = "ingested " + r + " " + m;
+                for ( int p = 1; p <= WORDS_PER_MOVIE; p++ ) {
+                    rudb.insertWordLocation(corpus.next(random), new Location(title, p));
+                }
+            }
+            start = System.nanoTime();
+            RoaringBitmap refreshed = common.movieBitmap();
+            refreshNanos += System.nanoTime() - start;
+            PostingList copy = new PostingList();
+            copy.addAll(common);
+            start = System.nanoTime();
+            RoaringBitmap built = copy.movieBitmap();
+            fullNanos += System.nanoTime() - start;
+            if ( !refreshed.equals(built) ) {
+                StdOut.println("refreshed and rebuilt bitmaps differ");
+                break;
+            }
+        }
+        StdOut.printf("load, 10 movies between searches: bitmap of the most common word (%d movies) refreshed "
+                      + "in %.1f us, built from scratch in %.1f us%n", common.getMovieCount(),
+                      refreshNanos / 1e3 / refreshes, fullNanos / 1e3 / refreshes);
+    }
+
+    /*
+     * Merges the posting lists @a and @b by movie id.
+     * @return the number of movies in both if @and, otherwise in either
+     */
+    private static int mergeMovies (PostingList a, PostingList b, boolean and) {
+        PostingList.Cursor ca = a.cursor(), cb = b.cursor();
+        boolean moreA = ca.next(), moreB = cb.next();
+        int count = 0, last = -1;
+        while ( moreA || moreB ) {
+            int movie = !moreB || moreA && ca.movieId() <= cb.movieId() ? ca.movieId() : cb.movieId();
+            boolean inA = moreA && ca.movieId() == movie, inB = moreB && cb.movieId() == movie;
+            if ( movie != last && (!and || inA && inB) ) {
+                count++;
+            }
+            last = movie;
+            if ( and && !(moreA && moreB) ) {
+                break;
+            }
+            if ( inA ) {
+                moreA = ca.next();
+            } else {
+                moreB = cb.next();
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Inserts each of @words once into a chained table using @hashing, then reports
+     * the build time, the load factor, the longest chain, the mean number of words
+     * compared by a lookup of a word in the table, from the chain length distribution
+     * (1 + load / 2 when words are spread uniformly), and the lookup latency of random
+     * words. Strategies rounding table sizes to powers of two end at other load factors.
+     *
+     * @param name the name of @words, printed
+     * @param words distinct words
+     * @param hashing the strategy benchmarked
+     */
+    private static void hashingBenchmark (String name, String[] words, HashStrategy hashing) {
+
+        long start = System.nanoTime();
+        RUMDbSearchEngine rudb = new RUMDbSearchEngine(20, 8, NOISE_WORDS, hashing);
+        for ( int i = 0; i < words.length; i++ ) {
+            rudb.insertWordLocation(words[i], new Location("movie" + i / WORDS_PER_MOVIE, i % WORDS_PER_MOVIE + 1));
+        }
+        long buildNanos = System.nanoTime() - start;
+
+        int[] chains = rudb.getChainLengths();
+        long probes = 0;
+        for ( int length = 1; length < chains.length; length++ ) {
+            probes += (long) chains[length] * length * (length + 1) / 2; // the i-th word of a chain takes i compares
+        }
+
+        Random random = new Random(42);
+        int queries = Math.min(QUERIES, 20 * words.length), found = 0;
+        for ( int round = 0; round < 2; round++ ) { // first round warms up the JIT
+            start = System.nanoTime();
+            for ( int i = 0; i < queries; i++ ) {
+                if ( rudb.getWordOccurrence(words[random.nextInt(words.length)]) != null ) {
+                    found++;
+                }
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        StdOut.printf("%-10s %-9s %10d %10.1f %6.2f %10d %12.2f %14.1f%n",
+                      name, hashing, words.length, buildNanos / 1e6, rudb.getLoadFactor(), chains.length - 1,
+                      (double) probes / words.length,
+                      (double) lookupNanos / queries);
+        if ( found != 2 * queries ) {
+            StdOut.println("unexpected lookup misses: " + (2 * queries - found));
+        }
+    }
+
+    /*
+     * Generates the 2^@blocks words made of @blocks two letter blocks, each "an" or
+     * "c0". As 31 * 'a' + 'n' == 31 * 'c' + '0', every one of them has the same String
+     * hash, case-insensitive or not: the input an attacker would send to flood a table
+     * indexed by String hashes.
+     *
+     * @param blocks number of blocks per word
+     * @return array of distinct colliding words
+     */
+    static String[] floodWords (int blocks) {
+        String[] words = new String[1 << blocks];
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < words.length; i++ ) {
+            sb.setLength(0);
+            for ( int b = 0; b < blocks; b++ ) {
+                sb.append((i >>> b & 1) == 0 ? "an" : "c0");
+            }
+            words[i] = sb.toString();
+        }
+        return words;
+    }
+
+    /*
+     * Generates @count distinct lowercase words ("ax", "bx", ..., "abx", ...).
+     *
+     * @param count number of words
+     * @return array of distinct words
+     */
+    static String[] syntheticWords (int count) {
+        String[] words = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < count; i++ ) {
+            sb.setLength(0);
+            int n = i;
+            do {
+                sb.append((char) ('a' + n % 26));
+                n /= 26;
+            } while ( n > 0 );
+            sb.append('x');
+            words[i] = sb.toString();
+        }
+        return words;
+    }
+}
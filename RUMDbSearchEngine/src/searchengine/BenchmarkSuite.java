@@ -0,0 +1,313 @@
+package searchengine;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/*
+ * Repeatable benchmarks of the chained hash table, to see how a change affects
+ * inserting, rehashing, looking up and searching. Modeled on JMH: each benchmark runs
+ * a number of warmup iterations, whose results are dropped, then measurement
+ * iterations, for every combination of the parameters, and the results can be written
+ * in JMH's JSON format to be compared between versions with the usual JMH tools.
+ * Run from the RUMDbSearchEngine directory so that noisewords.txt can be found:
+ *
+ *      java -cp bin searchengine.BenchmarkSuite [options] [regex]
+ *
+ *      regex                   only run the benchmarks whose name matches
+ *      -wi n                   warmup iterations (default 3)
+ *      -i n                    measurement iterations (default 5)
+ *      -p name=v1,v2,...       parameter values, see PARAMETERS
+ *      -rff file               write the results to @file as JSON
+ *
+ * The benchmarks, all in average time per operation:
+ *
+ *      build       ms   inserts the corpus into a new search engine, rehashes included
+ *      rehash      ms   rehashes the built table to twice its size and back (one op each)
+ *      lookup      ns   getWordOccurrence of a word drawn from the corpus distribution
+ *      search      us   topTenSearch of two words drawn from the corpus distribution
+ *      sinkSearch  us   the same searches with topKSearch(wordA, wordB, 10, sink)
+ *
+ * Every benchmark also reports the bytes it allocated per operation, as JMH's -prof gc
+ * does with gc.alloc.rate.norm (a secondary metric in the JSON results), from the
+ * JVM's per-thread allocation counter; sinkSearch should allocate nothing.
+ *
+ * The corpus is a ZipfCorpus of @movies movies of 20 words, the same for every
+ * iteration. Lookups and searches draw their words from the same distribution, so
+ * frequent words, with long posting lists, are asked for the most, as in a real log.
+ *
+ * Unlike JMH every benchmark runs in this JVM, one after the other (a single fork),
+ * and the error is 3.29 standard errors, the normal approximation of JMH's 99.9%
+ * confidence interval.
+ *
+ */
+public class BenchmarkSuite {
+
+    private static final String NOISE_WORDS     = "noisewords.txt";
+    private static final int    WORDS_PER_MOVIE = 20;
+    private static final int    LOOKUPS         = 200000;
+    private static final int    SEARCHES        = 5000;
+
+    private static final String[] BENCHMARKS = { "build", "rehash", "lookup", "search", "sinkSearch" };
+    private static final String[] UNITS      = { "ms/op", "ms/op", "ns/op", "us/op", "us/op" };
+
+    // parameter names and their default values
+    private static final String[][] PARAMETERS = {
+        { "hashSize",   "20,4096" },
+        { "threshold",  "2,8" },
+        { "movies",     "20000" },
+        { "vocabulary", "50000" },
+        { "exponent",   "1.0" },
+    };
+
+    private static volatile long sink; // keeps the JIT from dropping unused results
+    private static long resultSum;     // written by RESULTS, added to sink
+    private static final ResultSink RESULTS = (rank, movieId, title, minDistance, positionsA, countA,
+                                               positionsB, countB) -> resultSum += minDistance;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static double allocated; // bytes per operation of the last iteration
+
+    /*
+     * The index and queries shared by the iterations of one parameter combination.
+     */
+    private static class Trial {
+        final int        hashSize;
+        final double     threshold;
+        final int        movies;
+        final ZipfCorpus corpus;
+        RUMDbSearchEngine engine;
+        String[]   lookups = new String[LOOKUPS];
+        String[][] pairs   = new String[SEARCHES][2];
+
+        Trial (Map<String, String> params) {
+            hashSize  = Integer.parseInt(params.get("hashSize"));
+            threshold = Double.parseDouble(params.get("threshold"));
+            movies    = Integer.parseInt(params.get("movies"));
+            corpus    = new ZipfCorpus(Integer.parseInt(params.get("vocabulary")),
+                                       Double.parseDouble(params.get("exponent")));
+            Random random = new Random(7);
+            for ( int i = 0; i < LOOKUPS; i++ ) {
+                lookups[i] = corpus.next(random);
+            }
+            for ( int i = 0; i < SEARCHES; i++ ) {
+                pairs[i][0] = corpus.next(random);
+                pairs[i][1] = corpus.next(random);
+            }
+        }
+
+        RUMDbSearchEngine build () {
+            RUMDbSearchEngine rudb = new RUMDbSearchEngine(hashSize, threshold, NOISE_WORDS);
+            corpus.index(rudb, movies, WORDS_PER_MOVIE, 42);
+            return rudb;
+        }
+    }
+
+    public static void main (String[] args) throws IOException {
+
+        int warmups = 3, iterations = 5;
+        String resultFile = null;
+        Pattern filter = Pattern.compile(".*");
+        LinkedHashMap<String, String[]> values = new LinkedHashMap<String, String[]>();
+        for ( String[] parameter : PARAMETERS ) {
+            values.put(parameter[0], parameter[1].split(","));
+        }
+        for ( int a = 0; a < args.length; a++ ) {
+            if ( args[a].equals("-wi") ) {
+                warmups = Integer.parseInt(args[++a]);
+            } else if ( args[a].equals("-i") ) {
+                iterations = Integer.parseInt(args[++a]);
+            } else if ( args[a].equals("-rff") ) {
+                resultFile = args[++a];
+            } else if ( args[a].equals("-p") ) {
+                String[] parameter = args[++a].split("=", 2);
+                if ( parameter.length != 2 || !values.containsKey(parameter[0]) ) {
+                    throw new IllegalArgumentException("unknown parameter " + args[a]);
+                }
+                values.put(parameter[0], parameter[1].split(","));
+            } else {
+                filter = Pattern.compile(args[a]);
+            }
+        }
+
+        ArrayList<LinkedHashMap<String, String>> combinations = new ArrayList<LinkedHashMap<String, String>>();
+        combinations.add(new LinkedHashMap<String, String>());
+        for ( Map.Entry<String, String[]> parameter : values.entrySet() ) {
+            ArrayList<LinkedHashMap<String, String>> expanded = new ArrayList<LinkedHashMap<String, String>>();
+            for ( LinkedHashMap<String, String> combination : combinations ) {
+                for ( String value : parameter.getValue() ) {
+                    LinkedHashMap<String, String> next = new LinkedHashMap<String, String>(combination);
+                    next.put(parameter.getKey(), value);
+                    expanded.add(next);
+                }
+            }
+            combinations = expanded;
+        }
+
+        StringBuilder json = new StringBuilder("[\n");
+        StdOut.printf("%-10s %10s %10s %8s %8s %5s %12s %10s  %-6s %12s%n", "Benchmark", "(hashSize)", "(threshold)",
+                      "(movies)", "(vocab)", "Cnt", "Score", "Error", "Units", "Alloc B/op");
+        for ( LinkedHashMap<String, String> params : combinations ) {
+            Trial trial = new Trial(params);
+            for ( int b = 0; b < BENCHMARKS.length; b++ ) {
+                if ( !filter.matcher(BENCHMARKS[b]).find() ) {
+                    continue;
+                }
+                double[] scores = new double[iterations];
+                double allocation = 0;
+                for ( int i = -warmups; i < iterations; i++ ) {
+                    double score = iteration(BENCHMARKS[b], trial);
+                    if ( i >= 0 ) {
+                        scores[i] = score;
+                        allocation += allocated / iterations;
+                    }
+                }
+                double mean = 0;
+                for ( double score : scores ) {
+                    mean += score / iterations;
+                }
+                double variance = 0;
+                for ( double score : scores ) {
+                    variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+                }
+                double error = 3.29 * Math.sqrt(variance / iterations);
+                StdOut.printf("%-10s %10s %10s %8s %8s %5d %12.3f %10.3f  %-6s %12.1f%n", BENCHMARKS[b],
+                              params.get("hashSize"), params.get("threshold"), params.get("movies"),
+                              params.get("vocabulary"), iterations, mean, error, UNITS[b], allocation);
+                appendJson(json, BENCHMARKS[b], UNITS[b], params, warmups, scores, mean, error, allocation);
+            }
+        }
+        if ( json.length() > 2 ) {
+            json.setLength(json.length() - 2); // the last ",\n"
+        }
+        json.append("\n]\n");
+
+        if ( resultFile != null ) {
+            try ( PrintWriter out = new PrintWriter(new FileWriter(resultFile)) ) {
+                out.print(json);
+            }
+            StdOut.println("results written to " + resultFile);
+        }
+    }
+
+    /*
+     * Runs one iteration of @benchmark, and sets allocated.
+     * @return the average time per operation, in the benchmark's unit
+     */
+    private static double iteration (String benchmark, Trial trial) {
+        if ( trial.engine == null && !benchmark.equals("build") ) {
+            trial.engine = trial.build();
+        }
+        long thread = Thread.currentThread().getId();
+        long bytes = THREADS.getThreadAllocatedBytes(thread);
+        double score = run(benchmark, trial);
+        bytes = THREADS.getThreadAllocatedBytes(thread) - bytes;
+        allocated = (double) bytes / operations(benchmark);
+        return score;
+    }
+
+    /*
+     * @return the number of operations of an iteration of @benchmark
+     */
+    private static int operations (String benchmark) {
+        switch ( benchmark ) {
+        case "build":
+            return 1;
+        case "rehash":
+            return 2;
+        case "lookup":
+            return LOOKUPS;
+        default:
+            return SEARCHES;
+        }
+    }
+
+    private static double run (String benchmark, Trial trial) {
+        long start = System.nanoTime();
+        long count = 0;
+        switch ( benchmark ) {
+        case "build":
+            trial.engine = trial.build();
+            return (System.nanoTime() - start) / 1e6;
+        case "rehash":
+            int size = trial.engine.getHashSize();
+            start = System.nanoTime();
+            trial.engine.resize(size * 2);
+            trial.engine.resize(size);
+            return (System.nanoTime() - start) / 1e6 / 2;
+        case "lookup":
+            for ( String word : trial.lookups ) {
+                if ( trial.engine.getWordOccurrence(word) != null ) {
+                    count++;
+                }
+            }
+            sink += count;
+            return (double) (System.nanoTime() - start) / LOOKUPS;
+        case "sinkSearch":
+            for ( String[] pair : trial.pairs ) {
+                count += trial.engine.topKSearch(pair[0], pair[1], 10, RESULTS);
+            }
+            sink += count + resultSum;
+            return (System.nanoTime() - start) / 1e3 / SEARCHES;
+        default:
+            for ( String[] pair : trial.pairs ) {
+                ArrayList<MovieSearchResult> results = trial.engine.topTenSearch(pair[0], pair[1]);
+                if ( results != null ) {
+                    count += results.size();
+                }
+            }
+            sink += count;
+            return (System.nanoTime() - start) / 1e3 / SEARCHES;
+        }
+    }
+
+    /*
+     * Appends one result to @json in the format of JMH's -rf json output.
+     */
+    private static void appendJson (StringBuilder json, String benchmark, String unit,
+                                    Map<String, String> params, int warmups, double[] scores,
+                                    double score, double error, double allocation) {
+        json.append("    {\n");
+        json.append("        \"jmhVersion\" : \"none (searchengine.BenchmarkSuite)\",\n");
+        json.append("        \"benchmark\" : \"searchengine.BenchmarkSuite.").append(benchmark).append("\",\n");
+        json.append("        \"mode\" : \"avgt\",\n");
+        json.append("        \"threads\" : 1,\n");
+        json.append("        \"forks\" : 1,\n");
+        json.append("        \"jvm\" : \"").append(escape(System.getProperty("java.home"))).append("\",\n");
+        json.append("        \"jdkVersion\" : \"").append(escape(System.getProperty("java.version"))).append("\",\n");
+        json.append("        \"warmupIterations\" : ").append(warmups).append(",\n");
+        json.append("        \"measurementIterations\" : ").append(scores.length).append(",\n");
+        json.append("        \"params\" : {\n");
+        int p = 0;
+        for ( Map.Entry<String, String> param : params.entrySet() ) {
+            json.append("            \"").append(param.getKey()).append("\" : \"")
+                .append(escape(param.getValue())).append(++p < params.size() ? "\",\n" : "\"\n");
+        }
+        json.append("        },\n");
+        json.append("        \"primaryMetric\" : {\n");
+        json.append("            \"score\" : ").append(score).append(",\n");
+        json.append("            \"scoreError\" : ").append(Double.isNaN(error) ? 0 : error).append(",\n");
+        json.append("            \"scoreUnit\" : \"").append(unit).append("\",\n");
+        json.append("            \"rawData\" : [\n                [\n");
+        for ( int i = 0; i < scores.length; i++ ) {
+            json.append("                    ").append(scores[i]).append(i + 1 < scores.length ? ",\n" : "\n");
+        }
+        json.append("                ]\n            ]\n        },\n");
+        json.append("        \"secondaryMetrics\" : {\n");
+        json.append("            \"gc.alloc.rate.norm\" : {\n");
+        json.append("                \"score\" : ").append(allocation).append(",\n");
+        json.append("                \"scoreUnit\" : \"B/op\"\n");
+        json.append("            }\n        }\n    },\n");
+    }
+
+    private static String escape (String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,419 @@
+package searchengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * This class finds the movies matching a boolean query such as
+ *
+ *      (love OR romance) AND tragic NOT war
+ *
+ * NOT binds tighter than AND, which binds tighter than OR; terms next to each other
+ * without an operator are ANDed, and parentheses group. A term is normalized as the
+ * words of a description are; noise words are dropped from the query. A term with a
+ * wildcard or a '~' (see RUMDbSearchEngine.expandTerm) matches the movies of any of
+ * the words it expands to.
+ *
+ * The query becomes a tree of Nodes, each visiting its movies in increasing id order
+ * and able to advance to the first movie not smaller than a target. A term advances
+ * its PostingList.Cursor, which gallops over the list's skip pointers, so skipping
+ * over many movies costs O(log movies).
+ *
+ * The planner orders the operands of an AND by their document frequency (the number
+ * of movies of a term, the sum of an OR's operands, the smallest of an AND's). The
+ * rarest operand proposes candidates; the others advance to each candidate and the
+ * first to overshoot proposes the next one. A rare and a common term are therefore
+ * intersected in O(rare * log common). NOT operands of an AND are only looked up for
+ * the movies matching the rest, the most frequent first since it is the most likely
+ * to exclude the movie. A NOT with nothing to subtract from applies to all movies.
+ *
+ * Operands with a movie bitmap (common terms, see PostingList.movieBitmap) are
+ * combined before any list is walked: the bitmaps of an OR whose operands all have one
+ * are united, and those of an AND are intersected, minus those of its NOT operands
+ * that have one, 64 movies per instruction. The result is a single operand; rarer
+ * operands still drive the AND and look their candidates up in it.
+ *
+ */
+class BooleanSearch {
+
+    static final int NO_MORE = Integer.MAX_VALUE;
+
+    /*
+     * A set of movie ids, visited in increasing order.
+     */
+    abstract static class Node {
+        int movie = -1; // current movie, -1 before the first and NO_MORE after the last
+
+        /*
+         * Moves to the first movie not smaller than @target, unless the current movie
+         * already is.
+         * @return the new current movie, NO_MORE if there is none
+         */
+        abstract int advance (int target);
+
+        /*
+         * @return an estimate of the number of movies, used to plan the query
+         */
+        abstract long cost ();
+    }
+
+    private static final class TermNode extends Node {
+        private final PostingList        postings;
+        private final PostingList.Cursor cursor;
+        private final int df;
+
+        TermNode (PostingList postings) {
+            this.postings = postings;
+            this.cursor   = postings.cursor();
+            this.df       = postings.getMovieCount();
+        }
+
+        int advance (int target) {
+            if ( movie < target ) {
+                movie = cursor.advance(target) ? cursor.movieId() : NO_MORE;
+            }
+            return movie;
+        }
+
+        long cost () {
+            return df;
+        }
+    }
+
+    /*
+     * The movies 0 to movieCount - 1, what a NOT alone is subtracted from.
+     */
+    private static final class AllNode extends Node {
+        private final int movieCount;
+
+        AllNode (int movieCount) {
+            this.movieCount = movieCount;
+        }
+
+        int advance (int target) {
+            if ( movie < target ) {
+                movie = target < movieCount ? target : NO_MORE;
+            }
+            return movie;
+        }
+
+        long cost () {
+            return movieCount;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+        private final RoaringBitmap movies;
+        private final int           cardinality;
+
+        BitmapNode (RoaringBitmap movies) {
+            this.movies      = movies;
+            this.cardinality = movies.getCardinality();
+        }
+
+        int advance (int target) {
+            if ( movie < target ) {
+                int next = movies.nextValue(target);
+                movie = next < 0 ? NO_MORE : next;
+            }
+            return movie;
+        }
+
+        long cost () {
+            return cardinality;
+        }
+    }
+
+    private static final class OrNode extends Node {
+        private final Node[] operands;
+
+        OrNode (Node[] operands) {
+            this.operands = operands;
+        }
+
+        int advance (int target) {
+            if ( movie < target ) {
+                int min = NO_MORE;
+                for ( Node operand : operands ) {
+                    min = Math.min(min, operand.advance(target));
+                }
+                movie = min;
+            }
+            return movie;
+        }
+
+        long cost () {
+            long cost = 0;
+            for ( Node operand : operands ) {
+                cost += operand.cost();
+            }
+            return cost;
+        }
+    }
+
+    private static final class AndNode extends Node {
+        private final Node[] required; // rarest first
+        private final Node[] excluded; // most frequent first
+
+        AndNode (Node[] required, Node[] excluded) {
+            this.required = required.clone();
+            this.excluded = excluded.clone();
+            Arrays.sort(this.required, Comparator.comparingLong(Node::cost));
+            Arrays.sort(this.excluded, Comparator.comparingLong(Node::cost).reversed());
+        }
+
+        int advance (int target) {
+            if ( movie >= target ) {
+                return movie;
+            }
+            int candidate = required[0].advance(target);
+            int i = 1;
+            while ( candidate != NO_MORE ) {
+                if ( i < required.length ) {
+                    int m = required[i].advance(candidate);
+                    if ( m == candidate ) {
+                        i++;
+                    } else {
+                        candidate = required[0].advance(m);
+                        i = 1;
+                    }
+                    continue;
+                }
+                boolean exclude = false;
+                for ( Node operand : excluded ) {
+                    if ( operand.advance(candidate) == candidate ) {
+                        exclude = true;
+                        break;
+                    }
+                }
+                if ( !exclude ) {
+                    break;
+                }
+                candidate = required[0].advance(candidate + 1);
+                i = 1;
+            }
+            return movie = candidate;
+        }
+
+        long cost () {
+            return required[0].cost();
+        }
+    }
+
+    private final RUMDbSearchEngine engine;
+    private final int               movieCount;
+    private String[] tokens;
+    private int      next; // index of the next token to parse
+
+    /*
+     * @param engine the search engine whose words are searched
+     * @param movieCount the number of movies, ids 0 to @movieCount - 1
+     */
+    BooleanSearch (RUMDbSearchEngine engine, int movieCount) {
+        this.engine     = engine;
+        this.movieCount = movieCount;
+    }
+
+    /*
+     * Parses and plans @query.
+     *
+     * @return the root of the query's tree, null if it has only noise words
+     * @throws IllegalArgumentException if @query is malformed
+     */
+    Node parse (String query) {
+        tokens = query.replace("(", " ( ").replace(")", " ) ").trim().split("\\s+");
+        next   = 0;
+        if ( tokens.length == 1 && tokens[0].isEmpty() ) {
+            return null;
+        }
+        Node root = parseOr();
+        if ( next < tokens.length ) {
+            throw new IllegalArgumentException("unexpected " + tokens[next] + " in " + query);
+        }
+        return root;
+    }
+
+    /*
+     * @return the movies of @root, in increasing id order, at most @k of them
+     */
+    int[] collect (Node root, int k) {
+        if ( root == null || k <= 0 ) {
+            return new int[0];
+        }
+        int[] found = new int[Math.min(k, 16)];
+        int count = 0;
+        for ( int m = root.advance(0); m != NO_MORE && count < k; m = root.advance(m + 1) ) {
+            if ( count == found.length ) {
+                found = Arrays.copyOf(found, Math.min(k, count * 2));
+            }
+            found[count++] = m;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private Node parseOr () {
+        ArrayList<Node> operands = new ArrayList<Node>();
+        do {
+            Node operand = parseAnd();
+            if ( operand instanceof OrNode ) { // flatten nested ORs
+                operands.addAll(Arrays.asList(((OrNode) operand).operands));
+            } else if ( operand != null ) {
+                operands.add(operand);
+            }
+        } while ( accept("OR") );
+        if ( operands.size() <= 1 ) {
+            return operands.isEmpty() ? null : operands.get(0);
+        }
+        return or(operands);
+    }
+
+    /*
+     * @return the OR of @operands, a BitmapNode if they all have a bitmap
+     */
+    private Node or (ArrayList<Node> operands) {
+        RoaringBitmap union = null;
+        for ( Node operand : operands ) {
+            RoaringBitmap movies = bitmapOf(operand);
+            if ( movies == null ) {
+                return new OrNode(operands.toArray(new Node[0]));
+            }
+            union = union == null ? movies : RoaringBitmap.or(union, movies);
+        }
+        return union == null ? new OrNode(new Node[0]) : new BitmapNode(union);
+    }
+
+    /*
+     * Replaces the operands of an AND that have a bitmap, and the NOT operands that
+     * have one if any of them do, by the BitmapNode of their combination.
+     */
+    private void combineBitmaps (ArrayList<Node> required, ArrayList<Node> excluded) {
+        RoaringBitmap movies = null;
+        for ( int i = required.size() - 1; i >= 0; i-- ) {
+            RoaringBitmap operand = bitmapOf(required.get(i));
+            if ( operand != null ) {
+                movies = movies == null ? operand : RoaringBitmap.and(movies, operand);
+                required.remove(i);
+            }
+        }
+        if ( movies == null ) {
+            return;
+        }
+        for ( int i = excluded.size() - 1; i >= 0; i-- ) {
+            RoaringBitmap operand = bitmapOf(excluded.get(i));
+            if ( operand != null ) {
+                movies = RoaringBitmap.andNot(movies, operand);
+                excluded.remove(i);
+            }
+        }
+        required.add(new BitmapNode(movies));
+    }
+
+    /*
+     * @return the movies of @node as a bitmap, null if it is too costly to make one
+     */
+    private RoaringBitmap bitmapOf (Node node) {
+        if ( node instanceof BitmapNode ) {
+            return ((BitmapNode) node).movies;
+        }
+        if ( node instanceof TermNode ) {
+            return ((TermNode) node).postings.movieBitmap();
+        }
+        if ( node instanceof AllNode ) {
+            return RoaringBitmap.range(movieCount);
+        }
+        return null;
+    }
+
+    private Node parseAnd () {
+        ArrayList<Node> required = new ArrayList<Node>(), excluded = new ArrayList<Node>();
+        do {
+            if ( accept("NOT") ) {
+                Node operand = parseUnary();
+                if ( operand != null ) {
+                    excluded.add(operand);
+                }
+            } else {
+                Node operand = parseUnary();
+                if ( operand instanceof AndNode ) { // flatten, so all operands are planned together
+                    required.addAll(Arrays.asList(((AndNode) operand).required));
+                    excluded.addAll(Arrays.asList(((AndNode) operand).excluded));
+                } else if ( operand != null ) {
+                    required.add(operand);
+                }
+            }
+        } while ( accept("AND") || next < tokens.length && !tokens[next].equals("OR") && !tokens[next].equals(")") );
+        if ( required.isEmpty() && excluded.isEmpty() ) {
+            return null;
+        }
+        if ( required.size() > 1 ) {
+            required.removeIf(operand -> operand instanceof AllNode); // left by a flattened NOT
+        }
+        if ( required.isEmpty() ) {
+            required.add(new AllNode(movieCount));
+        }
+        combineBitmaps(required, excluded);
+        if ( required.size() == 1 && excluded.isEmpty() ) {
+            return required.get(0);
+        }
+        return new AndNode(required.toArray(new Node[0]), excluded.toArray(new Node[0]));
+    }
+
+    private Node parseUnary () {
+        if ( next == tokens.length ) {
+            throw new IllegalArgumentException("query ends with an operator");
+        }
+        String token = tokens[next++];
+        if ( token.equals("(") ) {
+            Node node = next < tokens.length && tokens[next].equals(")") ? null : parseOr();
+            if ( !accept(")") ) {
+                throw new IllegalArgumentException("missing )");
+            }
+            return node;
+        }
+        if ( token.equals("NOT") ) { // NOT NOT term
+            Node operand = parseUnary();
+            return operand == null ? null : new AndNode(new Node[] { new AllNode(movieCount) }, new Node[] { operand });
+        }
+        if ( token.equals(")") || token.equals("AND") || token.equals("OR") ) {
+            throw new IllegalArgumentException("unexpected " + token);
+        }
+        return term(token);
+    }
+
+    /*
+     * @return the node of a query term, a node matching nothing if no word matches it,
+     * null for a noise word
+     */
+    private Node term (String token) {
+        ArrayList<String> words = new ArrayList<String>();
+        if ( TermDictionary.indexOfWildcard(token) >= 0 || token.lastIndexOf('~') > 0 ) {
+            words = engine.expandTerm(token.toLowerCase());
+        } else {
+            String word = engine.isWord(token);
+            if ( word == null ) {
+                return null;
+            }
+            words.add(word);
+        }
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for ( String word : words ) {
+            WordOccurrence occ = engine.getWordOccurrence(word);
+            if ( occ != null ) {
+                nodes.add(new TermNode(occ.getPostings()));
+            }
+        }
+        if ( nodes.size() == 1 ) {
+            return nodes.get(0);
+        }
+        return new OrNode(nodes.toArray(new Node[0])); // no operands matches nothing
+    }
+
+    private boolean accept (String token) {
+        if ( next < tokens.length && tokens[next].equals(token) ) {
+            next++;
+            return true;
+        }
+        return false;
+    }
+}
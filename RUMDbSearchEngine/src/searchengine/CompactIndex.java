@@ -0,0 +1,428 @@
+package searchengine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Memory compact alternative to the chained WordOccurrence hash table.
+ *
+ * Words are interned into term ids and stored in an open addressing table with
+ * linear probing over parallel int arrays (hash, term id). The postings of each term
+ * are kept in a compressed PostingList that refers to movies by id, so a posting
+ * costs a couple of bytes instead of a Location object plus a list reference.
+ *
+ * The table grows incrementally: when it becomes too full a table twice as large is
+ * allocated and every following insert moves a few slots of the old table into it.
+ * Lookups consult both tables until the move is complete, so no single insert pays
+ * for a full rehash.
+ *
+ * A single thread inserts while any number of threads look words up. Slots are never
+ * cleared (the old table is only dropped once every slot has been copied), the pair
+ * of tables is swapped as one immutable Slots object, and every insert ends with a
+ * write to the volatile published counter that lookups read first. A lookup racing
+ * with an insert may miss the word being inserted, never one inserted before.
+ *
+ * Given an OffHeapArena, the index keeps its words and postings outside the Java heap:
+ * each word as its length and chars in the arena, each posting list in blocks of it.
+ * What remains on the heap is the slot arrays, the address of every word and a
+ * PostingList handle per word.
+ *
+ */
+public class CompactIndex {
+
+    private static final double MAX_LOAD     = 0.5; // resize when terms/slots exceeds this
+    private static final int    MIGRATE_STEP = 16;  // old slots moved per insert while resizing
+
+    /*
+     * The current table and, during a resize, the table being drained.
+     */
+    private static class Slots {
+        final int[] hashes;    // hash of the term stored at each slot
+        final int[] terms;     // term id + 1 at each slot, 0 marks an empty slot
+        final int[] oldHashes; // table being drained during a resize, null otherwise
+        final int[] oldTerms;
+
+        Slots (int[] hashes, int[] terms, int[] oldHashes, int[] oldTerms) {
+            this.hashes    = hashes;
+            this.terms     = terms;
+            this.oldHashes = oldHashes;
+            this.oldTerms  = oldTerms;
+        }
+    }
+
+    private volatile Slots slots;
+    private int            migrated;  // number of old slots already moved
+    private volatile int   published; // incremented after every insert
+    private volatile int   publishedTerms; // termCount as of the last insert completed
+
+    private String[]      terms;     // words indexed by term id, null when off-heap
+    private long[]        addresses; // address + 1 of each word in arena, by term id, when off-heap
+    private PostingList[] postings;  // postings indexed by term id
+    private int           termCount; // the number of unique words in the table
+    private final OffHeapArena arena; // holds the words and postings, null to keep them on the heap
+
+    /*
+     * @param capacity initial number of slots, rounded up to a power of two
+     */
+    public CompactIndex (int capacity) {
+        this(capacity, null);
+    }
+
+    /*
+     * @param capacity initial number of slots, rounded up to a power of two
+     * @param arena where to store the words and postings, null for the heap
+     */
+    CompactIndex (int capacity, OffHeapArena arena) {
+        int size   = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots      = new Slots(new int[size], new int[size], null, null);
+        this.arena = arena;
+        if ( arena == null ) {
+            terms = new String[16];
+        } else {
+            addresses = new long[16];
+        }
+        postings = new PostingList[16];
+    }
+
+    /*
+     * Spreads the bits of the word's hash code so that the low bits used to pick a
+     * slot depend on the whole code.
+     */
+    private static int hash (String word) {
+        int h = word.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Probes @hashes/@ids for @word.
+     * @return the term id, or -1 if the word is not in the table
+     */
+    private int probe (int[] hashes, int[] ids, String word, int h) {
+        int mask = ids.length - 1;
+        for ( int i = h & mask; ids[i] != 0; i = (i + 1) & mask ) {
+            if ( hashes[i] == h && matches(ids[i] - 1, word) ) {
+                return ids[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * @return true if term @id is @word
+     */
+    private boolean matches (int id, String word) {
+        // a term being inserted by another thread may not be visible yet
+        if ( arena == null ) {
+            String[] words = terms;
+            return id < words.length && word.equals(words[id]);
+        }
+        long[] a = addresses;
+        if ( id >= a.length || a[id] == 0 ) {
+            return false;
+        }
+        ByteBuffer chunk = arena.chunk(a[id] - 1);
+        int offset = OffHeapArena.offset(a[id] - 1);
+        if ( chunk.getInt(offset) != word.length() ) {
+            return false;
+        }
+        for ( int i = 0; i < word.length(); i++ ) {
+            if ( chunk.getChar(offset + 4 + 2 * i) != word.charAt(i) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * @return the word of term @id
+     */
+    private String term (int id) {
+        if ( arena == null ) {
+            return terms[id];
+        }
+        ByteBuffer chunk = arena.chunk(addresses[id] - 1);
+        int offset = OffHeapArena.offset(addresses[id] - 1);
+        char[] chars = new char[chunk.getInt(offset)];
+        for ( int i = 0; i < chars.length; i++ ) {
+            chars[i] = chunk.getChar(offset + 4 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    /*
+     * Places term @id in the first free slot of @hashes/@ids.
+     */
+    private static void place (int[] hashes, int[] ids, int h, int id) {
+        int mask = ids.length - 1;
+        int i = h & mask;
+        while ( ids[i] != 0 ) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = h;
+        ids[i]    = id + 1;
+    }
+
+    /*
+     * Looks @word up in the current table, then in the table being drained.
+     */
+    private int find (Slots s, String word, int h) {
+        int id = probe(s.hashes, s.terms, word, h);
+        if ( id == -1 && s.oldTerms != null ) {
+            id = probe(s.oldHashes, s.oldTerms, word, h);
+        }
+        return id;
+    }
+
+    /*
+     * Returns the term id of @word.
+     * @param word the word
+     * @return the term id, or -1 if the word has not been inserted
+     */
+    public int getTermId (String word) {
+        // reading published first makes every completed insert visible
+        return published == 0 ? -1 : find(slots, word, hash(word));
+    }
+
+    /*
+     * Adds an occurrence of @word in movie @movieId at @position, adding the word to
+     * the table if it is not present.
+     *
+     * @param word the word
+     * @param movieId id of the movie (see MovieDictionary)
+     * @param position the word's position in the movie's description
+     */
+    public void insert (String word, int movieId, int position) {
+        Slots s = slots;
+        int id = termId(s, word);
+        postings[id].add(movieId, position);
+        grow(s);
+    }
+
+    /*
+     * Adds every posting of @list to @word. If the word is not present @list itself
+     * becomes its posting list.
+     *
+     * @param word the word
+     * @param list postings whose movie ids are not smaller than the word's last one
+     */
+    public void insertAll (String word, PostingList list) {
+        Slots s = slots;
+        int h  = hash(word);
+        int id = find(s, word, h);
+        if ( id == -1 ) {
+            if ( arena != null ) {
+                PostingList copy = new PostingList(arena);
+                copy.addAll(list);
+                list = copy;
+            }
+            id = newTerm(word, list);
+            place(s.hashes, s.terms, h, id);
+        } else {
+            postings[id].addAll(list);
+        }
+        grow(s);
+    }
+
+    /*
+     * @return the term id of @word, adding it to the table if it is not present
+     */
+    private int termId (Slots s, String word) {
+        int h  = hash(word);
+        int id = find(s, word, h);
+        if ( id == -1 ) {
+            id = newTerm(word, arena == null ? new PostingList() : new PostingList(arena));
+            place(s.hashes, s.terms, h, id);
+        }
+        return id;
+    }
+
+    /*
+     * Continues or starts an incremental resize after an insert, then publishes it.
+     */
+    private void grow (Slots s) {
+        if ( s.oldTerms != null ) {
+            migrate(s, MIGRATE_STEP);
+        } else if ( termCount > MAX_LOAD * s.terms.length ) {
+            int size = s.terms.length * 2;
+            migrated = 0;
+            slots    = new Slots(new int[size], new int[size], s.hashes, s.terms);
+        }
+        publishedTerms = termCount;
+        published++;
+    }
+
+    /*
+     * Grows the table at once to hold @terms words without resizing, finishing any
+     * resize in progress, so that inserting a file whose vocabulary was estimated
+     * beforehand (see RUMDbSearchEngine.bulkLoad) does not go through one doubling
+     * after another.
+     *
+     * @param terms the number of words the table is to hold
+     */
+    void reserve (long terms) {
+        Slots s = slots;
+        int size = s.terms.length;
+        while ( terms > MAX_LOAD * size && size < 1 << 30 ) {
+            size *= 2;
+        }
+        if ( size == s.terms.length && s.oldTerms == null ) {
+            return;
+        }
+        int[] hashes = new int[size];
+        int[] ids    = new int[size];
+        for ( int id = 0; id < termCount; id++ ) {
+            place(hashes, ids, hash(term(id)), id);
+        }
+        slots = new Slots(hashes, ids, null, null);
+        publishedTerms = termCount;
+        published++;
+    }
+
+    private int newTerm (String word, PostingList list) {
+        if ( termCount == postings.length ) {
+            postings = Arrays.copyOf(postings, termCount * 2);
+            if ( arena == null ) {
+                terms = Arrays.copyOf(terms, termCount * 2);
+            } else {
+                addresses = Arrays.copyOf(addresses, termCount * 2);
+            }
+        }
+        postings[termCount] = list;
+        if ( arena == null ) {
+            terms[termCount] = word;
+        } else {
+            long address = arena.allocate(4 + 2 * word.length());
+            ByteBuffer chunk = arena.chunk(address);
+            int offset = OffHeapArena.offset(address);
+            chunk.putInt(offset, word.length());
+            for ( int i = 0; i < word.length(); i++ ) {
+                chunk.putChar(offset + 4 + 2 * i, word.charAt(i));
+            }
+            addresses[termCount] = address + 1;
+        }
+        return termCount++;
+    }
+
+    /*
+     * Moves up to @steps slots of the old table into the current one.
+     */
+    private void migrate (Slots s, int steps) {
+        int end = Math.min(s.oldTerms.length, migrated + steps);
+        for ( ; migrated < end; migrated++ ) {
+            if ( s.oldTerms[migrated] != 0 ) {
+                place(s.hashes, s.terms, s.oldHashes[migrated], s.oldTerms[migrated] - 1);
+            }
+        }
+        if ( migrated == s.oldTerms.length ) {
+            slots = new Slots(s.hashes, s.terms, null, null);
+        }
+    }
+
+    /*
+     * Wraps the postings of term @id in a WordOccurrence whose movie ids refer to
+     * @movies.
+     */
+    private WordOccurrence toWordOccurrence (int id, MovieDictionary movies) {
+        return new WordOccurrence(term(id), postings[id], movies);
+    }
+
+    /*
+     * @param id a term id smaller than getTermCount()
+     * @param movies dictionary used to translate movie ids back into titles
+     * @return the word and postings of term @id
+     */
+    WordOccurrence getWordOccurrence (int id, MovieDictionary movies) {
+        return toWordOccurrence(id, movies);
+    }
+
+    /*
+     * Find the postings of @word as a WordOccurrence object.
+     *
+     * @param word search target
+     * @param movies dictionary used to translate movie ids back into titles
+     * @return @word WordOccurrence object, or null if the word is not present
+     */
+    public WordOccurrence getWordOccurrence (String word, MovieDictionary movies) {
+        int id = getTermId(word);
+        if ( id == -1 ) {
+            return null;
+        }
+        PostingList[] lists = postings;
+        if ( id >= lists.length || lists[id] == null ) {
+            return null; // still being inserted by another thread
+        }
+        return new WordOccurrence(word, lists[id], movies);
+    }
+
+    /*
+     * @return the number of unique words
+     */
+    public int getTermCount () {
+        return termCount;
+    }
+
+    /*
+     * @return the words of every completed insert, in term id order from id @from on.
+     * Unlike the other methods listing terms, it may be called while another thread
+     * inserts.
+     */
+    ArrayList<String> words (int from) {
+        int count = publishedTerms; // reading it first makes the words of completed inserts visible
+        ArrayList<String> words = new ArrayList<String>(Math.max(0, count - from));
+        for ( int id = from; id < count; id++ ) {
+            words.add(term(id));
+        }
+        return words;
+    }
+
+    /*
+     * @return true if the words and postings are stored outside the Java heap
+     */
+    public boolean isOffHeap () {
+        return arena != null;
+    }
+
+    /*
+     * @return the bytes of memory held outside the Java heap, 0 unless off-heap
+     */
+    public long getOffHeapBytes () {
+        return arena == null ? 0 : arena.getReservedBytes();
+    }
+
+    /*
+     * @return the bytes of the words and postings stored outside the Java heap, blocks
+     * abandoned by growing posting lists included
+     */
+    public long getOffHeapAllocatedBytes () {
+        return arena == null ? 0 : arena.getAllocatedBytes();
+    }
+
+    /*
+     * @return the number of slots in the current table
+     */
+    public int getCapacity () {
+        return slots.terms.length;
+    }
+
+    /*
+     * Prints every non empty slot of the table.
+     */
+    public void print (MovieDictionary movies) {
+        Slots s = slots;
+        for ( int i = 0; i < s.terms.length; i++ ) {
+            if ( s.terms[i] != 0 ) {
+                StdOut.printf("[%d]->", i);
+                StdOut.println(toWordOccurrence(s.terms[i] - 1, movies).toString());
+            }
+        }
+        if ( s.oldTerms != null ) {
+            for ( int i = migrated; i < s.oldTerms.length; i++ ) {
+                if ( s.oldTerms[i] != 0 ) {
+                    StdOut.printf("[old %d]->", i);
+                    StdOut.println(toWordOccurrence(s.oldTerms[i] - 1, movies).toString());
+                }
+            }
+        }
+    }
+}
@@ -12,8 +12,11 @@ public class Driver {
         String noiseWordsFile = "noisewords.txt";
         
         RUMDbSearchEngine rudb = new RUMDbSearchEngine(hashTableSize, threshold, noiseWordsFile);
+        SearchStats stats = new SearchStats();
+        rudb.setMetricsSink(stats);
+        rudb.setDocumentStore(new DocumentStore());
 		rudb.insertMoviesIntoHashTable(inputFile);
-        rudb.print();
+        rudb.printStats();
 
         String word1 = "tragic";
         String word2 = "love";
@@ -28,8 +31,11 @@ public class Driver {
                 System.out.println(s.getTitle()+"\t["+s.getMinDistance()+"]"); 
             }
             System.out.println(als.size());
+            String snippet = rudb.snippet(als.get(0), 5);
+            StdOut.println(als.get(0).getTitle() + (snippet != null ? ": " + snippet : ""));
         } else {
             StdOut.println("There are no movies with the words " + word1 + " and " + word2 + " at their description.");
         }
+        StdOut.print(stats);
 	}
 }
@@ -0,0 +1,163 @@
+package searchengine;
+
+import java.security.SecureRandom;
+
+/*
+ * How RUMDbSearchEngine's chained hash table maps a word to a bucket:
+ *
+ *      MODULO    the original function: |case-insensitive String hash| % size, for any
+ *                size. Kept as the default so that a table of a given size lays its
+ *                words out as it always has (see print()).
+ *      MIXED     String.hashCode, cached by each String, run through the MurmurHash3
+ *                finalizer, which spreads every input bit over the whole hash, then
+ *                masked to a power of two table size. No division, and short words
+ *                that differ in one letter (whose String hashes differ only in their
+ *                low bits) land in unrelated buckets.
+ *      sipHash() SipHash-2-4 of the word with a random 128 bit key, on a power of two
+ *                table. Words with equal String hashes are trivial to generate ("an"
+ *                and "c0" collide, and so does any concatenation of them), so movie
+ *                data written to flood one bucket makes every insert and lookup scan
+ *                a chain of all of them with MODULO or MIXED; without the key the
+ *                collisions of SipHash cannot be predicted.
+ *
+ * A strategy decides the table sizes it supports with tableSize; the engine only ever
+ * doubles them.
+ *
+ */
+public abstract class HashStrategy {
+
+    public static final HashStrategy MODULO = new Modulo();
+    public static final HashStrategy MIXED  = new Mixed();
+
+    /*
+     * @return SipHash-2-4 with a key drawn from a SecureRandom
+     */
+    public static HashStrategy sipHash () {
+        SecureRandom random = new SecureRandom();
+        return new SipHash(random.nextLong(), random.nextLong());
+    }
+
+    /*
+     * @return SipHash-2-4 with the key (@k0, @k1), for reproducible layouts
+     */
+    public static HashStrategy sipHash (long k0, long k1) {
+        return new SipHash(k0, k1);
+    }
+
+    /*
+     * @param requested the table size asked for, at least 1
+     * @return the table size to use instead
+     */
+    public abstract int tableSize (int requested);
+
+    /*
+     * @param word the word
+     * @param size a table size returned by tableSize, or a multiple of it by a power of two
+     * @return the bucket of @word, from 0 to @size - 1
+     */
+    public abstract int index (String word, int size);
+
+    private static int powerOfTwo (int requested) {
+        return requested <= 1 ? 1 : Integer.highestOneBit(requested - 1) << 1;
+    }
+
+    private static class Modulo extends HashStrategy {
+        public int tableSize (int requested) {
+            return requested;
+        }
+
+        public int index (String word, int size) {
+            int index = Math.abs(WordNormalizer.hash(word)) % size;
+            return index < 0 ? index + size : index; // Math.abs(Integer.MIN_VALUE) is negative
+        }
+
+        public String toString () {
+            return "modulo";
+        }
+    }
+
+    private static class Mixed extends HashStrategy {
+        public int tableSize (int requested) {
+            return powerOfTwo(requested);
+        }
+
+        public int index (String word, int size) {
+            int h = word.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            h ^= h >>> 16;
+            return h & (size - 1);
+        }
+
+        public String toString () {
+            return "mixed";
+        }
+    }
+
+    private static class SipHash extends HashStrategy {
+        private final long k0, k1;
+
+        SipHash (long k0, long k1) {
+            this.k0 = k0;
+            this.k1 = k1;
+        }
+
+        public int tableSize (int requested) {
+            return powerOfTwo(requested);
+        }
+
+        public int index (String word, int size) {
+            long h = hash(word);
+            return (int) (h ^ (h >>> 32)) & (size - 1);
+        }
+
+        /*
+         * SipHash-2-4 of the UTF-16LE bytes of @word: four chars per 64 bit block, the
+         * last block holding the remaining chars and the byte length in its top byte.
+         */
+        long hash (String word) {
+            long v0 = 0x736F6D6570736575L ^ k0;
+            long v1 = 0x646F72616E646F6DL ^ k1;
+            long v2 = 0x6C7967656E657261L ^ k0;
+            long v3 = 0x7465646279746573L ^ k1;
+            int n = word.length();
+            for ( int i = 0; i <= n; i += 4 ) {
+                long m;
+                if ( i + 4 <= n ) {
+                    m = word.charAt(i) | (long) word.charAt(i + 1) << 16
+                        | (long) word.charAt(i + 2) << 32 | (long) word.charAt(i + 3) << 48;
+                } else {
+                    m = (long) (2 * n & 0xFF) << 56;
+                    for ( int j = i, shift = 0; j < n; j++, shift += 16 ) {
+                        m |= (long) word.charAt(j) << shift;
+                    }
+                }
+                v3 ^= m;
+                for ( int round = 0; round < 2; round++ ) {
+                    v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                    v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                    v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                    v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+                }
+                v0 ^= m;
+                if ( i + 4 > n ) {
+                    break; // the last block was the length block
+                }
+            }
+            v2 ^= 0xFF;
+            for ( int round = 0; round < 4; round++ ) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            return v0 ^ v1 ^ v2 ^ v3;
+        }
+
+        public String toString () {
+            return "siphash";
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package searchengine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A histogram of non-negative long values, such as latencies in nanoseconds, with a
+ * bounded relative error, in the manner of HdrHistogram.
+ *
+ * Values below 128 have a bucket each. Above, each power of two [2^e, 2^(e+1)) is
+ * split into 64 equal buckets, so a value is known to within 1/64 (1.6%) whatever
+ * its magnitude, and 2304 buckets cover every value up to 2^40 (18 minutes in
+ * nanoseconds); larger values are counted in the last bucket. Recording a value is a
+ * few shifts and an atomic increment, and any number of threads may record at once.
+ *
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKETS = 64;          // buckets per power of two
+    private static final int MAX_EXPONENT = 40;         // values from 2^40 go in the last bucket
+    private static final int BUCKETS = (MAX_EXPONENT - 6) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder       count  = new LongAdder();
+    private final LongAdder       sum    = new LongAdder();
+    private final AtomicLong      max    = new AtomicLong();
+
+    /*
+     * @return the bucket of @value: values below 128 are their own bucket; above, e is
+     * the number of low bits dropped to keep the value's top 7 bits (64 to 127)
+     */
+    private static int bucket (long value) {
+        if ( value < 2 * SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(value) - 6;
+        if ( e >= MAX_EXPONENT - 6 ) {
+            return BUCKETS - 1;
+        }
+        return e * SUB_BUCKETS + (int) (value >>> e);
+    }
+
+    /*
+     * @return the largest value of bucket @index
+     */
+    private static long highestValue (int index) {
+        if ( index < 2 * SUB_BUCKETS ) {
+            return index;
+        }
+        int e = index / SUB_BUCKETS - 1;
+        return ((long) (index - e * SUB_BUCKETS + 1) << e) - 1;
+    }
+
+    /*
+     * Counts an occurrence of @value; negative values are counted as 0.
+     */
+    public void record (long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        if ( value > max.get() ) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /*
+     * @return the number of values recorded
+     */
+    public long getCount () {
+        return count.sum();
+    }
+
+    /*
+     * @return the mean of the values recorded, 0 if there are none
+     */
+    public double getMean () {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /*
+     * @return the largest value recorded
+     */
+    public long getMax () {
+        return max.get();
+    }
+
+    /*
+     * @param percentile between 0 and 100
+     * @return a value that @percentile percent of the recorded values do not exceed,
+     * rounded up to the end of its bucket; 0 if there are no values
+     */
+    public long getValueAtPercentile (double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += snapshot[i];
+            if ( seen >= rank ) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,394 @@
+package searchengine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * An immutable index stored in a file: the movie titles, the words and the encoded
+ * PostingList of every word.
+ *
+ * The file is mapped into memory when opened. Nothing is read up front besides the
+ * header: words are found with an open addressing table stored in the file, and
+ * postings and titles are decoded straight from the mapped pages, so opening takes
+ * the same time whatever the size of the index. The file holds no skip pointers: the
+ * PostingList of a term gets them when it is first asked for, and is kept.
+ *
+ * File layout (big endian ints, offsets from the start of the file):
+ *
+ *      header       magic, version, movie count, term count, slot count, the offset
+ *                   of each section, file length, total description length, CRC32 of
+ *                   everything after the header, CRC32 of the header
+ *      lengths      int[movies] description length of each movie
+ *      titles       int[movies + 1] start of each title, then the UTF-8 titles
+ *      slots        int[slots] term id + 1 of the word hashed to each slot (linear
+ *                   probing), 0 for an empty slot
+ *      terms        for each term: word start, word length, postings start, postings
+ *                   length, number of postings, number of movies, highest number of
+ *                   postings of one movie; then the UTF-8 words
+ *      postings     the encoded postings of every term
+ *
+ * The header is checked when the segment is opened. Checking the body needs a full
+ * read of the file, so it is left to verify().
+ *
+ */
+public class IndexSegment {
+
+    private static final int MAGIC        = 0x52554D44; // "RUMD"
+    private static final int VERSION      = 2;
+    private static final int HEADER_BYTES = 56;
+    private static final int TERM_BYTES   = 28;
+
+    private final MappedByteBuffer buffer;
+    private final int movieCount;
+    private final int termCount;
+    private final int slotCount;
+    private final int lengthsOffset;
+    private final long totalLength;
+    private final int titlesOffset;   // title starts, followed by the title bytes
+    private final int slotsOffset;    // slots, followed by the terms and the word bytes
+    private final int termsOffset;
+    private final int wordsOffset;
+    private final int postingsOffset;
+    private final int bodyChecksum;
+    private final MovieDictionary movies;
+    private final AtomicReferenceArray<PostingList> postings; // views made so far, by term id
+
+    private IndexSegment (MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if ( buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC ) {
+            throw new IOException("not a RUMDb index segment");
+        }
+        if ( buffer.getInt(4) != VERSION ) {
+            throw new IOException("unsupported index segment version " + buffer.getInt(4));
+        }
+        CRC32 crc = new CRC32();
+        for ( int i = 0; i < HEADER_BYTES - 4; i++ ) {
+            crc.update(buffer.get(i));
+        }
+        if ( (int) crc.getValue() != buffer.getInt(HEADER_BYTES - 4) ) {
+            throw new IOException("corrupt index segment header");
+        }
+        if ( buffer.getInt(32) != buffer.capacity() ) {
+            throw new IOException("truncated index segment");
+        }
+        movieCount     = buffer.getInt(8);
+        termCount      = buffer.getInt(12);
+        slotCount      = buffer.getInt(16);
+        titlesOffset   = buffer.getInt(20);
+        slotsOffset    = buffer.getInt(24);
+        postingsOffset = buffer.getInt(28);
+        lengthsOffset  = buffer.getInt(36);
+        totalLength    = buffer.getLong(40);
+        bodyChecksum   = buffer.getInt(48);
+        termsOffset    = slotsOffset + 4 * slotCount;
+        wordsOffset    = termsOffset + TERM_BYTES * termCount;
+        movies         = new Titles();
+        postings       = new AtomicReferenceArray<PostingList>(termCount);
+    }
+
+    /*
+     * Maps an index segment file.
+     *
+     * @param segmentFile a file written by write()
+     * @return the segment
+     * @throws IOException if the file cannot be read, or its header is not a valid
+     * segment header
+     */
+    public static IndexSegment open (String segmentFile) throws IOException {
+        try ( FileChannel channel = FileChannel.open(Paths.get(segmentFile), StandardOpenOption.READ) ) {
+            if ( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException("index segment larger than 2 GB");
+            }
+            // the mapping stays valid after the channel is closed
+            return new IndexSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /*
+     * Writes an index segment file.
+     *
+     * @param segmentFile the file to write, replaced if it exists
+     * @param movies titles of the movies the postings refer to
+     * @param words the words, with no duplicates
+     * @param postings the postings of each word of @words
+     */
+    public static void write (String segmentFile, MovieDictionary movies, ArrayList<String> words,
+                              ArrayList<PostingList> postings) throws IOException {
+
+        int termCount = words.size();
+        int slotCount = Integer.highestOneBit(Math.max(2, 2 * termCount - 1)) << 1; // load <= 0.5
+        byte[][] titles = new byte[movies.size()][];
+        long titleBytes = 0, totalLength = 0;
+        for ( int i = 0; i < titles.length; i++ ) {
+            totalLength += movies.getLength(i);
+            titles[i] = movies.getTitle(i).getBytes(StandardCharsets.UTF_8);
+            titleBytes += titles[i].length;
+        }
+        byte[][] wordBytes = new byte[termCount][];
+        int[] slots = new int[slotCount];
+        long wordsLength = 0, postingsLength = 0;
+        for ( int id = 0; id < termCount; id++ ) {
+            wordBytes[id] = words.get(id).getBytes(StandardCharsets.UTF_8);
+            wordsLength += wordBytes[id].length;
+            postingsLength += postings.get(id).getByteSize();
+            int i = hash(words.get(id)) & (slotCount - 1);
+            while ( slots[i] != 0 ) {
+                i = (i + 1) & (slotCount - 1);
+            }
+            slots[i] = id + 1;
+        }
+        long titlesOffset   = HEADER_BYTES + 4L * titles.length;
+        long slotsOffset    = titlesOffset + 4L * (titles.length + 1) + titleBytes;
+        long postingsOffset = slotsOffset + 4L * slotCount + (long) TERM_BYTES * termCount + wordsLength;
+        long length         = postingsOffset + postingsLength;
+        if ( length > Integer.MAX_VALUE ) {
+            throw new IOException("index segment larger than 2 GB");
+        }
+
+        try ( FileChannel channel = FileChannel.open(Paths.get(segmentFile), StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+            channel.position(HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            for ( int i = 0; i < titles.length; i++ ) {
+                out.writeInt(movies.getLength(i));
+            }
+            int start = 0;
+            for ( byte[] title : titles ) {
+                out.writeInt(start);
+                start += title.length;
+            }
+            out.writeInt(start);
+            for ( byte[] title : titles ) {
+                out.write(title);
+            }
+            for ( int slot : slots ) {
+                out.writeInt(slot);
+            }
+            int wordStart = 0, postingsStart = 0;
+            for ( int id = 0; id < termCount; id++ ) {
+                PostingList list = postings.get(id);
+                out.writeInt(wordStart);
+                out.writeInt(wordBytes[id].length);
+                out.writeInt(postingsStart);
+                out.writeInt(list.getByteSize());
+                out.writeInt(list.size());
+                out.writeInt(list.getMovieCount());
+                out.writeInt(list.getMaxTermFrequency());
+                wordStart += wordBytes[id].length;
+                postingsStart += list.getByteSize();
+            }
+            for ( byte[] word : wordBytes ) {
+                out.write(word);
+            }
+            for ( PostingList list : postings ) {
+                list.writeTo(out);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(titles.length).putInt(termCount).putInt(slotCount)
+                  .putInt((int) titlesOffset).putInt((int) slotsOffset).putInt((int) postingsOffset)
+                  .putInt((int) length).putInt(HEADER_BYTES).putLong(totalLength).putInt((int) crc.getValue());
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(header.array(), 0, HEADER_BYTES - 4);
+            header.putInt((int) headerCrc.getValue());
+            header.flip();
+            while ( header.hasRemaining() ) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /*
+     * Same spreading of String.hashCode as CompactIndex. String.hashCode is part of
+     * the Java specification, so slots stay valid across JVMs.
+     */
+    private static int hash (String word) {
+        int h = word.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Reads the whole file and checks the body checksum.
+     * @return true if the checksum matches
+     */
+    public boolean verify () {
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == bodyChecksum;
+    }
+
+    /*
+     * Returns the term id of @word.
+     * @param word the word
+     * @return the term id, or -1 if the word is not in the segment
+     */
+    public int getTermId (String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        int mask = slotCount - 1;
+        for ( int i = hash(word) & mask; ; i = (i + 1) & mask ) {
+            int id = buffer.getInt(slotsOffset + 4 * i) - 1;
+            if ( id == -1 ) {
+                return -1;
+            }
+            if ( wordEquals(id, bytes) ) {
+                return id;
+            }
+        }
+    }
+
+    private boolean wordEquals (int id, byte[] bytes) {
+        int entry = termsOffset + TERM_BYTES * id;
+        if ( buffer.getInt(entry + 4) != bytes.length ) {
+            return false;
+        }
+        int start = wordsOffset + buffer.getInt(entry);
+        for ( int i = 0; i < bytes.length; i++ ) {
+            if ( buffer.get(start + i) != bytes[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * @param id a term id
+     * @return the word of term @id
+     */
+    public String getTerm (int id) {
+        int entry = termsOffset + TERM_BYTES * id;
+        return decode(wordsOffset + buffer.getInt(entry), buffer.getInt(entry + 4));
+    }
+
+    /*
+     * @param id a term id
+     * @return a read-only PostingList over the mapped postings of term @id, with skip
+     * pointers. It is made on the first call for the term, which decodes the postings
+     * once to find the skip pointers, and then shared by every later call.
+     */
+    public PostingList getPostings (int id) {
+        PostingList list = postings.get(id);
+        if ( list == null ) {
+            int entry = termsOffset + TERM_BYTES * id;
+            list = new PostingList(buffer, postingsOffset + buffer.getInt(entry + 8), buffer.getInt(entry + 12),
+                                   buffer.getInt(entry + 16), buffer.getInt(entry + 20),
+                                   buffer.getInt(entry + 24)).withSkips();
+            if ( !postings.compareAndSet(id, null, list) ) {
+                list = postings.get(id); // made by another thread at the same time
+            }
+        }
+        return list;
+    }
+
+    /*
+     * Find the postings of @word as a WordOccurrence object.
+     *
+     * @param word search target
+     * @return @word WordOccurrence object, or null if the word is not in the segment
+     */
+    public WordOccurrence getWordOccurrence (String word) {
+        int id = getTermId(word);
+        return id == -1 ? null : new WordOccurrence(word, getPostings(id), movies);
+    }
+
+    private String decode (int start, int length) {
+        byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; i++ ) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * @return the titles of the movies, decoded from the file when asked for
+     */
+    public MovieDictionary getMovies () {
+        return movies;
+    }
+
+    /*
+     * @return the number of unique words
+     */
+    public int getTermCount () {
+        return termCount;
+    }
+
+    /*
+     * @return the number of slots of the word table
+     */
+    public int getCapacity () {
+        return slotCount;
+    }
+
+    /*
+     * Prints every non empty slot of the word table.
+     */
+    public void print () {
+        for ( int i = 0; i < slotCount; i++ ) {
+            int id = buffer.getInt(slotsOffset + 4 * i) - 1;
+            if ( id != -1 ) {
+                StdOut.printf("[%d]->", i);
+                StdOut.println(new WordOccurrence(getTerm(id), getPostings(id), movies).toString());
+            }
+        }
+    }
+
+    /*
+     * Read-only MovieDictionary over the titles section.
+     */
+    private class Titles extends MovieDictionary {
+
+        public int addMovie (String title) {
+            throw new IllegalStateException("index segment is read-only");
+        }
+
+        public int resolve (String title) {
+            throw new IllegalStateException("index segment is read-only");
+        }
+
+        public String getTitle (int id) {
+            if ( id < 0 || id >= movieCount ) {
+                throw new IndexOutOfBoundsException("movie id " + id);
+            }
+            int start = buffer.getInt(titlesOffset + 4 * id);
+            int end   = buffer.getInt(titlesOffset + 4 * (id + 1));
+            return decode(titlesOffset + 4 * (movieCount + 1) + start, end - start);
+        }
+
+        public int size () {
+            return movieCount;
+        }
+
+        public void updateLength (int id, int length) {
+            throw new IllegalStateException("index segment is read-only");
+        }
+
+        public int getLength (int id) {
+            if ( id < 0 || id >= movieCount ) {
+                throw new IndexOutOfBoundsException("movie id " + id);
+            }
+            return buffer.getInt(lengthsOffset + 4 * id);
+        }
+
+        long getTotalLength () {
+            return totalLength;
+        }
+    }
+}
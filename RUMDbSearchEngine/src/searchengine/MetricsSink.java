@@ -0,0 +1,55 @@
+package searchengine;
+
+/*
+ * Receives events from the hot paths of a RUMDbSearchEngine, set with
+ * RUMDbSearchEngine.setMetricsSink. SearchStats keeps them in memory; other sinks can
+ * log them or forward them to a monitoring system. Every method does nothing by
+ * default, so a sink only overrides the events it wants.
+ *
+ * Events are sent on the thread doing the work, rehashes while holding the engine's
+ * insert lock, so a sink must be thread-safe and return quickly. Without a sink the
+ * engine does not even read the clock.
+ *
+ */
+public interface MetricsSink {
+
+    /*
+     * The chained hash table was rehashed.
+     *
+     * @param oldHashSize number of buckets before
+     * @param newHashSize number of buckets after
+     * @param wordCount number of words in the table
+     * @param nanos time the rehash took; inserts wait for it
+     */
+    default void rehashed (int oldHashSize, int newHashSize, int wordCount, long nanos) {
+    }
+
+    /*
+     * A topKSearch (or topTenSearch) returned.
+     *
+     * @param nanos time the search took
+     * @param postingsScanned number of postings read, 0 when answered from the cache
+     */
+    default void searched (long nanos, int postingsScanned) {
+    }
+
+    /*
+     * @return a sink sending every event to each of @sinks, in order
+     */
+    static MetricsSink of (MetricsSink... sinks) {
+        MetricsSink[] copy = sinks.clone();
+        return new MetricsSink() {
+            public void rehashed (int oldHashSize, int newHashSize, int wordCount, long nanos) {
+                for ( MetricsSink sink : copy ) {
+                    sink.rehashed(oldHashSize, newHashSize, wordCount, nanos);
+                }
+            }
+
+            public void searched (long nanos, int postingsScanned) {
+                for ( MetricsSink sink : copy ) {
+                    sink.searched(nanos, postingsScanned);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+package searchengine;
+
+import java.util.Arrays;
+
+/*
+ * This class assigns an integer id to every movie added to the search engine, so that
+ * postings can refer to a movie by id instead of holding a reference to its title.
+ *
+ * Ids are handed out in insertion order starting at 0. Each movie record gets its own
+ * id, even if another movie with the same title was added before.
+ *
+ * The dictionary also records the length of each description (the number of words,
+ * noise words included), which relevance scoring normalizes term frequencies by.
+ *
+ * Movies are added by a single writer. A reader may call getTitle for any id it found
+ * in a PostingList: the title was added before the posting was published. The arrays
+ * are grown by filling a copy and then publishing it through a volatile field, so a
+ * reader racing a grow sees either array with every title added before.
+ *
+ */
+public class MovieDictionary {
+
+    private volatile String[] titles;      // titles indexed by movie id
+    private volatile int[]    lengths;     // description lengths indexed by movie id
+    private volatile int      size;        // number of movies, written after their title
+    private long              totalLength; // sum of lengths
+
+    public MovieDictionary () {
+        titles  = new String[16];
+        lengths = new int[16];
+    }
+
+    /*
+     * Adds a new movie record.
+     *
+     * @param title the movie's title
+     * @return the id assigned to the movie
+     */
+    public int addMovie (String title) {
+        int id = size;
+        if ( id == titles.length ) {
+            titles  = Arrays.copyOf(titles, id * 2);
+            lengths = Arrays.copyOf(lengths, id * 2);
+        }
+        titles[id] = title;
+        size = id + 1;
+        return id;
+    }
+
+    /*
+     * Raises the description length of movie @id to @length if it is shorter. Words
+     * inserted one at a time extend the length to their position.
+     *
+     * @param id a movie id
+     * @param length number of words of the description, or a word's position
+     */
+    public void updateLength (int id, int length) {
+        int[] l = lengths;
+        if ( length > l[id] ) {
+            totalLength += length - l[id];
+            l[id] = length;
+        }
+    }
+
+    /*
+     * @param id a movie id
+     * @return the number of words of movie @id's description
+     */
+    public int getLength (int id) {
+        return lengths[id];
+    }
+
+    /*
+     * @return the average description length, 0 if there are no movies
+     */
+    public double getAverageLength () {
+        int n = size();
+        return n == 0 ? 0 : (double) getTotalLength() / n;
+    }
+
+    /*
+     * @return the sum of the description lengths
+     */
+    long getTotalLength () {
+        return totalLength;
+    }
+
+    /*
+     * Returns the id of the movie @title refers to. Consecutive postings for the same
+     * title belong to the same movie record, so @title resolves to the last movie added
+     * when the titles match, and to a new movie record otherwise.
+     *
+     * @param title the movie's title
+     * @return the movie id
+     */
+    public int resolve (String title) {
+        int last = size - 1;
+        if ( last >= 0 && titles[last].equals(title) ) {
+            return last;
+        }
+        return addMovie(title);
+    }
+
+    /*
+     * @param id a movie id
+     * @return the title of movie @id
+     */
+    public String getTitle (int id) {
+        if ( id < 0 || id >= size ) {
+            throw new IndexOutOfBoundsException("movie id " + id);
+        }
+        return titles[id];
+    }
+
+    /*
+     * @return the number of movies
+     */
+    public int size () {
+        return size;
+    }
+}
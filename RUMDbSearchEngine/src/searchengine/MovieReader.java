@@ -0,0 +1,114 @@
+package searchengine;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/*
+ * This class reads a movies file one movie at a time.
+ *
+ * The file format is the one described in RUMDbSearchEngine.readInputFile:
+ *      title| word1 word2 word3;
+ *
+ * Words are separated by whitespace. The title is made of the words up to and
+ * including the first one that contains '|', joined by single spaces, without the
+ * last character (the '|') and in lower case. The description is made of the following
+ * words, in lower case, up to the first word that contains ';': that word is cut
+ * before the ';' (and kept as is), and anything after the ';' is skipped.
+ *
+ * Characters are decoded straight from a buffered file channel, so only the movie
+ * being read is held in memory.
+ *
+ */
+public class MovieReader implements Closeable {
+
+    private final Reader        in;
+    private final StringBuilder token = new StringBuilder();
+    private int                 next;  // next character to examine, -1 at end of file
+
+    /*
+     * Opens @inputFile for reading.
+     * @param inputFile the movies file
+     */
+    public MovieReader (String inputFile) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(inputFile));
+        in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE), -1), 1 << 16);
+        next = in.read();
+    }
+
+    /*
+     * Reads the next movie.
+     *
+     * @return the movie in the format of one readInputFile entry: the title at index 0
+     * followed by the description words, or null at the end of the file.
+     */
+    public ArrayList<String> readMovie () throws IOException {
+        if ( !readToken() ) {
+            return null;
+        }
+        StringBuilder title = new StringBuilder();
+        while ( true ) {
+            boolean last = indexOf('|') != -1;
+            if ( title.length() > 0 ) {
+                title.append(' ');
+            }
+            title.append(token);
+            if ( last || !readToken() ) {
+                break;
+            }
+        }
+        ArrayList<String> movie = new ArrayList<String>();
+        movie.add(title.substring(0, title.length() - 1).toLowerCase());
+
+        while ( readToken() ) {
+            int semicolon = indexOf(';');
+            if ( semicolon != -1 ) {
+                movie.add(token.substring(0, semicolon));
+                break;
+            }
+            movie.add(token.toString().toLowerCase());
+        }
+        return movie;
+    }
+
+    /*
+     * Reads the next whitespace separated word into @token.
+     * @return false at the end of the file
+     */
+    private boolean readToken () throws IOException {
+        while ( next != -1 && Character.isWhitespace(next) ) {
+            next = in.read();
+        }
+        if ( next == -1 ) {
+            return false;
+        }
+        token.setLength(0);
+        while ( next != -1 && !Character.isWhitespace(next) ) {
+            token.append((char) next);
+            next = in.read();
+        }
+        return true;
+    }
+
+    private int indexOf (char c) {
+        for ( int i = 0; i < token.length(); i++ ) {
+            if ( token.charAt(i) == c ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void close () throws IOException {
+        in.close();
+    }
+}
@@ -1,6 +1,7 @@
 package searchengine;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 
 /*
  * This class represents the distance between two searched words from the same movie description.
@@ -10,17 +11,55 @@ import java.util.ArrayList;
 public class MovieSearchResult implements Comparable<MovieSearchResult> {
 
     private String title;                      // title of the movie
+    private int    movieId;                    // id of the movie, -1 when unknown
     private int    minDistance;                // the minimum distance between two locations of wordA and wordB
+    private double score;                      // relevance score of a ranked search, 0 otherwise
     private ArrayList<Integer> wordALocations; // holds wordA's locations in the movie's description.
     private ArrayList<Integer> wordBLocations; // holds wordB's locations int the movie's description.
 
+    /*
+     * Orders results from the greatest distance to the smallest, breaking ties by the
+     * greatest movie id first. Used by the search engine's bounded top-k heaps.
+     */
+    static final Comparator<MovieSearchResult> WORST_FIRST = new Comparator<MovieSearchResult>() {
+        public int compare(MovieSearchResult x, MovieSearchResult y){
+            if ( x.getMinDistance() != y.getMinDistance() ) {
+                return Integer.compare(y.getMinDistance(), x.getMinDistance());
+            }
+            return Integer.compare(y.getMovieId(), x.getMovieId());
+        }
+    };
+
     public MovieSearchResult (String title) {
+        this(title, -1);
+    }
+
+    /*
+     * @title the movie's title
+     * @movieId the movie's id in the search engine's MovieDictionary
+     */
+    MovieSearchResult (String title, int movieId) {
         this.title       = title;
+        this.movieId     = movieId;
         this.minDistance = -1;
         this.wordALocations  = new ArrayList<Integer>();
         this.wordBLocations  = new ArrayList<Integer>();
     }
     
+    /*
+     * Copies a result.
+     * @param swap true to exchange the locations of wordA and wordB
+     * @return a new MovieSearchResult with the same title, distance and score
+     */
+    MovieSearchResult copy(boolean swap){
+        MovieSearchResult msr = new MovieSearchResult(title, movieId);
+        msr.minDistance = minDistance;
+        msr.score       = score;
+        msr.wordALocations.addAll(swap ? wordBLocations : wordALocations);
+        msr.wordBLocations.addAll(swap ? wordALocations : wordBLocations);
+        return msr;
+    }
+
     /*
      * @return movie title
      */ 
@@ -28,6 +67,13 @@ public class MovieSearchResult implements Comparable<MovieSearchResult> {
         return this.title;
     }
 
+    /*
+     * @return movie id, or -1 if the result was not created by the search engine
+     */
+    int getMovieId(){
+        return this.movieId;
+    }
+
     /*
      * Updates the title
      * @title the movie's title that this object refers to
@@ -50,6 +96,20 @@ public class MovieSearchResult implements Comparable<MovieSearchResult> {
         this.minDistance = minDistance;
     }
 
+    /*
+     * @return the relevance score given by RUMDbSearchEngine.rankedSearch
+     */
+    public double getScore(){
+        return this.score;
+    }
+
+    /*
+     * Updates the relevance score
+     */
+    public void setScore(double score){
+        this.score = score;
+    }
+
     /*
      * @return the locations array for wordA 
      */ 
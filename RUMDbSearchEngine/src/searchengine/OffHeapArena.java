@@ -0,0 +1,92 @@
+package searchengine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Memory outside the Java heap for the postings and words of an off-heap search engine
+ * (see RUMDbSearchEngine.offHeap), so that the size of the index does not add to the
+ * work of the garbage collector: the collector sees a handful of direct ByteBuffers,
+ * whatever the number of bytes they hold.
+ *
+ * Memory is taken from direct ByteBuffer chunks of CHUNK_SIZE bytes by bumping an
+ * offset; a block larger than a quarter of a chunk gets a direct buffer of its own.
+ * A block is addressed by a long, the index of its chunk in the high 32 bits and its
+ * offset in the low 32. Blocks are never freed one by one: a posting list that outgrows
+ * its block copies itself to one twice as large and abandons the old one, which may
+ * still be read by a cursor. Since lists double, the abandoned blocks take at most as
+ * much memory as the live ones. The chunks are released when the arena is collected.
+ *
+ * A single thread allocates, under the search engine's insert lock, while any number
+ * of threads read blocks allocated before.
+ *
+ */
+class OffHeapArena {
+
+    static final int CHUNK_SIZE = 1 << 24; // 16 MB
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0]; // replaced, never modified, when one is added
+    private int  used      = CHUNK_SIZE; // bytes allocated in the last shared chunk
+    private int  shared    = -1;         // index of the chunk blocks are carved from
+    private long allocated;              // bytes of every block handed out
+    private long reserved;               // bytes of every chunk
+
+    /*
+     * @param bytes the size of the block, at least 1
+     * @return the address of a new block of @bytes bytes, initially zero
+     */
+    long allocate (int bytes) {
+        allocated += bytes;
+        if ( bytes > CHUNK_SIZE / 4 ) {
+            return address(addChunk(bytes), 0);
+        }
+        if ( used + bytes > CHUNK_SIZE ) {
+            shared = addChunk(CHUNK_SIZE);
+            used   = 0;
+        }
+        long address = address(shared, used);
+        used += bytes;
+        return address;
+    }
+
+    private int addChunk (int size) {
+        ByteBuffer[] c = Arrays.copyOf(chunks, chunks.length + 1);
+        c[c.length - 1] = ByteBuffer.allocateDirect(size);
+        reserved += size;
+        chunks = c;
+        return c.length - 1;
+    }
+
+    private static long address (int chunk, int offset) {
+        return (long) chunk << 32 | offset;
+    }
+
+    /*
+     * @return the chunk holding the block at @address; read it with absolute gets and
+     * puts from offset(@address), as it is shared with every other block of the chunk
+     */
+    ByteBuffer chunk (long address) {
+        return chunks[(int) (address >>> 32)];
+    }
+
+    /*
+     * @return the offset in its chunk of the block at @address
+     */
+    static int offset (long address) {
+        return (int) address;
+    }
+
+    /*
+     * @return the bytes of every block allocated, abandoned ones included
+     */
+    long getAllocatedBytes () {
+        return allocated;
+    }
+
+    /*
+     * @return the bytes of direct memory held by the arena
+     */
+    long getReservedBytes () {
+        return reserved;
+    }
+}
@@ -0,0 +1,605 @@
+package searchengine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/*
+ * This class stores the occurrences (movie id, position) of a word in a compressed
+ * byte array.
+ *
+ * Each posting is written as two variable-byte integers (7 bits per byte, the high bit
+ * set on every byte but the last):
+ *      1. the difference between its movie id and the previous posting's movie id
+ *      2. if the movie id did not change, the zigzag encoded difference between its
+ *         position and the previous position, otherwise the zigzag encoded position.
+ *
+ * Postings must be added in non-decreasing movie id order, which is how MovieDictionary
+ * hands out ids. Within a movie positions are normally increasing, so the typical
+ * posting takes two bytes.
+ *
+ * Postings are read back with a Cursor, which decodes them one at a time without
+ * creating any Location objects.
+ *
+ * Every SKIP_INTERVAL movies, add() also records a skip pointer: the offset of the
+ * movie's first posting and the id of the movie before it, which is all a Cursor needs
+ * to resume decoding there. Cursor.advance gallops over the skip pointers to the last
+ * one before the movie sought, so skipping to a movie far ahead costs O(log movies)
+ * plus at most SKIP_INTERVAL movies decoded, instead of decoding every posting on the
+ * way. A read-only view gets the same skip pointers from withSkips().
+ *
+ * One thread may add postings while other threads read them: add() writes the new
+ * bytes before publishing the new length through a volatile write, and a Cursor reads
+ * the length before the data, so it decodes a consistent prefix of the list. A full
+ * array, of postings or skip pointers, is replaced by a larger copy that is filled
+ * before it is published through a volatile write, so a reader that picks up an array
+ * grown after the length it read still finds that length's bytes in it.
+ *
+ * A list of at least BITMAP_MIN_MOVIES movies, such as that of a common word, also
+ * hands out its movie ids as a RoaringBitmap, built on first use from a full decode and
+ * cached. Once movies are added, the next call decodes only the postings added since
+ * and unites their movies with the cached bitmap, so searches running during a load
+ * pay for the new postings and a copy of the bitmap's containers rather than for the
+ * whole list. Searches intersect and unite those bitmaps 64 movies at a time to find
+ * the candidate movies before decoding any positions. Rarer lists are cheaper to merge
+ * posting by posting than to turn into bitmaps. A read-only view never changes, so
+ * its bitmap is built once; IndexSegment keeps the view of each term it handed out.
+ *
+ * A PostingList can also be a read-only view of postings stored in a ByteBuffer,
+ * such as an IndexSegment file mapped into memory; cursors then decode straight from
+ * the buffer.
+ *
+ * Finally, a list made with an OffHeapArena keeps its postings in a block of the
+ * arena, outside the Java heap, instead of a byte array. A full block is copied to one
+ * twice as large, and the new block is published through a volatile write before the
+ * length that covers it, so a Cursor reading the length first finds its postings in
+ * whichever block it then reads; abandoned blocks are never reused.
+ *
+ */
+public class PostingList {
+
+    private volatile byte[] data;   // encoded postings, null for a read-only view or off-heap list
+    private ByteBuffer      buffer; // encoded postings of a read-only view, from base; the
+                                    // current block's chunk of an off-heap list, for the writer
+    private int             base;   // offset of the first byte of a read-only view or block
+    private volatile int    length; // number of bytes of data in use
+    private OffHeapArena  arena;    // allocates the blocks of an off-heap list, null otherwise
+    private volatile long block;    // address of the current block of an off-heap list
+    private int           capacity; // bytes of the current block
+    private int    size;         // number of postings
+    private int    movieCount;   // number of distinct movies
+    private int    lastCount;    // number of postings of the last movie
+    private int    maxCount;     // largest number of postings of one movie
+    private int    lastMovie;    // movie id of the last posting, -1 when empty
+    private int    lastPosition; // position of the last posting
+    private volatile int[] skips;     // pairs (movie id before, offset) every SKIP_INTERVAL movies
+    private volatile int   skipCount; // number of pairs in use, written after them
+    private volatile MovieBitmap bitmap; // movie ids, cached by movieBitmap()
+
+    private static final int SKIP_INTERVAL = 32;
+    static final int BITMAP_MIN_MOVIES = 1024;
+
+    /*
+     * The movie ids of the first movieCount movies of the list, decoded from its first
+     * end bytes.
+     */
+    private static final class MovieBitmap {
+        final RoaringBitmap movies;
+        final int           movieCount;
+        final int           end;       // bytes of postings decoded
+        final int           lastMovie; // movie of the last posting decoded
+
+        MovieBitmap (RoaringBitmap movies, int movieCount, int end, int lastMovie) {
+            this.movies     = movies;
+            this.movieCount = movieCount;
+            this.end        = end;
+            this.lastMovie  = lastMovie;
+        }
+    }
+
+    public PostingList () {
+        data      = new byte[4];
+        lastMovie = -1;
+    }
+
+    /*
+     * Creates an empty list whose postings are stored in blocks of @arena.
+     */
+    PostingList (OffHeapArena arena) {
+        this.arena     = arena;
+        this.lastMovie = -1;
+        setBlock(arena.allocate(16), 16);
+    }
+
+    private void setBlock (long address, int size) {
+        buffer   = arena.chunk(address);
+        base     = OffHeapArena.offset(address);
+        capacity = size;
+        block    = address; // published by the next write of length
+    }
+
+    /*
+     * Creates a read-only view of @length bytes of encoded postings starting at
+     * @buffer[@base]. The buffer is only read with absolute gets, so it may be shared.
+     *
+     * @param size the number of postings
+     * @param movieCount the number of distinct movies
+     * @param maxCount the largest number of postings of one movie
+     */
+    PostingList (ByteBuffer buffer, int base, int length, int size, int movieCount, int maxCount) {
+        this.buffer     = buffer;
+        this.base       = base;
+        this.size       = size;
+        this.movieCount = movieCount;
+        this.maxCount   = maxCount;
+        this.length     = length;
+    }
+
+    /*
+     * Appends an occurrence.
+     *
+     * @param movieId id of the movie, not smaller than the last movie id added
+     * @param position the word's position in the movie's description
+     */
+    public void add (int movieId, int position) {
+        if ( data == null && arena == null ) {
+            throw new IllegalStateException("read-only posting list");
+        }
+        if ( movieId < lastMovie ) {
+            throw new IllegalArgumentException("movie id " + movieId + " added after " + lastMovie);
+        }
+        int end = length;
+        byte[] d = data;
+        if ( d != null && end + 10 > d.length ) {
+            data = Arrays.copyOf(d, Math.max(d.length * 2, end + 10));
+        } else if ( d == null && end + 10 > capacity ) {
+            int size = Math.max(capacity * 2, end + 10);
+            long address = arena.allocate(size);
+            arena.chunk(address).put(OffHeapArena.offset(address), buffer, base, end);
+            setBlock(address, size);
+        }
+        if ( movieId == lastMovie ) {
+            end = writeVarInt(end, 0);
+            end = writeVarInt(end, zigzag(position - lastPosition));
+            lastCount++;
+        } else {
+            if ( movieCount > 0 && movieCount % SKIP_INTERVAL == 0 ) {
+                addSkip(lastMovie, end);
+            }
+            end = writeVarInt(end, lastMovie == -1 ? movieId : movieId - lastMovie);
+            end = writeVarInt(end, zigzag(position));
+            movieCount++;
+            lastCount = 1;
+        }
+        maxCount = Math.max(maxCount, lastCount);
+        lastMovie    = movieId;
+        lastPosition = position;
+        size++;
+        length = end;
+    }
+
+    /*
+     * Appends every posting of @other.
+     *
+     * @param other postings whose first movie id is not smaller than the last movie id
+     * added to this list
+     */
+    public void addAll (PostingList other) {
+        Cursor c = other.cursor();
+        while ( c.next() ) {
+            add(c.movieId(), c.position());
+        }
+    }
+
+    /*
+     * Merges the postings of several words into one list, as if they were a single
+     * word: a k-way merge of the lists' cursors by movie id, then position.
+     *
+     * @param lists the posting lists to merge
+     * @return a new list with every posting of @lists
+     */
+    static PostingList union (PostingList[] lists) {
+        if ( lists.length == 1 ) {
+            return lists[0];
+        }
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(lists.length,
+            (x, y) -> x.movieId() != y.movieId() ? Integer.compare(x.movieId(), y.movieId())
+                                                 : Integer.compare(x.position(), y.position()));
+        for ( PostingList list : lists ) {
+            Cursor c = list.cursor();
+            if ( c.next() ) {
+                heap.add(c);
+            }
+        }
+        PostingList union = new PostingList();
+        while ( !heap.isEmpty() ) {
+            Cursor c = heap.poll();
+            union.add(c.movieId(), c.position());
+            if ( c.next() ) {
+                heap.add(c);
+            }
+        }
+        return union;
+    }
+
+    /*
+     * Gives a read-only view the skip pointers add() would have recorded, with one pass
+     * over its postings: IndexSegment files do not store them. Call it before the view
+     * is shared with other threads.
+     *
+     * @return this list
+     */
+    PostingList withSkips () {
+        if ( data != null || arena != null ) {
+            throw new IllegalStateException("not a read-only posting list");
+        }
+        if ( skips != null ) {
+            return this;
+        }
+        Cursor c = cursor();
+        int movies = 0, last = -1;
+        for ( int start = c.offset; c.next(); start = c.offset ) {
+            if ( c.movieId() != last ) {
+                if ( movies > 0 && movies % SKIP_INTERVAL == 0 ) {
+                    addSkip(last, start - base);
+                }
+                last = c.movieId();
+                movies++;
+            }
+        }
+        return this;
+    }
+
+    private void addSkip (int previousMovie, int offset) {
+        int[] s = skips;
+        int count = skipCount;
+        if ( s == null ) {
+            s = new int[8];
+        } else if ( 2 * count == s.length ) {
+            s = Arrays.copyOf(s, s.length * 2);
+        }
+        s[2 * count]     = previousMovie;
+        s[2 * count + 1] = offset;
+        if ( s != skips ) {
+            skips = s;
+        }
+        skipCount = count + 1;
+    }
+
+    /*
+     * Writes @value at data[@offset].
+     * @return the offset after the written bytes
+     */
+    private int writeVarInt (int offset, int value) {
+        byte[] d = data;
+        if ( d == null ) {
+            while ( (value & ~0x7F) != 0 ) {
+                buffer.put(base + offset++, (byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put(base + offset++, (byte) value);
+            return offset;
+        }
+        while ( (value & ~0x7F) != 0 ) {
+            d[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        d[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int zigzag (int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /*
+     * @return the number of postings
+     */
+    public int size () {
+        return size;
+    }
+
+    /*
+     * @return the number of distinct movies in the list
+     */
+    public int getMovieCount () {
+        return movieCount;
+    }
+
+    /*
+     * @return the ids of the movies in the list, null if there are fewer than
+     * BITMAP_MIN_MOVIES. The bitmap is shared and must not be modified.
+     */
+    public RoaringBitmap movieBitmap () {
+        int count = movieCount;
+        if ( count < BITMAP_MIN_MOVIES ) {
+            return null;
+        }
+        MovieBitmap cached = bitmap;
+        if ( cached != null && cached.movieCount == count ) {
+            return cached.movies;
+        }
+        Cursor c = cursor();
+        int end = c.end - c.base;
+        if ( cached != null && cached.end >= end ) {
+            return cached.movies; // cached by a reader that saw more postings
+        }
+        int decoded = 0, last = -1;
+        if ( cached != null ) {
+            // resume after the postings already in the bitmap, as from a skip pointer
+            c.offset  = c.base + cached.end;
+            c.movieId = cached.lastMovie;
+            c.started = true;
+            decoded   = cached.movieCount;
+            last      = cached.lastMovie;
+        }
+        RoaringBitmap added = new RoaringBitmap();
+        while ( c.next() ) {
+            if ( c.movieId() != last ) {
+                last = c.movieId();
+                added.add(last);
+                decoded++;
+            }
+        }
+        RoaringBitmap movies = cached == null ? added : RoaringBitmap.or(cached.movies, added);
+        movies.runOptimize();
+        bitmap = new MovieBitmap(movies, decoded, end, last);
+        return movies;
+    }
+
+    /*
+     * @return the largest number of postings in one movie, the word's highest term
+     * frequency
+     */
+    public int getMaxTermFrequency () {
+        return maxCount;
+    }
+
+    /*
+     * @return the number of bytes used by the encoded postings
+     */
+    public int getByteSize () {
+        return length;
+    }
+
+    /*
+     * @return true if the postings are stored outside the Java heap, in an OffHeapArena
+     */
+    public boolean isOffHeap () {
+        return arena != null;
+    }
+
+    /*
+     * Writes the encoded postings to @out, in the format read by the read-only
+     * constructor.
+     */
+    void writeTo (OutputStream out) throws IOException {
+        int end = length;
+        if ( data != null ) {
+            out.write(data, 0, end);
+            return;
+        }
+        Cursor c = cursor();
+        for ( int i = c.offset; i < c.end; i++ ) {
+            out.write(c.buffer.get(i));
+        }
+    }
+
+    /*
+     * @return a new cursor positioned before the first posting
+     */
+    public Cursor cursor () {
+        return cursor(new Cursor());
+    }
+
+    /*
+     * cursor() without allocating, for callers keeping a cursor per thread.
+     * @return @reuse, positioned before the first posting of this list
+     */
+    public Cursor cursor (Cursor reuse) {
+        int count = skipCount; // read before the skip pointers it publishes
+        int[] s = skips;
+        int end = length; // read before data, see the class comment
+        if ( data == null && arena == null ) {
+            reuse.reset(null, buffer, base, base + end, s, count);
+            return reuse;
+        }
+        while ( count > 0 && s[2 * count - 1] >= end ) { // recorded for postings past end
+            count--;
+        }
+        if ( data == null ) {
+            long b = block;
+            int from = OffHeapArena.offset(b);
+            reuse.reset(null, arena.chunk(b), from, from + end, s, count);
+            return reuse;
+        }
+        reuse.reset(data, null, 0, end, s, count);
+        return reuse;
+    }
+
+    private byte byteAt (int offset) {
+        if ( arena != null ) {
+            long b = block;
+            return arena.chunk(b).get(OffHeapArena.offset(b) + offset);
+        }
+        return data != null ? data[offset] : buffer.get(base + offset);
+    }
+
+    /*
+     * Returns true if @this holds the same postings as @other
+     */
+    public boolean equals (Object other) {
+        if ( !(other instanceof PostingList) )
+            return false;
+        PostingList o = (PostingList) other;
+        int end = length;
+        if ( end != o.length )
+            return false;
+        if ( data != null && o.data != null )
+            return Arrays.equals(data, 0, end, o.data, 0, end);
+        for ( int i = 0; i < end; i++ ) {
+            if ( byteAt(i) != o.byteAt(i) )
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Hashes the encoded postings, which are the same bytes for the same movies and
+     * positions whatever the list is stored in, so equal lists have equal hash codes.
+     */
+    public int hashCode () {
+        int end = length; // read before data, see the class comment
+        byte[] d = data;
+        int h = end;
+        for ( int i = 0; i < end; i++ ) {
+            h = 31 * h + (d != null ? d[i] : byteAt(i));
+        }
+        return h;
+    }
+
+    /*
+     * Streaming decoder over a PostingList. Usage:
+     *
+     *      PostingList.Cursor c = list.cursor();
+     *      while ( c.next() ) {
+     *          use c.movieId() and c.position()
+     *      }
+     *
+     * or, to visit movies in a given order, advance(movie) for increasing movies.
+     */
+    public static class Cursor {
+
+        private byte[]     data;      // null when decoding from buffer
+        private ByteBuffer buffer;
+        private int        base;      // offset of the list's first byte, skip offsets are from it
+        private int        end;
+        private int[]      skips;     // the list's skip pointers, null if none
+        private int        skipCount; // skip pointers before end
+        private int skip;             // first skip pointer not passed yet
+        private int offset;
+        private int movieId;
+        private int position;
+        private boolean started; // false until the first posting is decoded
+        private int decoded;     // postings decoded since the last reset
+
+        /*
+         * A cursor over no postings, to be passed to PostingList.cursor(Cursor).
+         */
+        public Cursor () {
+        }
+
+        private void reset (byte[] data, ByteBuffer buffer, int offset, int end, int[] skips, int skipCount) {
+            this.data      = data;
+            this.buffer    = buffer;
+            this.base      = offset;
+            this.offset    = offset;
+            this.end       = end;
+            this.skips     = skips;
+            this.skipCount = skipCount;
+            this.skip      = 0;
+            this.movieId   = 0;
+            this.position  = 0;
+            this.started   = false;
+            this.decoded   = 0;
+        }
+
+        /*
+         * Advances to the first posting of the first movie not smaller than @target,
+         * unless the current posting's movie already is.
+         * @return false if there is no such movie
+         */
+        public boolean advance (int target) {
+            if ( started && movieId >= target ) {
+                return true;
+            }
+            if ( skip < skipCount && skips[2 * skip] < target ) {
+                // gallop to the last skip pointer whose previous movie is before target
+                int lo = skip, step = 1;
+                while ( lo + step < skipCount && skips[2 * (lo + step)] < target ) {
+                    lo  += step;
+                    step *= 2;
+                }
+                int hi = Math.min(lo + step, skipCount); // skips[2 * hi] >= target, or hi is the end
+                while ( hi - lo > 1 ) {
+                    int mid = (lo + hi) >>> 1;
+                    if ( skips[2 * mid] < target ) {
+                        lo = mid;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                skip = lo + 1;
+                if ( base + skips[2 * lo + 1] > offset ) {
+                    offset  = base + skips[2 * lo + 1];
+                    movieId = skips[2 * lo];
+                    started = true;
+                }
+            }
+            while ( next() ) {
+                if ( movieId >= target ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /*
+         * Advances to the next posting.
+         * @return false if there are no more postings
+         */
+        public boolean next () {
+            if ( offset >= end ) {
+                return false;
+            }
+            int movieDelta = readVarInt();
+            int value      = readVarInt();
+            value = (value >>> 1) ^ -(value & 1);
+            decoded++;
+            if ( movieDelta == 0 && started ) {
+                position += value;
+            } else {
+                movieId += movieDelta;
+                position = value;
+            }
+            started = true;
+            return true;
+        }
+
+        private int readVarInt () {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data != null ? data[offset++] : buffer.get(offset++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ( b < 0 );
+            return value;
+        }
+
+        /*
+         * @return movie id of the current posting
+         */
+        public int movieId () {
+            return movieId;
+        }
+
+        /*
+         * @return position of the current posting
+         */
+        public int position () {
+            return position;
+        }
+
+        /*
+         * @return the number of postings decoded so far; those that advance jumped
+         * over with the skip pointers are not
+         */
+        public int decoded () {
+            return decoded;
+        }
+    }
+}
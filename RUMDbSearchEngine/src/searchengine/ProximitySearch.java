@@ -0,0 +1,209 @@
+package searchengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/*
+ * This class evaluates queries with any number of words over the posting lists of a
+ * search engine:
+ *
+ *      - proximity: the movies whose descriptions contain every word, ranked by the
+ *        size of the smallest window of the description that contains all of them.
+ *      - phrase: the movies whose descriptions contain the words next to each other,
+ *        in the order given.
+ *
+ * The posting lists are intersected by movie with a single forward pass over each
+ * list, and the positions of each candidate movie are combined with a k-way merge,
+ * so the cost is linear in the total number of postings (times log k for the merge
+ * heap) instead of growing with the number of word combinations.
+ *
+ */
+class ProximitySearch {
+
+    private final PostingList[]   postings; // one posting list per query word
+    private final MovieDictionary movies;   // translates movie ids into titles
+
+    private final PostingList.Cursor[] cursors;
+    private final boolean[] hasNext;        // false once a cursor is exhausted
+    private final int[][]   positions;      // positions of each word in the current movie
+    private final int[]     counts;         // number of positions of each word
+
+    /*
+     * @param postings the posting list of each query word, in query order
+     * @param movies dictionary the postings' movie ids refer to
+     */
+    ProximitySearch (PostingList[] postings, MovieDictionary movies) {
+        this.postings  = postings;
+        this.movies    = movies;
+        this.cursors   = new PostingList.Cursor[postings.length];
+        this.hasNext   = new boolean[postings.length];
+        this.positions = new int[postings.length][16];
+        this.counts    = new int[postings.length];
+    }
+
+    /*
+     * Finds the @k movies with the smallest window containing every word.
+     *
+     * @param k the maximum number of results
+     * @return at most @k results sorted by window size (last position - first
+     * position, so two adjacent words have size 1), ties broken by movie id.
+     */
+    ArrayList<MovieSearchResult> topKWindows (int k) {
+        int rarest = Integer.MAX_VALUE; // no more results than movies with the rarest word
+        for ( PostingList p : postings ) {
+            rarest = Math.min(rarest, p.getMovieCount());
+        }
+        PriorityQueue<MovieSearchResult> heap =
+            new PriorityQueue<MovieSearchResult>(Math.min(k, rarest) + 1, MovieSearchResult.WORST_FIRST);
+        int[] heads = new int[postings.length];
+        for ( int movie = firstMovie(); movie != -1; movie = nextMovie() ) {
+            int window = smallestWindow(positions, counts, heads.length, heads);
+            if ( heap.size() == k && window >= heap.peek().getMinDistance() ) {
+                continue;
+            }
+            MovieSearchResult msr = new MovieSearchResult(movies.getTitle(movie), movie);
+            msr.setMinDistance(window);
+            heap.add(msr);
+            if ( heap.size() > k ) {
+                heap.poll();
+            }
+        }
+        ArrayList<MovieSearchResult> top = new ArrayList<MovieSearchResult>(heap);
+        top.sort(MovieSearchResult.WORST_FIRST.reversed());
+        return top;
+    }
+
+    /*
+     * Finds every movie containing the words as a phrase.
+     *
+     * @return results in movie id order; the distance of each is the phrase's window
+     * size (number of words - 1).
+     */
+    ArrayList<MovieSearchResult> phrases () {
+        ArrayList<MovieSearchResult> found = new ArrayList<MovieSearchResult>();
+        int[] heads = new int[postings.length];
+        for ( int movie = firstMovie(); movie != -1; movie = nextMovie() ) {
+            if ( firstPhrase(heads) != -1 ) {
+                MovieSearchResult msr = new MovieSearchResult(movies.getTitle(movie), movie);
+                msr.setMinDistance(postings.length - 1);
+                found.add(msr);
+            }
+        }
+        return found;
+    }
+
+    /*
+     * Positions every cursor at its first posting and loads the first movie that
+     * contains all the words.
+     * @return the movie id, or -1 if there is none
+     */
+    private int firstMovie () {
+        for ( int i = 0; i < postings.length; i++ ) {
+            cursors[i] = postings[i].cursor();
+            hasNext[i] = cursors[i].next();
+        }
+        return nextMovie();
+    }
+
+    /*
+     * Advances all cursors to the next movie present in every posting list (the
+     * largest current movie id is the only possible candidate, so each list is
+     * skipped forward to it) and loads that movie's positions.
+     * @return the movie id, or -1 if one of the lists is exhausted
+     */
+    private int nextMovie () {
+        int target = -1;
+        for ( int i = 0; i < cursors.length; i++ ) {
+            if ( !hasNext[i] ) {
+                return -1;
+            }
+            target = Math.max(target, cursors[i].movieId());
+        }
+        boolean aligned = false;
+        while ( !aligned ) {
+            aligned = true;
+            for ( int i = 0; i < cursors.length; i++ ) {
+                while ( cursors[i].movieId() < target ) {
+                    if ( !(hasNext[i] = cursors[i].next()) ) {
+                        return -1;
+                    }
+                }
+                if ( cursors[i].movieId() > target ) {
+                    target  = cursors[i].movieId();
+                    aligned = false;
+                }
+            }
+        }
+        for ( int i = 0; i < cursors.length; i++ ) {
+            int count = 0;
+            while ( hasNext[i] && cursors[i].movieId() == target ) {
+                if ( count == positions[i].length ) {
+                    positions[i] = Arrays.copyOf(positions[i], count * 2);
+                }
+                positions[i][count++] = cursors[i].position();
+                hasNext[i] = cursors[i].next();
+            }
+            counts[i] = count;
+        }
+        return target;
+    }
+
+    /*
+     * k-way merge over the sorted positions of the current movie. The window from the
+     * smallest head position to the largest contains every word; moving past the
+     * smallest head is the only way to find a smaller window.
+     *
+     * @param positions sorted positions of each word
+     * @param counts number of positions of each word, at least 1
+     * @param n number of words
+     * @param heads scratch array, at least @n entries
+     * @return the size of the smallest window containing every word
+     */
+    static int smallestWindow (int[][] positions, int[] counts, int n, int[] heads) {
+        // heap of word indexes ordered by their current head position
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(n,
+            (x, y) -> Integer.compare(positions[x][heads[x]], positions[y][heads[y]]));
+        int max = Integer.MIN_VALUE;
+        for ( int i = 0; i < n; i++ ) {
+            heads[i] = 0;
+            heap.add(i);
+            max = Math.max(max, positions[i][0]);
+        }
+        int best = Integer.MAX_VALUE;
+        while ( true ) {
+            int word = heap.poll();
+            best = Math.min(best, max - positions[word][heads[word]]);
+            if ( ++heads[word] == counts[word] || best == n - 1 ) {
+                return best;
+            }
+            max = Math.max(max, positions[word][heads[word]]);
+            heap.add(word);
+        }
+    }
+
+    /*
+     * Walks the positions of the first word and checks that word i occurs i positions
+     * later. Every list is only walked forward.
+     *
+     * @param heads scratch array, one entry per word
+     * @return the position of the first phrase occurrence, or -1
+     */
+    private int firstPhrase (int[] heads) {
+        Arrays.fill(heads, 0);
+        for ( int s = 0; s < counts[0]; s++ ) {
+            int start = positions[0][s];
+            boolean match = true;
+            for ( int i = 1; i < heads.length && match; i++ ) {
+                while ( heads[i] < counts[i] && positions[i][heads[i]] < start + i ) {
+                    heads[i]++;
+                }
+                match = heads[i] < counts[i] && positions[i][heads[i]] == start + i;
+            }
+            if ( match ) {
+                return start;
+            }
+        }
+        return -1;
+    }
+}
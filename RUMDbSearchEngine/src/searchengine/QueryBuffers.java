@@ -0,0 +1,192 @@
+package searchengine;
+
+import java.util.Arrays;
+
+/*
+ * The reusable state of a two word search written to a ResultSink: two cursors, the
+ * positions of the words in the current movie, and a bounded heap of the best k
+ * results so far kept in parallel int arrays instead of MovieSearchResults. Each
+ * thread has its own, from get(); the arrays only grow, so after the first few
+ * queries a search allocates nothing.
+ *
+ * The heap orders results as MovieSearchResult.WORST_FIRST does, the worst at the
+ * root. Results live in numbered slots holding the movie, its distance and a copy of
+ * both words' positions; the heap itself is an array of slot numbers, so sifting moves
+ * ints rather than position arrays.
+ *
+ */
+final class QueryBuffers {
+
+    private static final ThreadLocal<QueryBuffers> LOCAL = ThreadLocal.withInitial(QueryBuffers::new);
+
+    final PostingList.Cursor first  = new PostingList.Cursor();
+    final PostingList.Cursor second = new PostingList.Cursor();
+    int[] positionsA = new int[16]; // positions of the current movie
+    int[] positionsB = new int[16];
+
+    private int[]   heap      = new int[0]; // slot numbers, worst result first
+    private int[]   movies    = new int[0]; // by slot
+    private int[]   distances = new int[0];
+    private int[][] slotA     = new int[0][];
+    private int[][] slotB     = new int[0][];
+    private int[]   countsA   = new int[0];
+    private int[]   countsB   = new int[0];
+    private int     size;
+    private boolean busy;                   // a search on this thread is using the buffers
+
+    /*
+     * @return the calling thread's buffers, or new ones if a search on this thread is
+     * still using them (a sink searching from accept)
+     */
+    static QueryBuffers get () {
+        QueryBuffers buffers = LOCAL.get();
+        return buffers.busy ? new QueryBuffers() : buffers;
+    }
+
+    /*
+     * Starts a search.
+     */
+    void begin () {
+        busy = true;
+        size = 0;
+    }
+
+    /*
+     * Makes room for one more result, up to @k.
+     */
+    private void grow (int k) {
+        if ( size == heap.length ) {
+            int n = (int) Math.min(k, Math.max(16L, 2L * heap.length));
+            heap      = Arrays.copyOf(heap, n);
+            movies    = Arrays.copyOf(movies, n);
+            distances = Arrays.copyOf(distances, n);
+            countsA   = Arrays.copyOf(countsA, n);
+            countsB   = Arrays.copyOf(countsB, n);
+            slotA     = Arrays.copyOf(slotA, n);
+            slotB     = Arrays.copyOf(slotB, n);
+            for ( int s = 0; s < n; s++ ) {
+                if ( slotA[s] == null ) {
+                    slotA[s] = new int[16];
+                    slotB[s] = new int[16];
+                }
+            }
+        }
+    }
+
+    /*
+     * @return @positions, or a copy twice as long if it has no room at index @count
+     */
+    static int[] ensure (int[] positions, int count) {
+        return count < positions.length ? positions : Arrays.copyOf(positions, 2 * positions.length);
+    }
+
+    /*
+     * @return true if a result of @distance for a movie after every movie offered so far
+     * would enter the heap of at most @k results
+     */
+    boolean wants (int distance, int k) {
+        return size < k || distance < distances[heap[0]];
+    }
+
+    /*
+     * Adds the current movie, whose positions are in positionsA and positionsB, to the
+     * heap, evicting the worst result if it then holds more than @k. Call only if wants
+     * returned true.
+     */
+    void offer (int movie, int distance, int countA, int countB, int k) {
+        boolean replace = size == k; // the worst result leaves, the new one sinks from the root
+        int slot;
+        if ( replace ) {
+            slot = heap[0];
+        } else {
+            grow(k);
+            slot = size;
+            heap[size++] = slot;
+        }
+        movies[slot]    = movie;
+        distances[slot] = distance;
+        countsA[slot]   = countA;
+        countsB[slot]   = countB;
+        if ( slotA[slot].length < countA ) {
+            slotA[slot] = new int[Math.max(countA, 2 * slotA[slot].length)];
+        }
+        if ( slotB[slot].length < countB ) {
+            slotB[slot] = new int[Math.max(countB, 2 * slotB[slot].length)];
+        }
+        System.arraycopy(positionsA, 0, slotA[slot], 0, countA);
+        System.arraycopy(positionsB, 0, slotB[slot], 0, countB);
+        if ( replace ) {
+            siftDown(0);
+        } else {
+            siftUp(size - 1);
+        }
+    }
+
+    /*
+     * Sends the results to @sink from the best to the worst and releases the buffers.
+     *
+     * @param titles translates movie ids into titles
+     * @return the number of results
+     */
+    int drain (MovieDictionary titles, ResultSink sink) {
+        int count = size;
+        for ( int i = count - 1; i > 0; i-- ) { // heap sort, the worst ending last
+            int worst = heap[0];
+            heap[0] = heap[i];
+            heap[i] = worst;
+            size = i;
+            siftDown(0);
+        }
+        size = 0;
+        try {
+            for ( int rank = 0; rank < count; rank++ ) {
+                int slot = heap[rank];
+                sink.accept(rank, movies[slot], titles.getTitle(movies[slot]), distances[slot],
+                            slotA[slot], countsA[slot], slotB[slot], countsB[slot]);
+            }
+        } finally {
+            busy = false;
+        }
+        return count;
+    }
+
+    /*
+     * Releases the buffers without sending any result.
+     */
+    void end () {
+        size = 0;
+        busy = false;
+    }
+
+    /*
+     * @return true if slot @x holds a worse result than slot @y
+     */
+    private boolean worse (int x, int y) {
+        return distances[x] != distances[y] ? distances[x] > distances[y] : movies[x] > movies[y];
+    }
+
+    private void siftUp (int i) {
+        int slot = heap[i];
+        while ( i > 0 && worse(slot, heap[(i - 1) / 2]) ) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = slot;
+    }
+
+    private void siftDown (int i) {
+        int slot = heap[i];
+        while ( 2 * i + 1 < size ) {
+            int child = 2 * i + 1;
+            if ( child + 1 < size && worse(heap[child + 1], heap[child]) ) {
+                child++;
+            }
+            if ( !worse(heap[child], slot) ) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = slot;
+    }
+}
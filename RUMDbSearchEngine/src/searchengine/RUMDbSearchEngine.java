@@ -1,13 +1,34 @@
 package searchengine;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * This class builds a hash table of words from movies descriptions. Each word maps to a set
  * of movies in which it occurs.
  * 
+ * Searches may run on any number of threads while movies are being inserted. Inserts
+ * are serialized on a lock; searches never lock. A new word is linked at the head of
+ * its bucket chain and then published with a write to the volatile hashTable field,
+ * and rehash builds a table of new chain nodes (sharing the words' PostingLists) that
+ * replaces the old table in one write, so a search that started on the old table still
+ * walks complete chains. PostingList publishes appended postings the same way.
+ * 
  * @author Haolin (Daniel) Jin
  * @author Ana Paula Centeno
  * 
@@ -16,10 +37,28 @@ public class RUMDbSearchEngine {
     
 	private int    hashSize;   // the hash table size
 	private double threshold;  // load factor threshold. load factor = wordCount/hashSize
-    private int    wordCount;  // the number of unique words in the table
-    private WordOccurrence[] hashTable;  // the hash table
+    private volatile int wordCount; // the number of unique words in the table, read by searches to spot a stale TermDictionary
+    private volatile WordOccurrence[] hashTable;  // the hash table
+    private volatile String[] wordLog; // the words of the hash table in insertion order, the first wordCount in use
+
+    private final Object writeLock = new Object(); // serializes inserts, searches never take it
+
+    private static final int PARALLEL_BATCH = 100000; // movies read per parallel build step
+    private static final int BULK_LOAD_PRECISION = 14; // 2^14 HyperLogLog registers, 0.8% standard error
+
+    private WordNormalizer normalizer; // filters noise words, which are not to be inserted in the hash table
+    private HashStrategy   hashing;    // maps words to buckets of the chained hash table
 
-    private ArrayList<String> noiseWords; // noisewords are not to be inserted in the hash table
+    private CompactIndex    compact; // open addressing backend, null when the chained table is used
+    private MovieDictionary movies;  // movie ids used by the postings of every word
+    private IndexSegment    segment; // read-only segment the words are served from, null otherwise
+    private volatile SearchCache cache; // results of topKSearch, null when not caching
+    private volatile TermDictionary terms; // sorted words for pattern expansion, extended when words are added
+    private final ReentrantLock dictionaryLock = new ReentrantLock(); // one rebuild of terms at a time, inserts never take it
+    private volatile MetricsSink metrics;  // receives rehash and search events, null when not instrumented
+    private volatile DocumentStore documents; // titles and descriptions by movie id, null when not stored
+
+    private static final int MAX_EXPANSIONS = 128; // words a query pattern expands to at most
 
 	/* 
 	 * Constructor initilizes the hash table.
@@ -30,22 +69,183 @@ public class RUMDbSearchEngine {
 	 *  @param noiseWordsFile contains words that will not be inserted into the hash table.
 	 */
 	public RUMDbSearchEngine (int hashSize, double threshold, String noiseWordsFile){
+		this(hashSize, threshold, noiseWordsFile, false);
+	}
+
+	/* 
+	 * Constructor initilizes the hash table.
+	 * 
+	 *  @param hashSize is the size for the hash table 
+	 * 	@param threshold for the hash table load factor. Rehash occurs when the ratio 
+	 * 	wordCount : hashSize exceeds the threshold.
+	 *  @param noiseWordsFile contains words that will not be inserted into the hash table.
+	 *  @param compact when true words are stored in a CompactIndex (open addressing over
+	 *  primitive arrays, movie ids instead of titles) instead of the chained hash table.
+	 *  The API behaves the same for both backends; getWordOccurrence wraps the compact
+	 *  postings in a new WordOccurrence on every call.
+	 */
+	public RUMDbSearchEngine (int hashSize, double threshold, String noiseWordsFile, boolean compact){
+		this(hashSize, threshold, WordNormalizer.fromFile(noiseWordsFile), compact, HashStrategy.MODULO);
+	}
+
+	/* 
+	 * Constructor initilizes the hash table.
+	 * 
+	 *  @param hashSize is the size for the hash table, rounded up to a size @hashing
+	 *  supports
+	 * 	@param threshold for the hash table load factor. Rehash occurs when the ratio 
+	 * 	wordCount : hashSize exceeds the threshold.
+	 *  @param noiseWordsFile contains words that will not be inserted into the hash table.
+	 *  @param hashing maps words to buckets; HashStrategy.MIXED for speed, a
+	 *  HashStrategy.sipHash() when the movie data is not trusted. The other
+	 *  constructors use HashStrategy.MODULO.
+	 */
+	public RUMDbSearchEngine (int hashSize, double threshold, String noiseWordsFile, HashStrategy hashing){
+		this(hashSize, threshold, WordNormalizer.fromFile(noiseWordsFile), false, hashing);
+	}
+
+	/*
+	 * Creates a search engine sharing the noise words of @normalizer, which must not
+	 * change afterwards.
+	 */
+	RUMDbSearchEngine (int hashSize, double threshold, WordNormalizer normalizer, boolean compact){
+		this(hashSize, threshold, normalizer, compact, HashStrategy.MODULO);
+	}
 
+	private RUMDbSearchEngine (int hashSize, double threshold, WordNormalizer normalizer, boolean compact,
+							   HashStrategy hashing){
+
+		if ( !compact ) {
+			hashSize = hashing.tableSize(hashSize);
+		}
 		this.hashSize   = hashSize;
-		this.hashTable  = new WordOccurrence[hashSize];
-        this.noiseWords = new ArrayList<String>();
+		this.hashTable  = new WordOccurrence[compact ? 0 : hashSize];
+		this.wordLog    = new String[compact ? 0 : 16];
+        this.normalizer = normalizer;
+        this.hashing    = hashing;
 		this.threshold  = threshold;
         this.wordCount  = 0;
-
-        // Read noise words from file
-        StdIn.setFile(noiseWordsFile);
-        while ( !StdIn.isEmpty() ) {
-            String word = StdIn.readString();
-            if ( !noiseWords.contains(word) )
-                noiseWords.add(word);
+        this.movies     = new MovieDictionary();
+        if ( compact ) {
+            this.compact = new CompactIndex(hashSize);
         }
     }
 
+	/*
+	 * Creates a read-only search engine over @segment.
+	 */
+	private RUMDbSearchEngine (IndexSegment segment){
+		this.segment    = segment;
+		this.hashSize   = segment.getCapacity();
+		this.hashTable  = new WordOccurrence[0];
+		this.normalizer = new WordNormalizer();
+		this.hashing    = HashStrategy.MODULO;
+		this.movies     = segment.getMovies();
+		this.wordCount  = segment.getTermCount();
+	}
+
+	/*
+	 * Creates a search engine whose words and postings are stored outside the Java heap,
+	 * so that a large index does not lengthen garbage collections: a CompactIndex over
+	 * an OffHeapArena of direct ByteBuffers, with one small PostingList handle per word
+	 * left on the heap. Movie titles, the document store and search results stay on the
+	 * heap. The API behaves as for the compact backend; getWordOccurrence wraps the
+	 * postings in a new WordOccurrence on every call.
+	 * 
+	 * @param hashSize initial number of slots of the CompactIndex
+	 * @param threshold for the load factor, reported by getLoadFactor; the compact
+	 * index resizes on its own
+	 * @param noiseWordsFile contains words that will not be inserted
+	 * @return an empty search engine
+	 */
+	public static RUMDbSearchEngine offHeap (int hashSize, double threshold, String noiseWordsFile){
+		RUMDbSearchEngine rudb = new RUMDbSearchEngine(hashSize, threshold, noiseWordsFile, true);
+		rudb.compact = new CompactIndex(hashSize, new OffHeapArena());
+		return rudb;
+	}
+
+	/*
+	 * Opens an index written by writeSegment. The file is memory mapped and only its
+	 * header is read, so this takes the same time whatever the size of the index;
+	 * searches decode postings straight from the mapped file.
+	 * 
+	 * The returned search engine is read-only: inserting movies or words throws an
+	 * IllegalStateException.
+	 * 
+	 * @param segmentFile a file written by writeSegment
+	 * @param verify when true the whole file is read to check its checksum
+	 * @return a search engine serving the words of @segmentFile
+	 */
+	public static RUMDbSearchEngine openSegment (String segmentFile, boolean verify){
+		try {
+			IndexSegment segment = IndexSegment.open(segmentFile);
+			if ( verify && !segment.verify() ) {
+				throw new IOException("checksum mismatch");
+			}
+			return new RUMDbSearchEngine(segment);
+		} catch ( IOException e ) {
+			throw new UncheckedIOException("Could not open " + segmentFile, e);
+		}
+	}
+
+	/*
+	 * Writes every word and its postings to an immutable index file that openSegment
+	 * can serve searches from. Movies with the same title are kept apart, as in the
+	 * hash table.
+	 * 
+	 * @param segmentFile the file to write, replaced if it exists
+	 */
+	public void writeSegment (String segmentFile){
+		synchronized ( writeLock ) {
+			ArrayList<String> words = new ArrayList<String>();
+			ArrayList<PostingList> postings = new ArrayList<PostingList>();
+			for(WordOccurrence occ : allWords()){
+				words.add(occ.getWord());
+				postings.add(occ.getPostings());
+			}
+			try {
+				IndexSegment.write(segmentFile, movies, words, postings);
+			} catch ( IOException e ) {
+				throw new UncheckedIOException("Could not write " + segmentFile, e);
+			}
+		}
+	}
+
+	/*
+	 * @return every word in the search engine
+	 */
+	private ArrayList<WordOccurrence> allWords (){
+		ArrayList<WordOccurrence> words = new ArrayList<WordOccurrence>();
+		if ( segment != null ) {
+			for(int id = 0; id < segment.getTermCount(); id++){
+				words.add(new WordOccurrence(segment.getTerm(id), segment.getPostings(id), movies));
+			}
+		}
+		else if ( compact != null ) {
+			for(int id = 0; id < compact.getTermCount(); id++){
+				words.add(compact.getWordOccurrence(id, movies));
+			}
+		}
+		else {
+			WordOccurrence[] table = hashTable;
+			for(int i = 0; i < table.length; i++){
+				for(WordOccurrence curr = table[i]; curr != null; curr = curr.next){
+					words.add(curr);
+				}
+			}
+		}
+		return words;
+	}
+
+	/*
+	 * Throws an IllegalStateException if the search engine was opened from a segment.
+	 */
+	private void checkWritable (){
+		if ( segment != null ) {
+			throw new IllegalStateException("search engine opened from an index segment is read-only");
+		}
+	}
+
 	/*
 	 * Method used to map a word into an array index.
 	 * 
@@ -53,8 +253,22 @@ public class RUMDbSearchEngine {
 	 * @return array index within @hashTable
 	 */
 	private int hashFunction ( String word ) {
-        int hashCode = Math.abs(word.toLowerCase().replaceAll("/[^a-z0-9]/","").hashCode());
-		return hashCode % hashSize;
+		return hashFunction(word, hashSize);
+	}
+
+	/*
+	 * Maps a word into an index of a table of @size buckets. Searches use the length
+	 * of the table they read, which may be older than @hashSize.
+	 */
+	private int hashFunction ( String word, int size ) {
+		return hashing.index(word, size);
+	}
+
+	/*
+	 * @return the strategy mapping words to buckets of the chained hash table
+	 */
+	public HashStrategy getHashStrategy () {
+		return hashing;
 	}
 
 	/*
@@ -62,6 +276,12 @@ public class RUMDbSearchEngine {
 	 * @return the load factor
 	 */ 
 	public double getLoadFactor () {
+		if ( segment != null ) {
+			return (double)segment.getTermCount()/segment.getCapacity();
+		}
+		if ( compact != null ) {
+			return (double)compact.getTermCount()/compact.getCapacity();
+		}
 		return (double)wordCount/hashSize;
 	}
 
@@ -92,28 +312,12 @@ public class RUMDbSearchEngine {
 	public ArrayList<ArrayList<String>> readInputFile ( String inputFile ) {
 
 		ArrayList<ArrayList<String>> allMovies = new ArrayList<ArrayList<String>>();
-		StdIn.setFile(inputFile);
-		
-        String[] read = StdIn.readAllStrings();
-		
-        for ( int i = 0; i < read.length; i++ ) {
-			ArrayList<String> movie = new ArrayList<String>();
-			String t = "";
-			do {
-                t += " "+read[i];
-            } while ( read[i++].indexOf('|') == -1 );
-			
-            movie.add(t.substring(1,t.length()-1).toLowerCase().replaceAll("/[^a-z0-9]/",""));
-
-			while ( i < read.length ) {
-				if ( read[i].indexOf(';') != -1 ) {
-					movie.add(read[i].substring(0,  read[i].indexOf(';')));
-					break;
-				}
-				movie.add(read[i].toLowerCase().replaceAll("/[^a-z0-9]/","") );
-				i++;
+		try ( MovieReader reader = new MovieReader(inputFile) ) {
+			for ( ArrayList<String> movie = reader.readMovie(); movie != null; movie = reader.readMovie() ) {
+				allMovies.add(movie);
 			}
-			allMovies.add(movie);
+		} catch ( IOException e ) {
+			throw new UncheckedIOException("Could not read " + inputFile, e);
 		}
 		return allMovies;
 	}
@@ -131,21 +335,312 @@ public class RUMDbSearchEngine {
      * Use insertWordLocation() to insert each word into the hash table.
 	 * 
      * Use insertWordLocation() to insert the word into the hash table.
+     * 
+     * The movies are read one at a time with a MovieReader (the same parsing as
+     * readInputFile) and inserted as they are read, so the whole file is never held
+     * in memory.
      * 
 	 * @param inputFile the file to be read containg movie's titles and descriptions
 	 * 
 	 */
 	public void insertMoviesIntoHashTable ( String inputFile ) {
-        ArrayList<ArrayList<String>> allMovies = readInputFile(inputFile);
-		for(int i = 0;i < allMovies.size(); i++){
-			ArrayList<String> curr = allMovies.get(i);
-			String title = curr.get(0);
-			for(int f = 1; f < curr.size();f++){
-				String insert = "";
-				if(isWord(curr.get(f)) != null){
-					insertWordLocation(isWord(isWord(curr.get(f))),new Location(title,f));
+		checkWritable();
+		try ( MovieReader reader = new MovieReader(inputFile) ) {
+			synchronized ( writeLock ) {
+				for(ArrayList<String> curr = reader.readMovie(); curr != null; curr = reader.readMovie()){
+					insertMovie(curr);
+				}
+			}
+		} catch ( IOException e ) {
+			throw new UncheckedIOException("Could not read " + inputFile, e);
+		}
+	}
+
+	/*
+	 * Bulk load version of insertMoviesIntoHashTable, which sizes the hash table once
+	 * instead of rehashing it every time the load factor exceeds the threshold.
+	 * 
+	 * A first pass over the file normalizes the description words with isWord() and
+	 * counts the distinct ones with a HyperLogLog, in 16 KB however large the
+	 * vocabulary. The table is then rehashed, while it is still small, to the size the
+	 * inserts would have doubled it to: hashSize doubled until the words already in the
+	 * table plus the estimate, raised by three standard errors, fit under the threshold.
+	 * The compact index reserves room for as many words. The movies are then inserted
+	 * as by insertMoviesIntoHashTable, without a rehash unless the estimate fell short.
+	 * 
+	 * Since the table doubles, the rehashes it saves add up to fewer node copies than
+	 * there are words, and the first pass reads and normalizes the file a second time:
+	 * see Benchmark bulkload for what it gains against what it costs on a given load.
+	 * 
+	 * @param inputFile the file to be read containg movie's titles and descriptions
+	 * @return the estimated number of distinct words in the file
+	 */
+	public long bulkLoad ( String inputFile ) {
+		checkWritable();
+		HyperLogLog distinct = new HyperLogLog(BULK_LOAD_PRECISION);
+		try ( MovieReader reader = new MovieReader(inputFile) ) {
+			for(ArrayList<String> curr = reader.readMovie(); curr != null; curr = reader.readMovie()){
+				for(int f = 1; f < curr.size(); f++){
+					String word = isWord(curr.get(f));
+					if(word != null){
+						distinct.add(word);
+					}
+				}
+			}
+		} catch ( IOException e ) {
+			throw new UncheckedIOException("Could not read " + inputFile, e);
+		}
+		long estimate = distinct.estimate();
+		long words = (long) Math.ceil(estimate * (1 + 3 * distinct.getStandardError()));
+		synchronized ( writeLock ) {
+			checkWritable();
+			if ( compact != null ) {
+				compact.reserve(compact.getTermCount() + words);
+			} else {
+				long newHashSize = hashSize;
+				while((double)(wordCount + words)/newHashSize > threshold && newHashSize < Integer.MAX_VALUE / 2){
+					newHashSize *= 2;
+				}
+				if(newHashSize != hashSize){
+					rehash((int) newHashSize);
+				}
+			}
+		}
+		insertMoviesIntoHashTable(inputFile);
+		return estimate;
+	}
+
+	/*
+	 * Inserts one movie in the format of a readInputFile entry: the title at index 0
+	 * followed by the description words. The movie gets a new id even if a movie with
+	 * the same title was inserted before.
+	 * 
+	 * @param movie the movie's title and description words
+	 * @return the movie's id
+	 */
+	public int insertMovie ( ArrayList<String> movie ) {
+		checkWritable();
+		synchronized ( writeLock ) {
+			int movieId = movies.addMovie(movie.get(0));
+			movies.updateLength(movieId, movie.size() - 1);
+			storeDocument(movie);
+			for(int f = 1; f < movie.size();f++){
+				String word = isWord(movie.get(f));
+				if(word != null){
+					insert(word, movieId, f);
 				}
 			}
+			return movieId;
+		}
+	}
+
+	/*
+	 * Adds @movie, in the format of a readInputFile entry, to the document store if
+	 * there is one. The description is stored as its words separated by single spaces,
+	 * so that word i of the description is at position i of the postings.
+	 */
+	private void storeDocument ( ArrayList<String> movie ) {
+		DocumentStore d = documents;
+		if ( d != null ) {
+			d.add(movie.get(0), String.join(" ", movie.subList(1, movie.size())));
+		}
+	}
+
+	/*
+	 * @return the dictionary translating the postings' movie ids into titles
+	 */
+	MovieDictionary getMovies () {
+		return movies;
+	}
+
+	/*
+	 * Parallel version of insertMoviesIntoHashTable, producing the same postings for
+	 * every word.
+	 * 
+	 * 1. The movies are split into chunks. Worker threads normalize each chunk's words
+	 *    with isWord() and split the (word, movie id, position) postings by a hash of
+	 *    the word into one partition per thread.
+	 * 2. Each worker builds the PostingLists of one partition, reading that partition
+	 *    of every chunk in chunk order, so movie ids stay sorted.
+	 * 3. The lists are linked into the hash table, which is rehashed at most once, to
+	 *    the size the serial build would have reached.
+	 * 
+	 * The file is streamed in batches of PARALLEL_BATCH movies, each going through
+	 * the three steps, so memory use is bounded by the batch size.
+	 * 
+	 * @param inputFile the file to be read containg movie's titles and descriptions
+	 * @param threads number of worker threads
+	 */
+	public void insertMoviesIntoHashTable ( String inputFile, int threads ) {
+		checkWritable();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try ( MovieReader reader = new MovieReader(inputFile) ) {
+			synchronized ( writeLock ) {
+				ArrayList<ArrayList<String>> batch = new ArrayList<ArrayList<String>>();
+				for(ArrayList<String> movie = reader.readMovie(); movie != null; movie = reader.readMovie()){
+					batch.add(movie);
+					if(batch.size() == PARALLEL_BATCH){
+						insertBatch(batch, threads, pool);
+						batch.clear();
+					}
+				}
+				insertBatch(batch, threads, pool);
+			}
+		} catch ( IOException e ) {
+			throw new UncheckedIOException("Could not read " + inputFile, e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Inserts @batch with the parallel build.
+	 */
+	private void insertBatch (ArrayList<ArrayList<String>> batch, int threads, ExecutorService pool) {
+		int firstId = movies.size();
+		for(int i = 0; i < batch.size(); i++){
+			movies.updateLength(movies.addMovie(batch.get(i).get(0)), batch.get(i).size() - 1);
+			storeDocument(batch.get(i));
+		}
+		for(LinkedHashMap<String, PostingList> partition : buildPartitions(batch, firstId, threads, pool)){
+			linkPostings(partition);
+		}
+	}
+
+	/*
+	 * Postings of one partition of one chunk, in the order they were read.
+	 */
+	private static class TokenBuffer {
+		ArrayList<String> words = new ArrayList<String>();
+		int[] movieIds  = new int[64];
+		int[] positions = new int[64];
+
+		void add(String word, int movieId, int position){
+			int n = words.size();
+			if(n == movieIds.length){
+				movieIds  = Arrays.copyOf(movieIds, n * 2);
+				positions = Arrays.copyOf(positions, n * 2);
+			}
+			words.add(word);
+			movieIds[n]  = movieId;
+			positions[n] = position;
+		}
+	}
+
+	/*
+	 * Runs steps 1 and 2 of the parallel build on @pool.
+	 * @return one map from word to postings per partition
+	 */
+	private ArrayList<LinkedHashMap<String, PostingList>> buildPartitions (
+			final ArrayList<ArrayList<String>> allMovies, final int firstId, final int partitions,
+			ExecutorService pool) {
+		final int chunks = partitions * 4;
+		ArrayList<Callable<TokenBuffer[]>> tokenize = new ArrayList<Callable<TokenBuffer[]>>();
+		for(int c = 0; c < chunks; c++){
+			final int from = (int) ((long) c * allMovies.size() / chunks);
+			final int to   = (int) ((long) (c + 1) * allMovies.size() / chunks);
+			tokenize.add(() -> {
+				TokenBuffer[] buffers = new TokenBuffer[partitions];
+				for(int p = 0; p < partitions; p++){
+					buffers[p] = new TokenBuffer();
+				}
+				for(int i = from; i < to; i++){
+					ArrayList<String> curr = allMovies.get(i);
+					for(int f = 1; f < curr.size(); f++){
+						String word = isWord(curr.get(f));
+						if(word != null){
+							buffers[(word.hashCode() & 0x7FFFFFFF) % partitions].add(word, firstId + i, f);
+						}
+					}
+				}
+				return buffers;
+			});
+		}
+		final ArrayList<TokenBuffer[]> tokenized = runAll(pool, tokenize);
+
+		ArrayList<Callable<LinkedHashMap<String, PostingList>>> merge =
+			new ArrayList<Callable<LinkedHashMap<String, PostingList>>>();
+		for(int p = 0; p < partitions; p++){
+			final int partition = p;
+			merge.add(() -> {
+				LinkedHashMap<String, PostingList> lists = new LinkedHashMap<String, PostingList>();
+				for(TokenBuffer[] chunk : tokenized){
+					TokenBuffer buffer = chunk[partition];
+					for(int j = 0; j < buffer.words.size(); j++){
+						PostingList list = lists.get(buffer.words.get(j));
+						if(list == null){
+							list = new PostingList();
+							lists.put(buffer.words.get(j), list);
+						}
+						list.add(buffer.movieIds[j], buffer.positions[j]);
+					}
+				}
+				return lists;
+			});
+		}
+		return runAll(pool, merge);
+	}
+
+	/*
+	 * Runs @tasks on @pool and waits for all of them.
+	 * @return the tasks' results in the order of @tasks
+	 */
+	private static <T> ArrayList<T> runAll (ExecutorService pool, ArrayList<Callable<T>> tasks) {
+		ArrayList<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for(Future<T> future : pool.invokeAll(tasks)){
+				results.add(future.get());
+			}
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("index build interrupted", e);
+		} catch ( ExecutionException e ) {
+			throw new IllegalStateException("index build failed", e.getCause());
+		}
+		return results;
+	}
+
+	/*
+	 * Step 3 of the parallel build: adds each word's postings to the hash table.
+	 * @param partition map from word to the postings to add
+	 */
+	private void linkPostings (LinkedHashMap<String, PostingList> partition) {
+		if ( compact != null ) {
+			for(Map.Entry<String, PostingList> entry : partition.entrySet()){
+				compact.insertAll(entry.getKey(), entry.getValue());
+				invalidate(entry.getKey());
+			}
+			return;
+		}
+		ArrayList<Map.Entry<String, PostingList>> newWords = new ArrayList<Map.Entry<String, PostingList>>();
+		for(Map.Entry<String, PostingList> entry : partition.entrySet()){
+			WordOccurrence occ = findInChain(hashTable[hashFunction(entry.getKey())], entry.getKey());
+			if(occ != null){
+				occ.getPostings().addAll(entry.getValue());
+			}
+			else{
+				newWords.add(entry);
+			}
+		}
+		int newHashSize = hashSize;
+		while((double)(wordCount + newWords.size())/newHashSize > threshold){
+			newHashSize *= 2;
+		}
+		if(newHashSize != hashSize){
+			rehash(newHashSize);
+		}
+		WordOccurrence[] table = hashTable;
+		for(Map.Entry<String, PostingList> entry : newWords){
+			int index = hashFunction(entry.getKey());
+			WordOccurrence occ = new WordOccurrence(entry.getKey(), entry.getValue(), movies);
+			occ.next = table[index];
+			table[index] = occ;
+			logWord(entry.getKey());
+			wordCount++;
+		}
+		hashTable = table; // volatile write publishes the new chain heads
+		for(String word : partition.keySet()){
+			invalidate(word);
 		}
 	}
 
@@ -156,49 +651,34 @@ public class RUMDbSearchEngine {
 	 * 
 	 * Punctuation characters are the following: '.', ',', '?', ':', ';' and '!'
 	 * 
+	 * See WordNormalizer: noise words are looked up in a HashSet and the word is only
+	 * copied when it has trailing punctuation or upper case letters.
+	 * 
 	 * @param word Candidate word
 	 * @return word (word without trailing punctuation, LOWER CASE)
 	 */
-	private String isWord ( String word ) {
-		int p = 0;
-    	char ch = word.charAt(word.length()-(p+1));
-    	while (ch == '.' || ch == ',' || ch == '?' || ch == ':' || ch == ';' || ch == '!') {
-    		p++;
-            if ( p == word.length() ) {
-                // the entire word is punctuation
-                return null;
-            }
-    		int index = word.length()-(p+1);
-    		if (index == -1) {
-    			System.out.flush();
-    		}
-    		ch = word.charAt(word.length()-(p+1));	
-    	}
-        
-    	word = word.substring(0,word.length()-p);
-
-    	// are all characters alphabetic letters?
-    	for (int i=0; i < word.length(); i++) {
-    		if (!Character.isLetterOrDigit(word.charAt(i))) {
-    			return null;
-    		}
-    	}
-    	word = word.toLowerCase();
-    	if (noiseWords.contains(word)) {
-    		return null;
-    	}
-    	return word;
+	String isWord ( String word ) {
+		return normalizer.normalize(word);
 	}
 
     /*
 	 * Prints the entire hash table
 	 */
 	public void print () {
+		if ( segment != null ) {
+			segment.print();
+			return;
+		}
+		if ( compact != null ) {
+			compact.print(movies);
+			return;
+		}
 
-        for ( int i = 0; i < hashTable.length; i++ ) {
+        WordOccurrence[] table = hashTable;
+        for ( int i = 0; i < table.length; i++ ) {
             
             StdOut.printf("[%d]->", i);
-            for ( WordOccurrence ptr = hashTable[i]; ptr != null; ptr = ptr.next ) {
+            for ( WordOccurrence ptr = table[i]; ptr != null; ptr = ptr.next ) {
 
                 StdOut.print(ptr.toString());
                 if ( ptr.next != null ) {
@@ -209,6 +689,75 @@ public class RUMDbSearchEngine {
         }
 	}
 
+	/*
+	 * @return the distribution of the chained hash table's chain lengths: element i is
+	 * the number of buckets holding i words. Empty for the compact and segment backends,
+	 * which do not chain.
+	 */
+	public int[] getChainLengths () {
+		if ( segment != null || compact != null ) {
+			return new int[0];
+		}
+		WordOccurrence[] table = hashTable;
+		int[] lengths = new int[1];
+		for ( int i = 0; i < table.length; i++ ) {
+			int length = 0;
+			for ( WordOccurrence ptr = table[i]; ptr != null; ptr = ptr.next ) {
+				length++;
+			}
+			if ( length >= lengths.length ) {
+				lengths = Arrays.copyOf(lengths, length + 1);
+			}
+			lengths[length]++;
+		}
+		return lengths;
+	}
+
+	/*
+	 * Prints a summary of the index instead of every chain, as print() does: the
+	 * backend, the number of words, movies and postings, the load factor, the size of
+	 * the document store and the distribution of chain lengths.
+	 */
+	public void printStats () {
+		long postings = 0, bytes = 0;
+		ArrayList<WordOccurrence> words = allWords();
+		for ( WordOccurrence occ : words ) {
+			postings += occ.getPostings().size();
+			bytes    += occ.getPostings().getByteSize();
+		}
+		StdOut.printf("backend            %s%n", segment != null ? "index segment" : compact == null ? "chained"
+		              : compact.isOffHeap() ? "compact, off-heap" : "compact");
+		StdOut.printf("words              %d%n", words.size());
+		StdOut.printf("movies             %d, %.1f words per description%n", movies.size(), movies.getAverageLength());
+		StdOut.printf("postings           %d, %d bytes%n", postings, bytes);
+		StdOut.printf("load factor        %.2f, threshold %.2f%n", getLoadFactor(), threshold);
+		if ( compact != null && compact.isOffHeap() ) {
+			StdOut.printf("off-heap           %d bytes allocated of %d reserved%n", compact.getOffHeapAllocatedBytes(),
+			              compact.getOffHeapBytes());
+		}
+		DocumentStore d = documents;
+		if ( d != null ) {
+			StdOut.printf("documents          %d, %d bytes of %d bytes of text%n", d.size(), d.getStoredBytes(),
+			              d.getRawBytes());
+		}
+		int[] lengths = getChainLengths();
+		if ( lengths.length > 0 ) {
+			int buckets = 0;
+			for ( int count : lengths ) {
+				buckets += count;
+			}
+			StdOut.printf("hash size          %d, %.1f%% empty, longest chain %d%n", buckets,
+			              100.0 * lengths[0] / buckets, lengths.length - 1);
+			StdOut.print("chain lengths     ");
+			for ( int i = 0; i < lengths.length; i++ ) {
+				if ( lengths[i] > 0 ) {
+					StdOut.printf(" %d:%d", i, lengths[i]);
+				}
+			}
+			StdOut.println();
+		}
+	}
+
 	/*
 	 * This method inserts a Location object @loc into the matching WordOccurrence object
 	 * in the hash table. If the word is not present into the hash table, add a new 
@@ -218,57 +767,131 @@ public class RUMDbSearchEngine {
 	 * @param loc the word's position within the description.
 	 */
 	public void insertWordLocation (String word, Location loc) {
-        if(getWordOccurrence(word) != null){
-			getWordOccurrence(word).addOccurrence(loc);
-		}
-		else{
-			WordOccurrence temp = new WordOccurrence(word);
-			temp.addOccurrence(loc);
-			if(hashTable[hashFunction(word)] == null){
-                hashTable[hashFunction(word)] = temp;
-			}
-			else{
-                WordOccurrence temp2 = hashTable[hashFunction(word)];
-				hashTable[hashFunction(word)] = temp;
-				hashTable[hashFunction(word)].next = temp2;
+		checkWritable();
+		synchronized ( writeLock ) {
+			int movieId = movies.resolve(loc.getTitle());
+			DocumentStore d = documents;
+			if ( d != null && movieId == d.size() ) {
+				d.add(loc.getTitle(), ""); // the description is not known word by word
 			}
+			movies.updateLength(movieId, loc.getPosition());
+			insert(word, movieId, loc.getPosition());
+		}
+	}
+
+	/*
+	 * Inserts an occurrence of @word in movie @movieId into the hash table.
+	 * 
+	 * @param word to be inserted
+	 * @param movieId the movie's id in @movies
+	 * @param position the word's position within the description.
+	 */
+	private void insert (String word, int movieId, int position) {
+		if ( compact != null ) {
+			compact.insert(word, movieId, position);
+			invalidate(word);
+			return;
+		}
+		WordOccurrence[] table = hashTable;
+		int index = hashFunction(word);
+		WordOccurrence occ = findInChain(table[index], word);
+		if(occ == null){
+			occ = new WordOccurrence(word, movies);
+			occ.next = table[index];
+			table[index] = occ;
+			hashTable = table; // volatile write publishes the new chain head
+			logWord(word);
 			wordCount++;
 		}
+		occ.addOccurrence(movieId, position);
+		invalidate(word);
 		if(getLoadFactor() > threshold){
 			rehash(hashSize*2);
 		}
-    }
+	}
+
+	/*
+	 * Appends a new word of the hash table to wordLog, before wordCount is raised to
+	 * cover it. A full log is replaced by a larger copy, filled before it is published.
+	 */
+	private void logWord (String word) {
+		String[] log = wordLog;
+		if(wordCount == log.length){
+			log = Arrays.copyOf(log, log.length * 2);
+		}
+		log[wordCount] = word;
+		wordLog = log;
+	}
+
+	/*
+	 * Invalidates the cached results of every search involving @word, if there is a
+	 * result cache. Call it once the word's new postings are published: a search
+	 * running concurrently either reads the word's version after this, and so sees the
+	 * postings, or caches its result under the old version, which get() then rejects.
+	 * Invalidating before publishing would let such a search cache a result missing
+	 * the new postings under the new version.
+	 */
+	private void invalidate (String word) {
+		SearchCache c = cache;
+		if ( c != null ) {
+			c.invalidate(word);
+		}
+	}
 
 	/*
 	 * Rehash the hash table to newHashSize. Rehash happens when the load factor is
      * greater than the @threshold (load factor = wordCount/hashSize).
      * 
+	 * The old chains are left untouched for searches still walking them: every word
+	 * gets a new chain node sharing its PostingList.
+	 * 
 	 * @param newHashSize is the new hash size
 	 */
 	private void rehash (int newHashSize){
+		MetricsSink m = metrics;
+		long start = m != null ? System.nanoTime() : 0;
         WordOccurrence[] rehashed = new WordOccurrence[newHashSize];
+		WordOccurrence[] table = hashTable;
+		int oldHashSize = hashSize;
 		hashSize = newHashSize;
-		for(int i = 0; i < hashTable.length; i++){
-			  WordOccurrence curr = hashTable[i];
-			  while(curr!=null){
-				  WordOccurrence temp = curr;
-				  curr = curr.next;
-				  temp.next = null;
-				  rehashHelper(temp, rehashed);
-			  }
+		for(int i = 0; i < table.length; i++){
+			for(WordOccurrence curr = table[i]; curr != null; curr = curr.next){
+				rehashHelper(new WordOccurrence(curr.getWord(), curr.getPostings(), movies), rehashed);
+			}
 		}
         hashTable = rehashed;
+		if ( m != null ) {
+			m.rehashed(oldHashSize, newHashSize, wordCount, System.nanoTime() - start);
+		}
 	}
     
+	/*
+	 * Rehashes the chained hash table to @newHashSize buckets, as inserts do when the
+	 * load factor exceeds the threshold. Lets BenchmarkSuite time a rehash on its own.
+	 * @param newHashSize the new number of buckets, rounded up to a size the hash
+	 * strategy supports
+	 */
+	void resize (int newHashSize){
+		synchronized ( writeLock ) {
+			checkWritable();
+			if ( compact != null ) {
+				throw new IllegalStateException("the compact index grows on its own");
+			}
+			rehash(hashing.tableSize(newHashSize));
+		}
+	}
+
+	/*
+	 * @return the number of buckets of the chained hash table
+	 */
+	int getHashSize (){
+		return hashSize;
+	}
+
 	private void rehashHelper(WordOccurrence add, WordOccurrence[] rehashed){
-		if(rehashed[hashFunction(add.getWord())] == null){
-			rehashed[hashFunction(add.getWord())] = add;
-		 }
-		 else{
-			 WordOccurrence temp = rehashed[hashFunction(add.getWord())];
-			 rehashed[hashFunction(add.getWord())] = add;
-			 rehashed[hashFunction(add.getWord())].next = temp;
-		 }
+		int index = hashFunction(add.getWord());
+		add.next = rehashed[index];
+		rehashed[index] = add;
 	}
 
 	/* 
@@ -277,13 +900,26 @@ public class RUMDbSearchEngine {
 	 * @return @word WordOccurrence object
 	 */
 	public WordOccurrence getWordOccurrence (String word) {
-        for(int i = 0; i < hashTable.length; i++){
-			WordOccurrence curr = hashTable[i];
-			while(curr != null){
-				if(curr.getWord().equals(word)){
-					return curr;
-				}
-				curr = curr.next;
+		if ( segment != null ) {
+			return segment.getWordOccurrence(word);
+		}
+		if ( compact != null ) {
+			return compact.getWordOccurrence(word, movies);
+		}
+		WordOccurrence[] table = hashTable;
+		return findInChain(table[hashFunction(word, table.length)], word);
+	}
+
+	/*
+	 * Walks a single bucket chain looking for @word.
+	 * @param head first WordOccurrence of the bucket
+	 * @param word search target
+	 * @return matching WordOccurrence, or null if the chain does not contain @word
+	 */
+	private WordOccurrence findInChain(WordOccurrence head, String word){
+		for(WordOccurrence curr = head; curr != null; curr = curr.next){
+			if(curr.getWord().equals(word)){
+				return curr;
 			}
 		}
 		return null;
@@ -291,75 +927,50 @@ public class RUMDbSearchEngine {
     
 	/*
 	 * Finds all occurrences of wordA and wordB in the hash table, and add them to an 
-	 * ArrayList of MovieSearchResult based on titles.
-	 * 		(no need to calculate distance here)
+	 * ArrayList of MovieSearchResult based on movies.
+	 * 
+	 * Both posting lists are sorted by movie id, so they are merged in a single pass:
+	 * each step takes every posting of the smallest movie id left in either list. The
+	 * minimum distance of each result is computed as soon as its movie is complete.
+	 * Results are in movie id order (the order movies were inserted).
      * 
 	 * @param wordA is the first queried word
 	 * @param wordB is the second queried word
 	 * @return ArrayList of MovieSearchResult objects.
 	 */
 	public ArrayList<MovieSearchResult> createMovieSearchResult (String wordA, String wordB) {
-		if(getWordOccurrence(wordA) == null || getWordOccurrence(wordB) == null){
+		WordOccurrence occA = getWordOccurrence(wordA);
+		WordOccurrence occB = getWordOccurrence(wordB);
+		if(occA == null || occB == null){
 			return null;
 		}
-		ArrayList<Location> first = getWordOccurrence(wordA).getLocations();
-		ArrayList<Location> second = getWordOccurrence(wordB).getLocations();
         ArrayList<MovieSearchResult> search = new ArrayList<MovieSearchResult>();
-		// for(int i = 0; i < first.size(); i++){
-		// 	for(int j = 0; j < second.size(); j++){
-		// 		if(first.get(i).getTitle().equals(second.get(j).getTitle())){
-		// 			if(inserted(search, first.get(i).getTitle()) >= 0){
-		// 				if(!search.get(inserted(search, first.get(i).getTitle())).getArrayListA().contains(first.get(i).getPosition())){
-		// 					search.get(inserted(search, first.get(i).getTitle())).addOccurrenceA(first.get(i).getPosition());
-		// 				}
-		// 				if(!search.get(inserted(search, first.get(i).getTitle())).getArrayListB().contains(second.get(j).getPosition())){
-		// 					search.get(inserted(search, first.get(i).getTitle())).addOccurrenceB(second.get(j).getPosition());
-		// 				}
-		// 			}
-		// 			else{
-		// 				MovieSearchResult temp = new MovieSearchResult(first.get(i).getTitle());
-		// 				temp.addOccurrenceA(first.get(i).getPosition());
-		// 				temp.addOccurrenceB(second.get(j).getPosition());
-		// 				search.add(temp);
-		// 			}
-		// 		}
-		// 	}
-		// }
-		for(int i = 0; i < first.size(); i++){
-            if(inserted(search, first.get(i).getTitle()) >= 0){
-				if(!search.get(inserted(search, first.get(i).getTitle())).getArrayListA().contains(first.get(i).getPosition())){
-					search.get(inserted(search, first.get(i).getTitle())).addOccurrenceA(first.get(i).getPosition());
-				}
+		PostingList.Cursor first = occA.getPostings().cursor();
+		PostingList.Cursor second = occB.getPostings().cursor();
+		boolean hasFirst = first.next();
+		boolean hasSecond = second.next();
+		while(hasFirst || hasSecond){
+			int movie;
+			if(!hasSecond || (hasFirst && first.movieId() <= second.movieId())){
+				movie = first.movieId();
 			}
 			else{
-				MovieSearchResult temp = new MovieSearchResult(first.get(i).getTitle());
-				temp.addOccurrenceA(first.get(i).getPosition());
-				search.add(temp);
-			} 
-		}
-		for(int i = 0; i < second.size();i++){
-            if(inserted(search, second.get(i).getTitle()) >= 0){
-				if(!search.get(inserted(search, second.get(i).getTitle())).getArrayListB().contains(second.get(i).getPosition())){
-					search.get(inserted(search, second.get(i).getTitle())).addOccurrenceB(second.get(i).getPosition());
-				}
+				movie = second.movieId();
 			}
-			else{
-				MovieSearchResult temp = new MovieSearchResult(second.get(i).getTitle());
-				temp.addOccurrenceB(second.get(i).getPosition());
-				search.add(temp);
-			} 
+			MovieSearchResult temp = new MovieSearchResult(movies.getTitle(movie));
+			while(hasFirst && first.movieId() == movie){
+				temp.addOccurrenceA(first.position());
+				hasFirst = first.next();
+			}
+			while(hasSecond && second.movieId() == movie){
+				temp.addOccurrenceB(second.position());
+				hasSecond = second.next();
+			}
+			calculateMinDistance(temp);
+			search.add(temp);
 		}
 		return search;
 	}
-    
-	private int inserted(ArrayList<MovieSearchResult> search, String title){
-         for(int i = 0; i < search.size(); i++){
-			 if(search.get(i).getTitle().equals(title)){
-				return i;
-			 }
-		 }
-		 return -1;
-	}
 
 	/*
 	 * 
@@ -389,18 +1000,29 @@ public class RUMDbSearchEngine {
      * words.
 	 */
 	public void calculateMinDistance(MovieSearchResult msr){
-        int min = Integer.MAX_VALUE;
-		for(int i = 0; i < msr.getArrayListA().size(); i++){
-			for(int f = 0; f < msr.getArrayListB().size(); f++){
-				min = Math.min(min, Math.abs(msr.getArrayListA().get(i)-msr.getArrayListB().get(f)));
-			}
-		}
-		if(min == Integer.MAX_VALUE){
+		ArrayList<Integer> a = msr.getArrayListA();
+		ArrayList<Integer> b = msr.getArrayListB();
+		if(a.isEmpty() || b.isEmpty()){
 			msr.setMinDistance(-1);
+			return;
 		}
-		else{
-		    msr.setMinDistance(min);
+		int i = 0;
+		int j = 0;
+		int previousA = a.get(0);
+		int previousB = b.get(0);
+		int min = Math.abs(previousA - previousB);
+		while(min > 0){
+			if(previousA < previousB){
+				if(++i == a.size()) break;
+				previousA = a.get(i);
+			}
+			else{
+				if(++j == b.size()) break;
+				previousB = b.get(j);
+			}
+			min = Math.min(min, Math.abs(previousA - previousB));
 		}
+		msr.setMinDistance(min);
 	}
 
 	/*
@@ -414,27 +1036,655 @@ public class RUMDbSearchEngine {
 	 * MovieSearchResult object returned must have a non -1 distance (meaning that
      * both words appear in the description). The ArrayList is expected to be 
      * sorted from the smallest distance to the greatest.
-	 * 		
-	 * 	NOTE: feel free to use Collections.sort( arrayListOfMovieSearchResult ); to sort.
 	 */
 	public ArrayList<MovieSearchResult> topTenSearch(String wordA, String wordB){
-        ArrayList<MovieSearchResult> temp = createMovieSearchResult(wordA, wordB);
-		if(temp == null){
+		return topKSearch(wordA, wordB, 10);
+	}
+
+	/*
+	 * topTenSearch for each pair of words of @queries, evaluated together on the common
+	 * fork-join pool. See topKSearch(String[][], int, ForkJoinPool).
+	 * 
+	 * @param queries pairs of words, queries[i][0] and queries[i][1]
+	 * @return the results of each query, in the order of @queries
+	 */
+	public ArrayList<ArrayList<MovieSearchResult>> topTenSearch(String[][] queries){
+		return topKSearch(queries, 10, ForkJoinPool.commonPool());
+	}
+
+	/*
+	 * topKSearch for each pair of words of @queries. The result of each query is the
+	 * same as topKSearch(queries[i][0], queries[i][1], k) would return.
+	 * 
+	 * See BatchSearch: the posting list of each distinct word is decoded once for the
+	 * whole batch, and queries sharing a word are evaluated together, in parallel with
+	 * the other groups on @pool. The batch neither uses the result cache nor reports
+	 * searches to the metrics sink.
+	 * 
+	 * @param queries pairs of words, queries[i][0] and queries[i][1]
+	 * @param k the maximum number of results per query
+	 * @param pool the fork-join pool evaluating the queries
+	 * @return the results of each query, in the order of @queries; null for a query
+	 * with a word that is not in the hash table
+	 */
+	public ArrayList<ArrayList<MovieSearchResult>> topKSearch(String[][] queries, int k, ForkJoinPool pool){
+		return new BatchSearch(this, movies, k).search(queries, pool);
+	}
+
+	/*
+	 * Places @cache in front of topKSearch (and topTenSearch). Inserting a word
+	 * invalidates the cached results of every search involving it. Searches return
+	 * copies of the cached results, so callers may change them.
+	 * 
+	 * @param cache the cache to use, or null to stop caching
+	 */
+	public void setResultCache(SearchCache cache){
+		this.cache = cache;
+	}
+
+	/*
+	 * @return the cache in front of topKSearch, or null
+	 */
+	public SearchCache getResultCache(){
+		return cache;
+	}
+
+	/*
+	 * Sends the engine's rehash and topKSearch events to @sink, such as a SearchStats.
+	 * Timing a search reads the clock twice, well under 1% of a search.
+	 * 
+	 * @param sink the sink, or null to stop sending events
+	 */
+	public void setMetricsSink(MetricsSink sink){
+		this.metrics = sink;
+	}
+
+	/*
+	 * @return the sink receiving the engine's events, or null
+	 */
+	public MetricsSink getMetricsSink(){
+		return metrics;
+	}
+
+	/*
+	 * Stores the title and description of the movies inserted from now on in @store,
+	 * under their movie ids, for snippet. Movies inserted with insertWordLocation are
+	 * stored with an empty description, and have no snippet.
+	 * 
+	 * @param store an empty store, or null to stop storing movies
+	 * @throws IllegalStateException if @store does not hold exactly the movies
+	 * already inserted
+	 */
+	public void setDocumentStore(DocumentStore store){
+		synchronized ( writeLock ) {
+			if ( store != null && store.size() != movies.size() ) {
+				throw new IllegalStateException("the store holds " + store.size() + " movies, the engine "
+												+ movies.size());
+			}
+			this.documents = store;
+		}
+	}
+
+	/*
+	 * @return the store of the movies' text, or null
+	 */
+	public DocumentStore getDocumentStore(){
+		return documents;
+	}
+
+	/*
+	 * Extracts the part of a result's description where its two words are closest,
+	 * with @context words on each side, highlighting the occurrences of both words.
+	 * 
+	 * @param msr a result of this search engine's searches
+	 * @param context the number of words shown before and after the closest pair
+	 * @return the snippet, as DocumentStore.snippet formats it, or null without a
+	 * document store, when @msr has no locations or when the movie's description was
+	 * not stored (movies inserted with insertWordLocation)
+	 */
+	public String snippet(MovieSearchResult msr, int context){
+		DocumentStore d = documents;
+		ArrayList<Integer> a = msr.getArrayListA(), b = msr.getArrayListB();
+		if ( d == null || msr.getMovieId() < 0 || msr.getMovieId() >= d.size() || a.isEmpty() ) {
 			return null;
 		}
-		for(int i = 0; i < temp.size(); i++){
-              calculateMinDistance(temp.get(i));
+		int from = a.get(0), to = a.get(0), best = Integer.MAX_VALUE;
+		for ( int i = 0, j = 0; i < a.size() && j < b.size(); ) { // both are sorted
+			int x = a.get(i), y = b.get(j);
+			if ( Math.abs(x - y) < best ) {
+				best = Math.abs(x - y);
+				from = Math.min(x, y);
+				to   = Math.max(x, y);
+			}
+			if ( x < y ) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		int[] marks = new int[a.size() + b.size()];
+		for ( int i = 0; i < marks.length; i++ ) {
+			marks[i] = i < a.size() ? a.get(i) : b.get(i - a.size());
+		}
+		return d.snippet(msr.getMovieId(), from - context, to + context, marks);
+	}
+
+	/*
+	 * Finds the @k movies in which wordA and wordB appear closest to each other.
+	 * 
+	 * The posting lists are merged by movie as in createMovieSearchResult, but only
+	 * movies containing both words are considered, and a MovieSearchResult is created
+	 * only when a movie enters a bounded max-heap holding the best @k movies so far.
+	 * The cost is O(n log k) for n postings.
+	 * 
+	 * Movies with the same distance are ordered by movie id, as a stable sort of
+	 * createMovieSearchResult's output would order them.
+	 * 
+	 * @param wordA the first word to search
+	 * @param wordB the second word to search
+	 * @param k the maximum number of results
+	 * @return ArrayList of at most @k MovieSearchResult with non -1 distances, sorted
+	 * from the smallest distance to the greatest, or null if either word is not in
+	 * the hash table. Served from the result cache when one is set.
+	 */
+	public ArrayList<MovieSearchResult> topKSearch(String wordA, String wordB, int k){
+		MetricsSink m = metrics;
+		if(m == null){
+			return cachedSearch(wordA, wordB, k, null);
+		}
+		long start = System.nanoTime();
+		int[] scanned = new int[1];
+		ArrayList<MovieSearchResult> results = cachedSearch(wordA, wordB, k, scanned);
+		m.searched(System.nanoTime() - start, scanned[0]);
+		return results;
+	}
+
+	/*
+	 * topKSearch writing its results to @sink instead of returning them, for callers
+	 * that search at a high rate and want to keep the garbage collector out of it.
+	 * 
+	 * See QueryBuffers: the cursors, the positions and the bounded heap of the best @k
+	 * movies live in buffers reused by every search of the calling thread, the heap as
+	 * parallel int arrays, so once the buffers have grown to the largest query seen a
+	 * search allocates nothing, unlike topKSearch which creates a MovieSearchResult
+	 * with two lists of boxed positions per result. The lists are intersected by
+	 * skipping each cursor to the other's movie. The results, and their order, are
+	 * those topKSearch returns; the result cache is not used, and the compact and
+	 * segment backends still create a WordOccurrence per lookup.
+	 * 
+	 * @param wordA the first word to search
+	 * @param wordB the second word to search
+	 * @param k the maximum number of results
+	 * @param sink receives the results from the best to the worst, see ResultSink
+	 * @return the number of results sent to @sink, or -1 if either word is not in the
+	 * hash table
+	 */
+	public int topKSearch(String wordA, String wordB, int k, ResultSink sink){
+		MetricsSink m = metrics;
+		long start = m == null ? 0 : System.nanoTime();
+		WordOccurrence occA = getWordOccurrence(wordA);
+		WordOccurrence occB = getWordOccurrence(wordB);
+		if(occA == null || occB == null){
+			return -1;
+		}
+		if(k <= 0){
+			return 0;
+		}
+		QueryBuffers buffers = QueryBuffers.get();
+		buffers.begin();
+		try{
+			collectTopK(occA.getPostings(), occB.getPostings(), k, buffers);
+		}
+		catch(RuntimeException | Error e){
+			buffers.end();
+			throw e;
+		}
+		int count = buffers.drain(movies, sink);
+		if(m != null){
+			m.searched(System.nanoTime() - start, occA.getPostings().size() + occB.getPostings().size());
+		}
+		return count;
+	}
+
+	/*
+	 * collectTopK into @buffers, whose heap keeps the best @k results.
+	 */
+	private static void collectTopK(PostingList postingsA, PostingList postingsB, int k, QueryBuffers buffers){
+		PostingList.Cursor first = postingsA.cursor(buffers.first);
+		PostingList.Cursor second = postingsB.cursor(buffers.second);
+		boolean hasFirst = first.next();
+		boolean hasSecond = second.next();
+		while(hasFirst && hasSecond){
+			if(first.movieId() < second.movieId()){
+				hasFirst = first.advance(second.movieId());
+				continue;
+			}
+			if(second.movieId() < first.movieId()){
+				hasSecond = second.advance(first.movieId());
+				continue;
+			}
+			int movie = first.movieId();
+			int[] positionsA = buffers.positionsA;
+			int countA = 0;
+			while(hasFirst && first.movieId() == movie){
+				positionsA = QueryBuffers.ensure(positionsA, countA);
+				positionsA[countA++] = first.position();
+				hasFirst = first.next();
+			}
+			int[] positionsB = buffers.positionsB;
+			int countB = 0;
+			while(hasSecond && second.movieId() == movie){
+				positionsB = QueryBuffers.ensure(positionsB, countB);
+				positionsB[countB++] = second.position();
+				hasSecond = second.next();
+			}
+			buffers.positionsA = positionsA;
+			buffers.positionsB = positionsB;
+			int distance = minDistance(positionsA, countA, positionsB, countB);
+			if(buffers.wants(distance, k)){
+				buffers.offer(movie, distance, countA, countB, k);
+			}
+		}
+	}
+
+	/*
+	 * topKSearch through the result cache, if there is one.
+	 * @param scanned where the number of postings read is stored, or null
+	 */
+	private ArrayList<MovieSearchResult> cachedSearch(String wordA, String wordB, int k, int[] scanned){
+		SearchCache c = cache;
+		if(c == null){
+			return search(wordA, wordB, k, scanned);
+		}
+		String key = SearchCache.key(wordA, wordB, k);
+		SearchCache.Entry entry = c.get(key, wordA, wordB);
+		if(entry == null){
+			// read before searching, so an insert racing with the search makes the entry stale
+			long versionA = c.version(wordA);
+			long versionB = c.version(wordB);
+			entry = new SearchCache.Entry(search(wordA, wordB, k, scanned), wordA, versionA, versionB);
+			c.put(key, entry);
+		}
+		if(entry.results == null){
+			return null;
 		}
-        Collections.sort(temp);
-		while(temp.size()>10){
-			temp.remove(10);
+		boolean swap = !entry.wordA.equals(wordA);
+		ArrayList<MovieSearchResult> results = new ArrayList<MovieSearchResult>(entry.results.size());
+		for(MovieSearchResult msr : entry.results){
+			results.add(msr.copy(swap));
 		}
-		for(int i = 0; i < temp.size(); i++){
-             if(temp.get(i).getMinDistance() == -1){
-				 temp.remove(i);
-				 i--;
-			 }
+		return results;
+	}
+
+	/*
+	 * topKSearch without the result cache.
+	 * @param scanned where the number of postings read is stored, or null
+	 */
+	private ArrayList<MovieSearchResult> search(String wordA, String wordB, int k, int[] scanned){
+		WordOccurrence occA = getWordOccurrence(wordA);
+		WordOccurrence occB = getWordOccurrence(wordB);
+		if(occA == null || occB == null){
+			return null;
+		}
+		if(k <= 0){
+			return new ArrayList<MovieSearchResult>();
+		}
+		if(scanned != null){
+			scanned[0] = occA.getPostings().size() + occB.getPostings().size();
+		}
+		// no more results than movies with both words, so a huge k costs nothing
+		int rarer = Math.min(occA.getPostings().getMovieCount(), occB.getPostings().getMovieCount());
+		PriorityQueue<MovieSearchResult> heap = new PriorityQueue<MovieSearchResult>(Math.min(k, rarer) + 1, MovieSearchResult.WORST_FIRST);
+		collectTopK(occA.getPostings(), occB.getPostings(), movies, 0, null, k, heap);
+		ArrayList<MovieSearchResult> top = new ArrayList<MovieSearchResult>(heap);
+		top.sort(MovieSearchResult.WORST_FIRST.reversed());
+		return top;
+	}
+
+	/*
+	 * The merge of topKSearch: adds the movies containing both words to @heap, which
+	 * keeps the best @k results seen so far (see MovieSearchResult.WORST_FIRST).
+	 * 
+	 * When both words are common enough to have movie bitmaps (see
+	 * PostingList.movieBitmap), the movies containing both are found by intersecting
+	 * the bitmaps and the cursors skip straight to each of them; otherwise the two
+	 * lists are merged posting by posting.
+	 * 
+	 * @param postingsA postings of the first word
+	 * @param postingsB postings of the second word
+	 * @param titles translates the postings' movie ids into titles
+	 * @param base added to the postings' movie ids to get the results' movie ids
+	 * @param deleted result movie ids to skip, or null
+	 * @param k the maximum number of results
+	 * @param heap the results so far
+	 */
+	static void collectTopK(PostingList postingsA, PostingList postingsB, MovieDictionary titles, int base,
+			BitSet deleted, int k, PriorityQueue<MovieSearchResult> heap){
+		int[] positionsA = new int[16];
+		int[] positionsB = new int[16];
+		PostingList.Cursor first = postingsA.cursor();
+		PostingList.Cursor second = postingsB.cursor();
+		RoaringBitmap moviesA = postingsA.movieBitmap();
+		RoaringBitmap moviesB = moviesA == null ? null : postingsB.movieBitmap();
+		int[] candidates = moviesB == null ? null : RoaringBitmap.and(moviesA, moviesB).toArray();
+		int candidate = 0;
+		boolean hasFirst = candidates != null || first.next();
+		boolean hasSecond = candidates != null || second.next();
+		while(hasFirst && hasSecond){
+			if(candidates != null){
+				if(candidate == candidates.length){
+					break;
+				}
+				int target = candidates[candidate++];
+				hasFirst = first.advance(target);
+				hasSecond = second.advance(target);
+				if(!hasFirst || !hasSecond || first.movieId() != target || second.movieId() != target){
+					continue; // the bitmaps and cursors saw different postings of a growing list
+				}
+			}
+			if(first.movieId() < second.movieId()){
+				hasFirst = first.next();
+				continue;
+			}
+			if(second.movieId() < first.movieId()){
+				hasSecond = second.next();
+				continue;
+			}
+			int movie = first.movieId();
+			boolean live = deleted == null || !deleted.get(base + movie);
+			int countA = 0;
+			while(hasFirst && first.movieId() == movie){
+				if(countA == positionsA.length) positionsA = Arrays.copyOf(positionsA, countA * 2);
+				positionsA[countA++] = first.position();
+				hasFirst = first.next();
+			}
+			int countB = 0;
+			while(hasSecond && second.movieId() == movie){
+				if(countB == positionsB.length) positionsB = Arrays.copyOf(positionsB, countB * 2);
+				positionsB[countB++] = second.position();
+				hasSecond = second.next();
+			}
+			if(!live){
+				continue;
+			}
+			int distance = minDistance(positionsA, countA, positionsB, countB);
+			if(heap.size() == k && distance >= heap.peek().getMinDistance()){
+				continue;
+			}
+			MovieSearchResult msr = new MovieSearchResult(titles.getTitle(movie), base + movie);
+			for(int i = 0; i < countA; i++) msr.addOccurrenceA(positionsA[i]);
+			for(int i = 0; i < countB; i++) msr.addOccurrenceB(positionsB[i]);
+			msr.setMinDistance(distance);
+			heap.add(msr);
+			if(heap.size() > k){
+				heap.poll();
+			}
+		}
+	}
+
+	/*
+	 * Finds the @k movies in which all @words appear closest together, measured as the
+	 * size of the smallest window of the description containing every word (the last
+	 * word's position - the first word's position). For two words this is the same
+	 * distance topKSearch uses. Repeated words are only counted once.
+	 * 
+	 * See ProximitySearch: the posting lists are intersected by movie and the
+	 * positions merged with a k-way merge, so the cost is linear in the number of
+	 * postings of the words.
+	 * 
+	 * @param words the words to search
+	 * @param k the maximum number of results
+	 * @return ArrayList of at most @k MovieSearchResult sorted by window size, or null
+	 * if any word is not in the hash table.
+	 */
+	public ArrayList<MovieSearchResult> proximitySearch(String[] words, int k){
+		PostingList[] postings = postingsOf(new LinkedHashSet<String>(Arrays.asList(words)).toArray(new String[0]));
+		if(postings == null){
+			return null;
+		}
+		if(k <= 0){
+			return new ArrayList<MovieSearchResult>();
+		}
+		return new ProximitySearch(postings, movies).topKWindows(k);
+	}
+
+	/*
+	 * @return a sorted dictionary of every word in the search engine. It is built on
+	 * the first call; the words inserted since the last call are then added to it
+	 * (see TermDictionary.add), which only rebuilds it after a fixed fraction of new
+	 * words.
+	 * 
+	 * Neither takes the insert lock: the words are read the way searches read them and
+	 * the new dictionary is published through the volatile terms field. While one call
+	 * updates the dictionary, the others return the previous one rather than wait, so
+	 * during a load an expansion may miss the words inserted since the last update.
+	 */
+	public TermDictionary getTermDictionary(){
+		TermDictionary dictionary = terms;
+		if ( dictionary != null && dictionary.size() == termCount() ) {
+			return dictionary;
+		}
+		if ( dictionary == null ) {
+			dictionaryLock.lock();
+		} else if ( !dictionaryLock.tryLock() ) {
+			return dictionary; // being rebuilt by another search
+		}
+		try {
+			dictionary = terms;
+			if ( dictionary == null ) {
+				dictionary = new TermDictionary(words(0));
+			} else if ( dictionary.size() != termCount() ) {
+				dictionary = dictionary.add(words(dictionary.size()));
+			}
+			terms = dictionary;
+		} finally {
+			dictionaryLock.unlock();
+		}
+		return dictionary;
+	}
+
+	/*
+	 * @return the number of unique words, without taking the insert lock
+	 */
+	private int termCount (){
+		return segment != null ? segment.getTermCount() : compact != null ? compact.getTermCount() : wordCount;
+	}
+
+	/*
+	 * @return the words of the search engine in insertion order from the @from-th on,
+	 * read without taking the insert lock: those of every completed insert
+	 */
+	private ArrayList<String> words (int from){
+		if ( segment != null ) {
+			ArrayList<String> words = new ArrayList<String>();
+			for(int id = from; id < segment.getTermCount(); id++){
+				words.add(segment.getTerm(id));
+			}
+			return words;
+		}
+		if ( compact != null ) {
+			return compact.words(from);
+		}
+		int count = wordCount; // read before the log, see logWord
+		String[] log = wordLog;
+		return new ArrayList<String>(Arrays.asList(log).subList(from, count));
+	}
+
+	/*
+	 * Expands a query pattern into the words of the search engine it matches:
+	 * 
+	 * 	trag*		every word starting with "trag"
+	 * 	tr?g*c		wildcards, '?' matches one character and '*' any number of characters
+	 * 	tragc~1		every word within 1 insertion, deletion or substitution of "tragc";
+	 * 			"tragc~" allows 2, the most TermDictionary supports
+	 * 	tragic		the word itself, if it is in the search engine
+	 * 
+	 * @param pattern the pattern, in any case
+	 * @return the matching words, sorted
+	 */
+	public ArrayList<String> expandTerm(String pattern){
+		pattern = pattern.toLowerCase(); // the words are stored in lower case
+		TermDictionary dictionary = getTermDictionary();
+		int tilde = pattern.lastIndexOf('~');
+		if ( tilde > 0 ) {
+			String edits = pattern.substring(tilde + 1);
+			int maxEdits;
+			try {
+				maxEdits = edits.isEmpty() ? TermDictionary.MAX_EDITS : Integer.parseInt(edits);
+			} catch ( NumberFormatException e ) {
+				throw new IllegalArgumentException("bad edit distance in " + pattern, e);
+			}
+			return dictionary.fuzzy(pattern.substring(0, tilde), maxEdits);
+		}
+		int wildcard = TermDictionary.indexOfWildcard(pattern);
+		if ( wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '*' ) {
+			return dictionary.prefix(pattern.substring(0, wildcard));
+		}
+		return dictionary.wildcard(pattern);
+	}
+
+	/*
+	 * proximitySearch with query patterns (see expandTerm) instead of words. Each
+	 * pattern stands for any of the words it expands to: their posting lists are merged
+	 * into one, so a movie matches when its description contains one expansion of every
+	 * pattern, and the window is measured between the closest ones. A pattern matching
+	 * more than MAX_EXPANSIONS words keeps the words found in the most movies.
+	 * 
+	 * @param patterns the query patterns
+	 * @param k the maximum number of results
+	 * @return ArrayList of at most @k MovieSearchResult sorted by window size, or null
+	 * if any pattern matches no word.
+	 */
+	public ArrayList<MovieSearchResult> expandedProximitySearch(String[] patterns, int k){
+		String[] distinct = new LinkedHashSet<String>(Arrays.asList(patterns)).toArray(new String[0]);
+		if(distinct.length == 0){
+			return null;
+		}
+		PostingList[] postings = new PostingList[distinct.length];
+		for(int i = 0; i < distinct.length; i++){
+			ArrayList<PostingList> expansions = new ArrayList<PostingList>();
+			for(String word : expandTerm(distinct[i])){
+				WordOccurrence occ = getWordOccurrence(word);
+				if(occ != null){
+					expansions.add(occ.getPostings());
+				}
+			}
+			if(expansions.isEmpty()){
+				return null;
+			}
+			if(expansions.size() > MAX_EXPANSIONS){
+				expansions.sort((x, y) -> Integer.compare(y.getMovieCount(), x.getMovieCount()));
+				expansions = new ArrayList<PostingList>(expansions.subList(0, MAX_EXPANSIONS));
+			}
+			postings[i] = PostingList.union(expansions.toArray(new PostingList[0]));
+		}
+		if(k <= 0){
+			return new ArrayList<MovieSearchResult>();
+		}
+		return new ProximitySearch(postings, movies).topKWindows(k);
+	}
+
+	/*
+	 * Finds the movies whose description contains @words one right after the other, in
+	 * order. Positions count noise words, so the phrase must not skip over any.
+	 * 
+	 * @param words the phrase, one word per index
+	 * @return ArrayList of MovieSearchResult in movie order, or null if any word is not
+	 * in the hash table.
+	 */
+	public ArrayList<MovieSearchResult> phraseSearch(String[] words){
+		PostingList[] postings = postingsOf(words);
+		if(postings == null){
+			return null;
+		}
+		return new ProximitySearch(postings, movies).phrases();
+	}
+
+	/*
+	 * Ranks the movies whose description contains any of @words by BM25 relevance,
+	 * using the number of occurrences of each word in each movie, the number of movies
+	 * containing it and the descriptions' lengths. See RankedSearch: the top @k movies
+	 * are found with MaxScore, which skips the postings of words that can no longer
+	 * lift a movie into the top @k. Words that are not in the hash table, and repeated
+	 * words, are ignored.
+	 * 
+	 * @param words the words to search
+	 * @param k the maximum number of results
+	 * @param proximity when true movies whose description contains several of the words
+	 * close together get a higher score
+	 * @return ArrayList of at most @k MovieSearchResult sorted from the highest score
+	 * (getScore) to the lowest
+	 */
+	public ArrayList<MovieSearchResult> rankedSearch(String[] words, int k, boolean proximity){
+		ArrayList<PostingList> postings = new ArrayList<PostingList>();
+		for(String word : new LinkedHashSet<String>(Arrays.asList(words))){
+			WordOccurrence occ = getWordOccurrence(word);
+			if(occ != null){
+				postings.add(occ.getPostings());
+			}
+		}
+		if(postings.isEmpty() || k <= 0){
+			return new ArrayList<MovieSearchResult>();
+		}
+		return new RankedSearch(postings.toArray(new PostingList[0]), movies, proximity).topK(k);
+	}
+
+	/*
+	 * Finds the movies matching a boolean query of words combined with AND, OR, NOT
+	 * and parentheses, such as "(love OR romance) tragic NOT war". See BooleanSearch
+	 * for the syntax and how the query is planned.
+	 * 
+	 * @param query the query
+	 * @param k the maximum number of results
+	 * @return the first @k matching movies, in movie id order (insertion order), with
+	 * no locations or distance
+	 * @throws IllegalArgumentException if @query is malformed
+	 */
+	public ArrayList<MovieSearchResult> booleanSearch(String query, int k){
+		int movieCount = movies.size();
+		BooleanSearch search = new BooleanSearch(this, movieCount);
+		ArrayList<MovieSearchResult> results = new ArrayList<MovieSearchResult>();
+		for(int movieId : search.collect(search.parse(query), k)){
+			results.add(new MovieSearchResult(movies.getTitle(movieId), movieId));
+		}
+		return results;
+	}
+
+	/*
+	 * @return the posting list of each word, or null if any word is not in the table
+	 */
+	private PostingList[] postingsOf(String[] words){
+		if(words.length == 0){
+			return null;
+		}
+		PostingList[] postings = new PostingList[words.length];
+		for(int i = 0; i < words.length; i++){
+			WordOccurrence occ = getWordOccurrence(words[i]);
+			if(occ == null){
+				return null;
+			}
+			postings[i] = occ.getPostings();
+		}
+		return postings;
+	}
+
+	/*
+	 * Two pointer walk over two sorted position arrays, as in calculateMinDistance.
+	 * @return the smallest |a[i] - b[j]|, both arrays must be non empty
+	 */
+	private static int minDistance(int[] a, int countA, int[] b, int countB){
+		int i = 0;
+		int j = 0;
+		int min = Math.abs(a[0] - b[0]);
+		while(min > 0){
+			if(a[i] < b[j]){
+				if(++i == countA) break;
+			}
+			else{
+				if(++j == countB) break;
+			}
+			min = Math.min(min, Math.abs(a[i] - b[j]));
 		}
-		return temp;
+		return min;
 	}
 }
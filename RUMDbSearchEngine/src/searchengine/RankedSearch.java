@@ -0,0 +1,260 @@
+package searchengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/*
+ * This class ranks the movies containing any of the query words by BM25 relevance:
+ *
+ *      score(movie) = sum over words of idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * len / avglen))
+ *      idf          = ln(1 + (N - df + 0.5) / (df + 0.5))
+ *
+ * where tf is the number of occurrences of the word in the movie's description (its
+ * postings for the movie), df the number of movies containing the word, len the
+ * description's length, avglen the average length and N the number of movies.
+ *
+ * The top K movies are found with MaxScore: each word has an upper bound on what it
+ * can add to a score, computed from its highest tf. Once K movies are found, the
+ * words whose bounds add up to no more than the K-th best score cannot make a movie
+ * enter the top K on their own. They become non-essential: only movies containing an
+ * essential word are scored, and non-essential words are only looked up for those
+ * movies while the score can still reach the K-th best one. A non-essential word
+ * seeks to the movie with its posting list's skip pointers, so the postings of the
+ * movies in between are mostly not even decoded.
+ *
+ * With the proximity boost, a movie containing at least two of the words gets
+ * PROXIMITY_WEIGHT * (words found - 1) / (smallest window containing them) added to
+ * its score, which is PROXIMITY_WEIGHT when the words are next to each other.
+ *
+ */
+class RankedSearch {
+
+    static final double K1               = 1.2;
+    static final double B                = 0.75;
+    static final double PROXIMITY_WEIGHT = 1.0;
+
+    /*
+     * The postings of one word, read one movie at a time.
+     */
+    private static class Term {
+        final PostingList.Cursor cursor;
+        final double idf;
+        final double upperBound;
+        boolean more;         // the cursor is on a posting
+        int     movie;        // current movie, Integer.MAX_VALUE once exhausted
+        int     tf;           // postings of the current movie
+        int[]   positions = new int[16];
+
+        Term (PostingList postings, double idf, double upperBound) {
+            this.cursor     = postings.cursor();
+            this.idf        = idf;
+            this.upperBound = upperBound;
+            this.more       = cursor.next();
+        }
+
+        /*
+         * Reads the postings of the next movie.
+         */
+        void advance () {
+            if ( !more ) {
+                movie = Integer.MAX_VALUE;
+                return;
+            }
+            movie = cursor.movieId();
+            tf    = 0;
+            while ( more && cursor.movieId() == movie ) {
+                if ( tf == positions.length ) {
+                    positions = Arrays.copyOf(positions, tf * 2);
+                }
+                positions[tf++] = cursor.position();
+                more = cursor.next();
+            }
+        }
+
+        /*
+         * Reads the postings of the first movie not smaller than @target, unless the
+         * current movie already is.
+         */
+        void seek (int target) {
+            if ( movie >= target ) {
+                return;
+            }
+            if ( more && cursor.movieId() < target ) {
+                more = cursor.advance(target);
+            }
+            advance();
+        }
+    }
+
+    /*
+     * Orders results from the lowest score to the highest, breaking ties by the
+     * greatest movie id first.
+     */
+    private static final Comparator<MovieSearchResult> WORST_FIRST = new Comparator<MovieSearchResult>() {
+        public int compare(MovieSearchResult x, MovieSearchResult y){
+            if ( x.getScore() != y.getScore() ) {
+                return Double.compare(x.getScore(), y.getScore());
+            }
+            return Integer.compare(y.getMovieId(), x.getMovieId());
+        }
+    };
+
+    private final Term[]          terms;  // sorted by upper bound
+    private final MovieDictionary movies;
+    private final double          averageLength;
+    private final boolean         proximity;
+
+    private long postingsTotal;   // postings of every query word
+    private long postingsScored;  // postings that were added to a score
+    private long postingsDecoded; // postings read from the lists, set by topK
+
+    /*
+     * @param postings the posting list of each distinct query word
+     * @param movies dictionary the postings' movie ids refer to
+     * @param proximity true to add the proximity boost
+     */
+    RankedSearch (PostingList[] postings, MovieDictionary movies, boolean proximity) {
+        this.movies        = movies;
+        this.proximity     = proximity;
+        double average     = movies.getAverageLength();
+        this.averageLength = average > 0 ? average : 1;
+        int n = movies.size();
+        terms = new Term[postings.length];
+        for ( int i = 0; i < postings.length; i++ ) {
+            int df = postings[i].getMovieCount();
+            double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+            // a movie's length is at least its tf, and the tf term grows with tf when len = tf
+            int maxTf = postings[i].getMaxTermFrequency();
+            terms[i] = new Term(postings[i], idf, idf * termFrequency(maxTf, maxTf));
+            postingsTotal += postings[i].size();
+        }
+        Arrays.sort(terms, (x, y) -> Double.compare(x.upperBound, y.upperBound));
+    }
+
+    private double termFrequency (int tf, int length) {
+        return tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+    }
+
+    /*
+     * Finds the @k highest scoring movies.
+     *
+     * @param k the maximum number of results, at least 1
+     * @return at most @k results sorted by score, highest first, ties broken by movie
+     * id. The distance of each result is its proximity window, or -1 without the
+     * boost or with a single word found.
+     */
+    ArrayList<MovieSearchResult> topK (int k) {
+        int n = terms.length;
+        double boostBound = proximity && n > 1 ? PROXIMITY_WEIGHT : 0;
+        double[] bound = new double[n]; // bound[i]: upper bound of words 0..i plus the boost
+        for ( int i = 0; i < n; i++ ) {
+            bound[i] = (i == 0 ? boostBound : bound[i - 1]) + terms[i].upperBound;
+            terms[i].advance();
+        }
+
+        // no more results than movies, so a huge k costs nothing
+        PriorityQueue<MovieSearchResult> heap =
+            new PriorityQueue<MovieSearchResult>(Math.min(k, movies.size()) + 1, WORST_FIRST);
+        double  threshold      = -1;         // k-th best score, -1 until k movies are found
+        int     firstEssential = 0;          // words before it are non-essential
+        int[]   present        = new int[n]; // words found in the current movie
+        int[][] windows        = new int[n][];
+        int[]   counts         = new int[n];
+        int[]   heads          = new int[n];
+
+        while ( true ) {
+            int movie = Integer.MAX_VALUE;
+            for ( int i = firstEssential; i < n; i++ ) {
+                movie = Math.min(movie, terms[i].movie);
+            }
+            if ( movie == Integer.MAX_VALUE ) {
+                break;
+            }
+
+            int found = 0;
+            double score = 0;
+            for ( int i = n - 1; i >= firstEssential; i-- ) {
+                if ( terms[i].movie == movie ) {
+                    score += score(terms[i], movie);
+                    present[found++] = i;
+                }
+            }
+            boolean complete = true;
+            for ( int i = firstEssential - 1; i >= 0; i-- ) {
+                if ( score + bound[i] <= threshold ) {
+                    complete = false; // the rest cannot lift the movie into the top k
+                    break;
+                }
+                terms[i].seek(movie);
+                if ( terms[i].movie == movie ) {
+                    score += score(terms[i], movie);
+                    present[found++] = i;
+                }
+            }
+
+            int window = -1;
+            if ( complete && proximity && found > 1 ) {
+                for ( int j = 0; j < found; j++ ) {
+                    windows[j] = terms[present[j]].positions;
+                    counts[j]  = terms[present[j]].tf;
+                }
+                window = ProximitySearch.smallestWindow(windows, counts, found, heads);
+                score += PROXIMITY_WEIGHT * (found - 1) / window;
+            }
+            if ( complete && score > threshold ) {
+                MovieSearchResult msr = new MovieSearchResult(movies.getTitle(movie), movie);
+                msr.setScore(score);
+                msr.setMinDistance(window);
+                heap.add(msr);
+                if ( heap.size() > k ) {
+                    heap.poll();
+                }
+                if ( heap.size() == k ) {
+                    threshold = heap.peek().getScore();
+                    while ( firstEssential < n && bound[firstEssential] <= threshold ) {
+                        firstEssential++;
+                    }
+                }
+            }
+            for ( int j = 0; j < found; j++ ) {
+                terms[present[j]].advance();
+            }
+        }
+
+        postingsDecoded = 0;
+        for ( Term term : terms ) {
+            postingsDecoded += term.cursor.decoded();
+        }
+        ArrayList<MovieSearchResult> top = new ArrayList<MovieSearchResult>(heap);
+        top.sort(WORST_FIRST.reversed());
+        return top;
+    }
+
+    private double score (Term term, int movie) {
+        postingsScored += term.tf;
+        return term.idf * termFrequency(term.tf, movies.getLength(movie));
+    }
+
+    /*
+     * @return the number of postings of the query words
+     */
+    long getPostingsTotal () {
+        return postingsTotal;
+    }
+
+    /*
+     * @return the number of postings whose movie was scored for their word
+     */
+    long getPostingsScored () {
+        return postingsScored;
+    }
+
+    /*
+     * @return the number of postings topK decoded; the others were skipped
+     */
+    long getPostingsDecoded () {
+        return postingsDecoded;
+    }
+}
@@ -0,0 +1,33 @@
+package searchengine;
+
+/*
+ * Receives the results of RUMDbSearchEngine.topKSearch(wordA, wordB, k, sink), one
+ * call per result, from the best to the worst. The positions are handed over in the
+ * search's own reusable buffers rather than as a MovieSearchResult, so a search that
+ * writes to a sink allocates nothing once its thread's buffers have grown to the
+ * largest query seen: a sink that needs the positions after accept returns must copy
+ * them.
+ *
+ * accept runs on the searching thread, and may search again: a topKSearch started
+ * from accept gets buffers of its own, so it returns the same results as any other
+ * search and leaves the positions being handed to accept untouched, but it allocates
+ * those buffers.
+ *
+ */
+public interface ResultSink {
+
+    /*
+     * One result.
+     *
+     * @param rank 0 for the best result, then 1, 2, ...
+     * @param movieId the movie's id in the search engine's MovieDictionary
+     * @param title the movie's title
+     * @param minDistance the shortest distance between a position of wordA and one of wordB
+     * @param positionsA the positions of wordA in the description, in positionsA[0..countA)
+     * @param countA the number of positions of wordA, at least 1
+     * @param positionsB the positions of wordB in the description, in positionsB[0..countB)
+     * @param countB the number of positions of wordB, at least 1
+     */
+    void accept (int rank, int movieId, String title, int minDistance,
+                 int[] positionsA, int countA, int[] positionsB, int countB);
+}
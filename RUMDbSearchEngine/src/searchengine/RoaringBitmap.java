@@ -0,0 +1,634 @@
+package searchengine;
+
+import java.util.Arrays;
+
+/*
+ * A compressed set of non-negative ints, such as the ids of the movies containing a
+ * word, in the manner of Roaring bitmaps.
+ *
+ * Values are split by their high 16 bits into chunks of 65536. Each non-empty chunk
+ * keeps its low 16 bits in the smallest of three containers:
+ *
+ *      array   a sorted char[] of up to ARRAY_MAX values, 2 bytes per value
+ *      bitmap  a long[1024] with one bit per possible value, 8 KB
+ *      run     sorted (start, length - 1) char pairs, 4 bytes per run of
+ *              consecutive values; only made by runOptimize
+ *
+ * AND, OR and AND NOT combine chunks with equal keys: two bitmaps 64 values per
+ * instruction, two arrays of similar sizes by merging them, an array and anything else
+ * by probing the other container with each of the array's values, runs by way of a
+ * bitmap. Results are normalized, a bitmap of at most ARRAY_MAX values becoming an
+ * array.
+ *
+ * A RoaringBitmap is not thread-safe; the sets returned by and, or and andNot are new
+ * and share nothing with their operands.
+ *
+ */
+public class RoaringBitmap {
+
+    private static final int ARRAY_MAX = 4096; // an array of more values is larger than a bitmap
+
+    private char[]      keys       = new char[4]; // high 16 bits of each chunk, increasing
+    private Container[] containers = new Container[4];
+    private int         size;                     // number of chunks
+
+    /*
+     * Adds @value, fastest in increasing order.
+     *
+     * @param value a non-negative int
+     */
+    public void add (int value) {
+        char key = (char) (value >>> 16);
+        int i = size > 0 && keys[size - 1] == key ? size - 1 : indexOf(key);
+        if ( i < 0 ) {
+            i = -i - 1;
+            insert(i, key, new ArrayContainer());
+        }
+        containers[i] = containers[i].add((char) value);
+    }
+
+    /*
+     * @return true if @value is in the set
+     */
+    public boolean contains (int value) {
+        int i = indexOf((char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    /*
+     * @return the number of values in the set
+     */
+    public int getCardinality () {
+        int cardinality = 0;
+        for ( int i = 0; i < size; i++ ) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    /*
+     * @return the smallest value of the set not smaller than @from, -1 if there is none
+     */
+    public int nextValue (int from) {
+        int i = indexOf((char) (from >>> 16));
+        int low = from & 0xFFFF;
+        if ( i < 0 ) {
+            i   = -i - 1;
+            low = 0;
+        }
+        for ( ; i < size; i++, low = 0 ) {
+            int next = containers[i].nextValue(low);
+            if ( next >= 0 ) {
+                return keys[i] << 16 | next;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * @return the values of the set, in increasing order
+     */
+    public int[] toArray () {
+        int[] values = new int[getCardinality()];
+        int n = 0;
+        for ( int i = 0; i < size; i++ ) {
+            n = containers[i].copyTo(values, n, keys[i] << 16);
+        }
+        return values;
+    }
+
+    /*
+     * Converts every chunk to a run container where runs take less space, as for a word
+     * occurring in most movies of a range.
+     */
+    public void runOptimize () {
+        for ( int i = 0; i < size; i++ ) {
+            Container c = containers[i];
+            int runs = c.runCount();
+            if ( 4 * runs + 2 < c.sizeInBytes() ) {
+                containers[i] = RunContainer.of(c, runs);
+            }
+        }
+    }
+
+    /*
+     * @return the bytes used by the containers' values
+     */
+    public long getSizeInBytes () {
+        long bytes = 2L * size;
+        for ( int i = 0; i < size; i++ ) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /*
+     * @return a new set of the values in both @a and @b
+     */
+    public static RoaringBitmap and (RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        for ( int i = 0, j = 0; i < a.size && j < b.size; ) {
+            if ( a.keys[i] < b.keys[j] ) {
+                i++;
+            } else if ( a.keys[i] > b.keys[j] ) {
+                j++;
+            } else {
+                Container c = and(a.containers[i], b.containers[j]);
+                if ( c.cardinality() > 0 ) {
+                    result.insert(result.size, a.keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * @return a new set of the values in @a or @b
+     */
+    public static RoaringBitmap or (RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while ( i < a.size || j < b.size ) {
+            if ( j == b.size || i < a.size && a.keys[i] < b.keys[j] ) {
+                result.insert(result.size, a.keys[i], a.containers[i].copy());
+                i++;
+            } else if ( i == a.size || a.keys[i] > b.keys[j] ) {
+                result.insert(result.size, b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.insert(result.size, a.keys[i], or(a.containers[i], b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * @return a new set of the values in @a and not in @b
+     */
+    public static RoaringBitmap andNot (RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        int j = 0;
+        for ( int i = 0; i < a.size; i++ ) {
+            while ( j < b.size && b.keys[j] < a.keys[i] ) {
+                j++;
+            }
+            Container c = j < b.size && b.keys[j] == a.keys[i] ? andNot(a.containers[i], b.containers[j])
+                                                               : a.containers[i].copy();
+            if ( c.cardinality() > 0 ) {
+                result.insert(result.size, a.keys[i], c);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * @return a new set of the values from 0 to @end - 1
+     */
+    public static RoaringBitmap range (int end) {
+        RoaringBitmap result = new RoaringBitmap();
+        for ( int start = 0; start < end; start += 1 << 16 ) {
+            int length = Math.min(1 << 16, end - start);
+            result.insert(result.size, (char) (start >>> 16), new RunContainer(new char[] { 0, (char) (length - 1) }, 1));
+        }
+        return result;
+    }
+
+    public boolean equals (Object other) {
+        return other instanceof RoaringBitmap && Arrays.equals(toArray(), ((RoaringBitmap) other).toArray());
+    }
+
+    public int hashCode () {
+        return Arrays.hashCode(toArray());
+    }
+
+    private int indexOf (char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert (int i, char key, Container c) {
+        if ( size == keys.length ) {
+            keys       = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i]       = key;
+        containers[i] = c;
+        size++;
+    }
+
+    private static Container and (Container a, Container b) {
+        if ( a instanceof BitmapContainer && b instanceof BitmapContainer ) {
+            long[] x = ((BitmapContainer) a).words, y = ((BitmapContainer) b).words;
+            long[] words = new long[BitmapContainer.WORDS];
+            for ( int w = 0; w < words.length; w++ ) {
+                words[w] = x[w] & y[w];
+            }
+            return BitmapContainer.normalize(words);
+        }
+        if ( b instanceof ArrayContainer && !(a instanceof ArrayContainer && a.cardinality() <= b.cardinality()) ) {
+            Container t = a;
+            a = b;
+            b = t;
+        }
+        if ( b instanceof ArrayContainer && b.cardinality() < 64 * a.cardinality() ) { // merge arrays of similar sizes
+            ArrayContainer x = (ArrayContainer) a, y = (ArrayContainer) b;
+            char[] values = new char[x.cardinality];
+            int i = 0, j = 0, n = 0;
+            while ( i < x.cardinality && j < y.cardinality ) {
+                char u = x.values[i], v = y.values[j];
+                if ( u == v ) {
+                    values[n++] = u;
+                }
+                i += u <= v ? 1 : 0;
+                j += v <= u ? 1 : 0;
+            }
+            return new ArrayContainer(values, n);
+        }
+        if ( a instanceof ArrayContainer ) { // probe the other container with each value
+            ArrayContainer array = (ArrayContainer) a;
+            char[] values = new char[array.cardinality];
+            int n = 0;
+            for ( int i = 0; i < array.cardinality; i++ ) {
+                if ( b.contains(array.values[i]) ) {
+                    values[n++] = array.values[i];
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+        return and(a.toBitmap(), b.toBitmap());
+    }
+
+    private static Container or (Container a, Container b) {
+        if ( a instanceof ArrayContainer && b instanceof ArrayContainer
+             && a.cardinality() + b.cardinality() <= ARRAY_MAX ) {
+            ArrayContainer x = (ArrayContainer) a, y = (ArrayContainer) b;
+            char[] values = new char[x.cardinality + y.cardinality];
+            int i = 0, j = 0, n = 0;
+            while ( i < x.cardinality && j < y.cardinality ) {
+                char u = x.values[i], v = y.values[j];
+                values[n++] = u <= v ? u : v;
+                i += u <= v ? 1 : 0;
+                j += v <= u ? 1 : 0;
+            }
+            while ( i < x.cardinality ) values[n++] = x.values[i++];
+            while ( j < y.cardinality ) values[n++] = y.values[j++];
+            return new ArrayContainer(values, n);
+        }
+        long[] words = a.toBitmap().words.clone();
+        if ( b instanceof ArrayContainer ) {
+            ArrayContainer array = (ArrayContainer) b;
+            for ( int i = 0; i < array.cardinality; i++ ) {
+                words[array.values[i] >>> 6] |= 1L << array.values[i];
+            }
+        } else {
+            long[] y = b.toBitmap().words;
+            for ( int w = 0; w < words.length; w++ ) {
+                words[w] |= y[w];
+            }
+        }
+        return BitmapContainer.normalize(words);
+    }
+
+    private static Container andNot (Container a, Container b) {
+        if ( a instanceof ArrayContainer ) {
+            ArrayContainer array = (ArrayContainer) a;
+            char[] values = new char[array.cardinality];
+            int n = 0;
+            for ( int i = 0; i < array.cardinality; i++ ) {
+                if ( !b.contains(array.values[i]) ) {
+                    values[n++] = array.values[i];
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+        long[] words = a.toBitmap().words.clone();
+        if ( b instanceof ArrayContainer ) {
+            ArrayContainer array = (ArrayContainer) b;
+            for ( int i = 0; i < array.cardinality; i++ ) {
+                words[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+            }
+        } else {
+            long[] y = b.toBitmap().words;
+            for ( int w = 0; w < words.length; w++ ) {
+                words[w] &= ~y[w];
+            }
+        }
+        return BitmapContainer.normalize(words);
+    }
+
+    /*
+     * The low 16 bits of the values of one chunk.
+     */
+    private abstract static class Container {
+        abstract int cardinality ();
+
+        abstract boolean contains (char value);
+
+        /*
+         * @return this container with @value added, or a new one if it had to change type
+         */
+        abstract Container add (char value);
+
+        /*
+         * @return the smallest value not smaller than @from, -1 if there is none
+         */
+        abstract int nextValue (int from);
+
+        /*
+         * Writes the values or'ed with @high to @out from @offset.
+         * @return the offset after the last value written
+         */
+        abstract int copyTo (int[] out, int offset, int high);
+
+        abstract int runCount ();
+
+        abstract int sizeInBytes ();
+
+        abstract BitmapContainer toBitmap ();
+
+        abstract Container copy ();
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int    cardinality;
+
+        ArrayContainer () {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer (char[] values, int cardinality) {
+            this.values      = values;
+            this.cardinality = cardinality;
+        }
+
+        int cardinality () {
+            return cardinality;
+        }
+
+        boolean contains (char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        Container add (char value) {
+            int i = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1
+                                                                         : Arrays.binarySearch(values, 0, cardinality, value);
+            if ( i >= 0 ) {
+                return this;
+            }
+            if ( cardinality == ARRAY_MAX ) {
+                return toBitmap().add(value);
+            }
+            i = -i - 1;
+            if ( cardinality == values.length ) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        int nextValue (int from) {
+            int i = Arrays.binarySearch(values, 0, cardinality, (char) from);
+            i = i >= 0 ? i : -i - 1;
+            return i < cardinality ? values[i] : -1;
+        }
+
+        int copyTo (int[] out, int offset, int high) {
+            for ( int i = 0; i < cardinality; i++ ) {
+                out[offset++] = high | values[i];
+            }
+            return offset;
+        }
+
+        int runCount () {
+            int runs = 0;
+            for ( int i = 0; i < cardinality; i++ ) {
+                if ( i == 0 || values[i] != values[i - 1] + 1 ) {
+                    runs++;
+                }
+            }
+            return runs;
+        }
+
+        int sizeInBytes () {
+            return 2 * cardinality;
+        }
+
+        BitmapContainer toBitmap () {
+            long[] words = new long[BitmapContainer.WORDS];
+            for ( int i = 0; i < cardinality; i++ ) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+
+        Container copy () {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        static final int WORDS = 1024;
+
+        final long[] words;
+        int          cardinality;
+
+        BitmapContainer (long[] words, int cardinality) {
+            this.words       = words;
+            this.cardinality = cardinality;
+        }
+
+        /*
+         * @return the container of the values of @words, an array if they are few
+         */
+        static Container normalize (long[] words) {
+            int cardinality = 0;
+            for ( long word : words ) {
+                cardinality += Long.bitCount(word);
+            }
+            if ( cardinality > ARRAY_MAX ) {
+                return new BitmapContainer(words, cardinality);
+            }
+            char[] values = new char[cardinality];
+            int n = 0;
+            for ( int w = 0; w < WORDS; w++ ) {
+                for ( long word = words[w]; word != 0; word &= word - 1 ) {
+                    values[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+
+        int cardinality () {
+            return cardinality;
+        }
+
+        boolean contains (char value) {
+            return (words[value >>> 6] & 1L << value) != 0;
+        }
+
+        Container add (char value) {
+            if ( !contains(value) ) {
+                words[value >>> 6] |= 1L << value;
+                cardinality++;
+            }
+            return this;
+        }
+
+        int nextValue (int from) {
+            int w = from >>> 6;
+            long word = words[w] & -1L << from;
+            while ( word == 0 ) {
+                if ( ++w == WORDS ) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return w << 6 | Long.numberOfTrailingZeros(word);
+        }
+
+        int copyTo (int[] out, int offset, int high) {
+            for ( int w = 0; w < WORDS; w++ ) {
+                for ( long word = words[w]; word != 0; word &= word - 1 ) {
+                    out[offset++] = high | w << 6 | Long.numberOfTrailingZeros(word);
+                }
+            }
+            return offset;
+        }
+
+        int runCount () {
+            int runs = 0;
+            long previous = 0;
+            for ( long word : words ) { // a run starts at each set bit whose lower neighbour is clear
+                runs += Long.bitCount(word & ~(word << 1 | previous >>> 63));
+                previous = word;
+            }
+            return runs;
+        }
+
+        int sizeInBytes () {
+            return 8 * WORDS;
+        }
+
+        BitmapContainer toBitmap () {
+            return this;
+        }
+
+        Container copy () {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+    }
+
+    private static final class RunContainer extends Container {
+        final char[] runs; // start, length - 1 of each run
+        final int    count;
+
+        RunContainer (char[] runs, int count) {
+            this.runs  = runs;
+            this.count = count;
+        }
+
+        static RunContainer of (Container c, int count) {
+            char[] runs = new char[2 * count];
+            int n = 0, start = c.nextValue(0);
+            while ( start >= 0 ) {
+                int end = start;
+                while ( end < 0xFFFF && c.contains((char) (end + 1)) ) {
+                    end++;
+                }
+                runs[n++] = (char) start;
+                runs[n++] = (char) (end - start);
+                start = end == 0xFFFF ? -1 : c.nextValue(end + 1);
+            }
+            return new RunContainer(runs, count);
+        }
+
+        /*
+         * @return the index of the last run starting at or before @value, -1 if none
+         */
+        private int runOf (int value) {
+            int lo = 0, hi = count - 1;
+            while ( lo <= hi ) {
+                int mid = (lo + hi) >>> 1;
+                if ( runs[2 * mid] <= value ) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi;
+        }
+
+        int cardinality () {
+            int cardinality = 0;
+            for ( int r = 0; r < count; r++ ) {
+                cardinality += runs[2 * r + 1] + 1;
+            }
+            return cardinality;
+        }
+
+        boolean contains (char value) {
+            int r = runOf(value);
+            return r >= 0 && value <= runs[2 * r] + runs[2 * r + 1];
+        }
+
+        Container add (char value) {
+            return contains(value) ? this : toBitmap().add(value);
+        }
+
+        int nextValue (int from) {
+            int r = runOf(from);
+            if ( r >= 0 && from <= runs[2 * r] + runs[2 * r + 1] ) {
+                return from;
+            }
+            return r + 1 < count ? runs[2 * (r + 1)] : -1;
+        }
+
+        int copyTo (int[] out, int offset, int high) {
+            for ( int r = 0; r < count; r++ ) {
+                for ( int v = runs[2 * r], end = v + runs[2 * r + 1]; v <= end; v++ ) {
+                    out[offset++] = high | v;
+                }
+            }
+            return offset;
+        }
+
+        int runCount () {
+            return count;
+        }
+
+        int sizeInBytes () {
+            return 4 * count;
+        }
+
+        BitmapContainer toBitmap () {
+            long[] words = new long[BitmapContainer.WORDS];
+            for ( int r = 0; r < count; r++ ) {
+                int start = runs[2 * r], end = start + runs[2 * r + 1]; // inclusive
+                int first = start >>> 6, last = end >>> 6;
+                long head = -1L << start, tail = -1L >>> (63 - (end & 63));
+                if ( first == last ) {
+                    words[first] |= head & tail;
+                } else {
+                    words[first] |= head;
+                    for ( int w = first + 1; w < last; w++ ) {
+                        words[w] = -1L;
+                    }
+                    words[last] |= tail;
+                }
+            }
+            return new BitmapContainer(words, cardinality());
+        }
+
+        Container copy () {
+            return this; // never modified: add converts to a bitmap
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package searchengine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A bounded cache of two word search results, placed in front of
+ * RUMDbSearchEngine.topKSearch with RUMDbSearchEngine.setResultCache.
+ *
+ * The key of a search is its pair of words in alphabetical order plus k: the results
+ * of (wordA, wordB) and (wordB, wordA) are the same movies with the same distances,
+ * only with the A and B locations swapped, so both orders share one entry.
+ *
+ * Entries are spread over STRIPES independently locked stripes, each evicting with
+ * one of two policies:
+ *
+ *      LRU       the least recently used entry is evicted.
+ *      TINY_LFU  W-TinyLFU: new entries go to a small LRU window (1% of the stripe).
+ *                An entry leaving the window replaces the main area's eviction victim
+ *                only if it was asked for more often, as estimated by a count-min
+ *                sketch of recent accesses whose counters are halved periodically.
+ *                The main area is a segmented LRU (probation, then protected once hit
+ *                again). Skewed workloads keep their popular pairs when a burst of
+ *                one-off queries would flush an LRU cache.
+ *
+ * Inserting a word invalidates the entries of every search involving it: each word
+ * hashes to one of VERSIONS counters that inserts increment once the word's new
+ * postings are visible to searches, and an entry is only used if the counters of both
+ * its words are unchanged since before it was computed. Two words sharing a counter
+ * cause the occasional needless miss, never a stale hit.
+ *
+ */
+public class SearchCache {
+
+    public enum Policy { LRU, TINY_LFU }
+
+    private static final int STRIPES  = 16;
+    private static final int VERSIONS = 4096;
+
+    /*
+     * A cached search result.
+     */
+    static class Entry {
+        final ArrayList<MovieSearchResult> results; // null if a word was not found
+        final String wordA;                          // wordA of the search that computed it
+        final long   versionA;
+        final long   versionB;
+
+        Entry (ArrayList<MovieSearchResult> results, String wordA, long versionA, long versionB) {
+            this.results  = results;
+            this.wordA    = wordA;
+            this.versionA = versionA;
+            this.versionB = versionB;
+        }
+    }
+
+    private final Stripe[]        stripes;
+    private final AtomicLongArray versions = new AtomicLongArray(VERSIONS);
+    private final AtomicLong      hits      = new AtomicLong();
+    private final AtomicLong      misses    = new AtomicLong();
+    private final AtomicLong      evictions = new AtomicLong();
+
+    /*
+     * @param capacity the maximum number of cached searches
+     * @param policy the eviction policy
+     */
+    public SearchCache (int capacity, Policy policy) {
+        if ( capacity < STRIPES ) {
+            throw new IllegalArgumentException("capacity must be at least " + STRIPES);
+        }
+        stripes = new Stripe[STRIPES];
+        for ( int i = 0; i < STRIPES; i++ ) {
+            int size = capacity / STRIPES + (i < capacity % STRIPES ? 1 : 0);
+            stripes[i] = policy == Policy.LRU ? new LruStripe(size) : new TinyLfuStripe(size);
+        }
+    }
+
+    /*
+     * @return the key shared by (wordA, wordB, k) and (wordB, wordA, k)
+     */
+    static String key (String wordA, String wordB, int k) {
+        return wordA.compareTo(wordB) <= 0 ? k + " " + wordA + " " + wordB : k + " " + wordB + " " + wordA;
+    }
+
+    private Stripe stripe (String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /*
+     * @return the current version of @word's counter
+     */
+    long version (String word) {
+        int h = word.hashCode();
+        return versions.get((h ^ (h >>> 16)) & (VERSIONS - 1));
+    }
+
+    /*
+     * Invalidates every entry of a search involving @word.
+     */
+    void invalidate (String word) {
+        int h = word.hashCode();
+        versions.incrementAndGet((h ^ (h >>> 16)) & (VERSIONS - 1));
+    }
+
+    /*
+     * Looks a search up.
+     * @return the entry, or null on a miss or if the entry is stale
+     */
+    Entry get (String key, String wordA, String wordB) {
+        Stripe stripe = stripe(key);
+        Entry entry;
+        synchronized ( stripe ) {
+            entry = stripe.get(key);
+            if ( entry != null ) {
+                boolean sameOrder = entry.wordA.equals(wordA);
+                long a = version(wordA), b = version(wordB);
+                if ( entry.versionA != (sameOrder ? a : b) || entry.versionB != (sameOrder ? b : a) ) {
+                    stripe.remove(key);
+                    entry = null;
+                }
+            }
+        }
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry;
+    }
+
+    /*
+     * Caches a search result. The entry's versions must have been read before the
+     * search started: an insert racing with the search increments its word's version
+     * after publishing the postings the search may have missed, so the entry is stale.
+     */
+    void put (String key, Entry entry) {
+        Stripe stripe = stripe(key);
+        int evicted;
+        synchronized ( stripe ) {
+            evicted = stripe.put(key, entry);
+        }
+        evictions.addAndGet(evicted);
+    }
+
+    /*
+     * @return the number of searches answered from the cache
+     */
+    public long getHitCount () {
+        return hits.get();
+    }
+
+    /*
+     * @return the number of searches that were not cached or were stale
+     */
+    public long getMissCount () {
+        return misses.get();
+    }
+
+    /*
+     * @return the number of entries evicted to make room for others
+     */
+    public long getEvictionCount () {
+        return evictions.get();
+    }
+
+    /*
+     * @return the number of cached searches
+     */
+    public int size () {
+        int size = 0;
+        for ( Stripe stripe : stripes ) {
+            synchronized ( stripe ) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /*
+     * One independently locked part of the cache. Callers hold the stripe's lock.
+     */
+    private interface Stripe {
+        Entry get (String key);
+        void remove (String key);
+        int put (String key, Entry entry); // returns the number of entries evicted
+        int size ();
+    }
+
+    private static class LruStripe implements Stripe {
+        private final int capacity;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        LruStripe (int capacity) {
+            this.capacity = capacity;
+        }
+
+        public Entry get (String key) {
+            return entries.get(key);
+        }
+
+        public void remove (String key) {
+            entries.remove(key);
+        }
+
+        public int put (String key, Entry entry) {
+            entries.put(key, entry);
+            if ( entries.size() > capacity ) {
+                removeEldest(entries);
+                return 1;
+            }
+            return 0;
+        }
+
+        public int size () {
+            return entries.size();
+        }
+    }
+
+    private static class TinyLfuStripe implements Stripe {
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final int protectedCapacity;
+        private final LinkedHashMap<String, Entry> window     = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> probation  = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protectedArea = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+
+        TinyLfuStripe (int capacity) {
+            windowCapacity    = Math.max(1, capacity / 100);
+            mainCapacity      = Math.max(1, capacity - windowCapacity);
+            protectedCapacity = mainCapacity * 8 / 10;
+            sketch            = new FrequencySketch(capacity);
+        }
+
+        public Entry get (String key) {
+            sketch.increment(key);
+            Entry entry = window.get(key);
+            if ( entry != null ) {
+                return entry;
+            }
+            entry = probation.remove(key);
+            if ( entry != null ) {
+                protectedArea.put(key, entry);
+                if ( protectedArea.size() > protectedCapacity ) {
+                    String demoted = eldest(protectedArea);
+                    probation.put(demoted, protectedArea.remove(demoted));
+                }
+                return entry;
+            }
+            return protectedArea.get(key);
+        }
+
+        public void remove (String key) {
+            if ( window.remove(key) == null && probation.remove(key) == null ) {
+                protectedArea.remove(key);
+            }
+        }
+
+        public int put (String key, Entry entry) {
+            if ( probation.containsKey(key) ) {
+                probation.put(key, entry);
+                return 0;
+            }
+            if ( protectedArea.containsKey(key) ) {
+                protectedArea.put(key, entry);
+                return 0;
+            }
+            window.put(key, entry);
+            if ( window.size() <= windowCapacity ) {
+                return 0;
+            }
+            String candidate = eldest(window);
+            Entry candidateEntry = window.remove(candidate);
+            if ( probation.size() + protectedArea.size() < mainCapacity ) {
+                probation.put(candidate, candidateEntry);
+                return 0;
+            }
+            LinkedHashMap<String, Entry> victims = probation.isEmpty() ? protectedArea : probation;
+            String victim = eldest(victims);
+            if ( sketch.frequency(candidate) > sketch.frequency(victim) ) {
+                victims.remove(victim);
+                probation.put(candidate, candidateEntry);
+            }
+            return 1; // either the victim or the candidate was evicted
+        }
+
+        public int size () {
+            return window.size() + probation.size() + protectedArea.size();
+        }
+    }
+
+    private static String eldest (LinkedHashMap<String, Entry> map) {
+        return map.keySet().iterator().next();
+    }
+
+    private static void removeEldest (LinkedHashMap<String, Entry> map) {
+        Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+        it.next();
+        it.remove();
+    }
+
+    /*
+     * Count-min sketch of how often keys were asked for: four rows of counters capped
+     * at 15, each indexed by a different hash of the key. A key's frequency is its
+     * smallest counter. After 10 accesses per cached entry every counter is halved,
+     * so the estimate follows recent popularity.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] counters;
+        private final int      mask;
+        private final int      sampleSize;
+        private int            additions;
+
+        FrequencySketch (int capacity) {
+            int width  = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+            counters   = new byte[SEEDS.length][width];
+            mask       = width - 1;
+            sampleSize = 10 * Math.max(1, capacity);
+        }
+
+        private int index (String key, int row) {
+            int h = key.hashCode() * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment (String key) {
+            for ( int row = 0; row < SEEDS.length; row++ ) {
+                int i = index(key, row);
+                if ( counters[row][i] < 15 ) {
+                    counters[row][i]++;
+                }
+            }
+            if ( ++additions == sampleSize ) {
+                additions = 0;
+                for ( byte[] row : counters ) {
+                    for ( int i = 0; i < row.length; i++ ) {
+                        row[i] >>= 1;
+                    }
+                }
+            }
+        }
+
+        int frequency (String key) {
+            int min = 15;
+            for ( int row = 0; row < SEEDS.length; row++ ) {
+                min = Math.min(min, counters[row][index(key, row)]);
+            }
+            return min;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package searchengine;
+
+import java.util.ArrayDeque;
+
+/*
+ * A MetricsSink that aggregates the events in memory:
+ *
+ *      - topKSearch latency and postings read per search, as Histograms
+ *      - rehash count and duration, as a Histogram
+ *      - the load factor over time: the load factor before and after each of the
+ *        last LOAD_SAMPLES rehashes, which are its peaks and troughs, since between
+ *        rehashes it only grows with the number of words
+ *
+ * toString() formats a summary, printed after RUMDbSearchEngine.printStats() by the
+ * Driver.
+ *
+ */
+public class SearchStats implements MetricsSink {
+
+    private static final int LOAD_SAMPLES = 16;
+
+    private final Histogram searchNanos   = new Histogram();
+    private final Histogram postings      = new Histogram();
+    private final Histogram rehashNanos   = new Histogram();
+    private final ArrayDeque<double[]> loads = new ArrayDeque<double[]>(); // { millis, before, after }
+    private final long start = System.currentTimeMillis();
+
+    public void rehashed (int oldHashSize, int newHashSize, int wordCount, long nanos) {
+        rehashNanos.record(nanos);
+        synchronized ( loads ) {
+            if ( loads.size() == LOAD_SAMPLES ) {
+                loads.removeFirst();
+            }
+            loads.addLast(new double[] { System.currentTimeMillis() - start,
+                                         (double) wordCount / oldHashSize, (double) wordCount / newHashSize });
+        }
+    }
+
+    public void searched (long nanos, int postingsScanned) {
+        searchNanos.record(nanos);
+        postings.record(postingsScanned);
+    }
+
+    /*
+     * @return the latency of topKSearch, in nanoseconds
+     */
+    public Histogram getSearchLatency () {
+        return searchNanos;
+    }
+
+    /*
+     * @return the number of postings read per search
+     */
+    public Histogram getPostingsScanned () {
+        return postings;
+    }
+
+    /*
+     * @return the duration of rehashes, in nanoseconds
+     */
+    public Histogram getRehashTime () {
+        return rehashNanos;
+    }
+
+    public String toString () {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("searches           %d%n", searchNanos.getCount()));
+        if ( searchNanos.getCount() > 0 ) {
+            sb.append(String.format("search latency us  mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+                                    searchNanos.getMean() / 1e3, searchNanos.getValueAtPercentile(50) / 1e3,
+                                    searchNanos.getValueAtPercentile(90) / 1e3,
+                                    searchNanos.getValueAtPercentile(99) / 1e3, searchNanos.getMax() / 1e3));
+            sb.append(String.format("postings/search    mean %.1f, p50 %d, p99 %d, max %d%n", postings.getMean(),
+                                    postings.getValueAtPercentile(50), postings.getValueAtPercentile(99),
+                                    postings.getMax()));
+        }
+        sb.append(String.format("rehashes           %d%n", rehashNanos.getCount()));
+        if ( rehashNanos.getCount() > 0 ) {
+            sb.append(String.format("rehash ms          total %.2f, max %.2f%n",
+                                    rehashNanos.getMean() * rehashNanos.getCount() / 1e6, rehashNanos.getMax() / 1e6));
+            sb.append("load factor        ");
+            synchronized ( loads ) {
+                for ( double[] load : loads ) {
+                    sb.append(String.format("%.0fms %.2f->%.2f  ", load[0], load[1], load[2]));
+                }
+            }
+            sb.setLength(sb.length() - 2);
+            sb.append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+}
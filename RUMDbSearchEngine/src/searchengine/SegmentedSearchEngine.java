@@ -0,0 +1,544 @@
+package searchengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * A search engine that keeps growing without ever rebuilding its index.
+ *
+ * New movies are inserted in a small in-memory RUMDbSearchEngine (the memtable).
+ * When it holds flushMovies movies it is written to an immutable IndexSegment file
+ * and a new memtable is started. Segments are merged in the background by a tiered
+ * policy: a segment's tier is log(movies / flushMovies) in base mergeFactor, and
+ * whenever mergeFactor consecutive segments are in the same tier they are merged into
+ * one segment of the next tier. Each movie is therefore rewritten about
+ * log(total / flushMovies) times in total, and the number of segments stays
+ * logarithmic in the number of movies.
+ *
+ * Movie ids are global and handed out in insertion order. Every segment covers a
+ * contiguous range of ids (its postings hold ids relative to the first one), merges
+ * only combine neighbouring segments, and the memtable covers the ids after the last
+ * segment.
+ *
+ * Deleting a movie marks its id in a bit set that searches skip; merges drop the
+ * postings of deleted movies. Updating a movie deletes it and inserts it again with
+ * a new id.
+ *
+ * Searches never lock. The memtable and the list of segments are published together
+ * as one immutable State, which is replaced when the memtable is flushed or a merge
+ * completes; a search reads it once and fans out over its segments and memtable,
+ * feeding every candidate into one bounded heap. Inserts, deletes and flushes are
+ * serialized on a lock, and at most one merge runs at a time.
+ *
+ * The directory holds one file per segment, named first id-end id.seg, and the deleted
+ * ids of flushed movies. Every file is written under a .tmp name and then renamed, so
+ * a crash never leaves a truncated segment; opening a directory deletes the leftover
+ * .tmp files and picks up its segments. Movies that are still in the memtable are
+ * lost unless close() or flush() is called. A background merge that fails is reported
+ * by the next flush() or close().
+ *
+ */
+public class SegmentedSearchEngine {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DELETED_FILE   = "deleted.ids";
+    private static final String TMP_SUFFIX     = ".tmp";
+
+    /*
+     * A segment file and the first movie id it covers.
+     */
+    private static class Segment {
+        final IndexSegment index;
+        final int          base;
+        final File         file;
+
+        Segment (IndexSegment index, int base, File file) {
+            this.index = index;
+            this.base  = base;
+            this.file  = file;
+        }
+
+        int end () {
+            return base + index.getMovies().size();
+        }
+    }
+
+    /*
+     * What a search reads: the segments in id order and the memtable after them.
+     */
+    private static class State {
+        final Segment[]         segments;
+        final RUMDbSearchEngine memtable;
+        final int               memtableBase;
+
+        State (Segment[] segments, RUMDbSearchEngine memtable, int memtableBase) {
+            this.segments     = segments;
+            this.memtable     = memtable;
+            this.memtableBase = memtableBase;
+        }
+    }
+
+    private final File           directory;
+    private final WordNormalizer normalizer;
+    private final int            flushMovies; // memtable size that triggers a flush
+    private final int            mergeFactor; // segments per tier that trigger a merge
+
+    private volatile State  state;
+    private volatile BitSet deleted;          // deleted movie ids, replaced on every change
+
+    private final Object writeLock = new Object(); // serializes inserts, deletes and flushes
+    private final Object stateLock = new Object(); // serializes replacing state
+    private final ExecutorService merger;
+    private final AtomicReference<UncheckedIOException> mergeFailure = new AtomicReference<UncheckedIOException>();
+
+    /*
+     * Opens a search engine stored in @directory, creating the directory if needed.
+     *
+     * @param directory holds the segment files
+     * @param noiseWordsFile contains words that will not be inserted into the index.
+     * @param flushMovies number of movies kept in memory before they are written to a
+     * segment
+     * @param mergeFactor number of segments of a tier that are merged together, at
+     * least 2
+     */
+    public SegmentedSearchEngine (String directory, String noiseWordsFile, int flushMovies, int mergeFactor) {
+        if ( flushMovies < 1 || mergeFactor < 2 ) {
+            throw new IllegalArgumentException("flushMovies must be positive and mergeFactor at least 2");
+        }
+        this.directory   = new File(directory);
+        this.normalizer  = WordNormalizer.fromFile(noiseWordsFile);
+        this.flushMovies = flushMovies;
+        this.mergeFactor = mergeFactor;
+        this.merger      = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-merger");
+            t.setDaemon(true);
+            return t;
+        });
+        this.directory.mkdirs();
+        // files whose writing was interrupted
+        for ( File tmp : this.directory.listFiles((dir, name) -> name.endsWith(TMP_SUFFIX)) ) {
+            tmp.delete();
+        }
+        try {
+            Segment[] segments = openSegments();
+            int next = segments.length == 0 ? 0 : segments[segments.length - 1].end();
+            this.deleted = readDeleted(next);
+            this.state   = new State(segments, newMemtable(), next);
+        } catch ( IOException e ) {
+            throw new UncheckedIOException("Could not open " + directory, e);
+        }
+        merger.execute(this::mergeSegments);
+    }
+
+    private RUMDbSearchEngine newMemtable () {
+        return new RUMDbSearchEngine(20, 8, normalizer, false);
+    }
+
+    /*
+     * Opens the segment files of the directory. A merge that was interrupted may have
+     * left the merged segment next to the segments it replaces: segments covered by a
+     * larger one are deleted.
+     */
+    private Segment[] openSegments () throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        int[][] ranges = new int[files.length][];
+        for ( int i = 0; i < files.length; i++ ) {
+            String name = files[i].getName();
+            String[] ids = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("-");
+            ranges[i] = new int[] { Integer.parseInt(ids[0]), Integer.parseInt(ids[1]), i };
+        }
+        // by first id, the widest range first
+        Arrays.sort(ranges, (x, y) -> x[0] != y[0] ? Integer.compare(x[0], y[0]) : Integer.compare(y[1], x[1]));
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        int end = 0;
+        for ( int[] range : ranges ) {
+            File file = files[range[2]];
+            if ( range[0] < end ) {
+                file.delete();
+                continue;
+            }
+            if ( range[0] != end ) {
+                throw new IOException("missing segment for movie ids " + end + "-" + range[0]);
+            }
+            segments.add(new Segment(IndexSegment.open(file.getPath()), range[0], file));
+            end = range[1];
+        }
+        return segments.toArray(new Segment[0]);
+    }
+
+    /*
+     * @return the deleted ids smaller than @end stored in the directory
+     */
+    private BitSet readDeleted (int end) throws IOException {
+        BitSet ids = new BitSet();
+        File file = new File(directory, DELETED_FILE);
+        if ( !file.exists() ) {
+            return ids;
+        }
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+            while ( true ) {
+                int id = in.readInt();
+                if ( id < end ) {
+                    ids.set(id);
+                }
+            }
+        } catch ( EOFException e ) {
+            return ids;
+        }
+    }
+
+    /*
+     * Replaces the deleted ids file with the deleted ids smaller than @end.
+     */
+    private void writeDeleted (BitSet ids, int end) throws IOException {
+        File tmp = new File(directory, DELETED_FILE + TMP_SUFFIX);
+        try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))) ) {
+            for ( int id = ids.nextSetBit(0); id != -1 && id < end; id = ids.nextSetBit(id + 1) ) {
+                out.writeInt(id);
+            }
+        }
+        Files.move(tmp.toPath(), new File(directory, DELETED_FILE).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Inserts one movie in the format of a readInputFile entry: the title at index 0
+     * followed by the description words.
+     *
+     * @param movie the movie's title and description words
+     * @return the movie's id
+     */
+    public int insertMovie (ArrayList<String> movie) {
+        synchronized ( writeLock ) {
+            State s = state;
+            int id = s.memtableBase + s.memtable.insertMovie(movie);
+            if ( s.memtable.getMovies().size() >= flushMovies ) {
+                flushMemtable();
+            }
+            return id;
+        }
+    }
+
+    /*
+     * Inserts every movie of @inputFile, read one at a time.
+     *
+     * @param inputFile the file to be read containg movie's titles and descriptions
+     */
+    public void insertMoviesIntoHashTable (String inputFile) {
+        try ( MovieReader reader = new MovieReader(inputFile) ) {
+            for ( ArrayList<String> movie = reader.readMovie(); movie != null; movie = reader.readMovie() ) {
+                insertMovie(movie);
+            }
+        } catch ( IOException e ) {
+            throw new UncheckedIOException("Could not read " + inputFile, e);
+        }
+    }
+
+    /*
+     * Deletes every movie titled @title. Finding them reads the title of every movie.
+     *
+     * @param title the title, in lower case as readInputFile returns it
+     * @return the number of movies deleted
+     */
+    public int deleteMovie (String title) {
+        synchronized ( writeLock ) {
+            State s = state;
+            BitSet ids = (BitSet) deleted.clone();
+            int count = 0;
+            for ( Segment segment : s.segments ) {
+                count += markTitle(segment.index.getMovies(), segment.base, title, ids);
+            }
+            count += markTitle(s.memtable.getMovies(), s.memtableBase, title, ids);
+            deleted = ids;
+            return count;
+        }
+    }
+
+    private static int markTitle (MovieDictionary movies, int base, String title, BitSet ids) {
+        int count = 0;
+        for ( int i = 0; i < movies.size(); i++ ) {
+            if ( !ids.get(base + i) && movies.getTitle(i).equals(title) ) {
+                ids.set(base + i);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Replaces the movies titled like @movie with @movie.
+     *
+     * @param movie the movie's title and description words
+     * @return the movie's new id
+     */
+    public int updateMovie (ArrayList<String> movie) {
+        synchronized ( writeLock ) {
+            deleteMovie(movie.get(0));
+            return insertMovie(movie);
+        }
+    }
+
+    /*
+     * Writes the memtable to a new segment, if it holds any movie, and the deleted ids
+     * of every flushed movie to the directory, then schedules a merge.
+     *
+     * @throws UncheckedIOException if a background merge failed since the last flush,
+     * after flushing
+     */
+    public void flush () {
+        flushMemtable();
+        rethrowMergeFailure();
+    }
+
+    /*
+     * flush without reporting merge failures, for inserts.
+     */
+    private void flushMemtable () {
+        synchronized ( writeLock ) {
+            State s = state;
+            int end = s.memtableBase + s.memtable.getMovies().size();
+            File file = new File(directory, s.memtableBase + "-" + end + SEGMENT_SUFFIX);
+            File tmp  = new File(directory, file.getName() + TMP_SUFFIX);
+            try {
+                if ( end > s.memtableBase ) {
+                    s.memtable.writeSegment(tmp.getPath());
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    Segment segment = new Segment(IndexSegment.open(file.getPath()), s.memtableBase, file);
+                    synchronized ( stateLock ) {
+                        Segment[] segments = Arrays.copyOf(state.segments, state.segments.length + 1);
+                        segments[segments.length - 1] = segment;
+                        state = new State(segments, newMemtable(), end);
+                    }
+                }
+                writeDeleted(deleted, end);
+            } catch ( IOException e ) {
+                throw new UncheckedIOException("Could not flush to " + directory, e);
+            }
+        }
+        if ( !merger.isShutdown() ) {
+            merger.execute(this::mergeSegments);
+        }
+    }
+
+    /*
+     * Flushes the memtable and waits for the background merges to finish.
+     *
+     * @throws UncheckedIOException if a background merge failed
+     */
+    public void close () {
+        try {
+            flush();
+        } finally {
+            merger.shutdown();
+            try {
+                merger.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        rethrowMergeFailure();
+    }
+
+    /*
+     * Throws the failure of a background merge, once.
+     */
+    private void rethrowMergeFailure () {
+        UncheckedIOException failure = mergeFailure.getAndSet(null);
+        if ( failure != null ) {
+            throw failure;
+        }
+    }
+
+    /*
+     * @return the tier of a segment holding @movies movies
+     */
+    private int tier (int movies) {
+        int tier = 0;
+        for ( long size = (long) flushMovies * mergeFactor; movies >= size; size *= mergeFactor ) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /*
+     * Runs on the merger thread: merges runs of mergeFactor consecutive segments of the
+     * same tier until there is none left. A failure stops merging until the next flush
+     * and is kept for it to rethrow; the segments of the run stay in place.
+     */
+    private void mergeSegments () {
+        while ( true ) {
+            Segment[] segments = state.segments;
+            int start = -1;
+            for ( int i = 0; i + mergeFactor <= segments.length && start == -1; i++ ) {
+                int t = tier(segments[i].index.getMovies().size());
+                start = i;
+                for ( int j = i + 1; j < i + mergeFactor; j++ ) {
+                    if ( tier(segments[j].index.getMovies().size()) != t ) {
+                        start = -1;
+                    }
+                }
+            }
+            if ( start == -1 ) {
+                return;
+            }
+            try {
+                merge(Arrays.copyOfRange(segments, start, start + mergeFactor));
+            } catch ( IOException e ) {
+                mergeFailure.compareAndSet(null, new UncheckedIOException("Could not merge segments", e));
+                return;
+            } catch ( UncheckedIOException e ) {
+                mergeFailure.compareAndSet(null, e);
+                return;
+            }
+        }
+    }
+
+    /*
+     * Writes the postings of @run, consecutive segments, to one segment without the
+     * deleted movies, then replaces @run with it.
+     */
+    private void merge (Segment[] run) throws IOException {
+        int base = run[0].base;
+        int end  = run[run.length - 1].end();
+        BitSet skip = deleted;
+
+        MovieDictionary titles = new MovieDictionary();
+        LinkedHashMap<String, PostingList> lists = new LinkedHashMap<String, PostingList>();
+        for ( Segment segment : run ) {
+            MovieDictionary movies = segment.index.getMovies();
+            for ( int i = 0; i < movies.size(); i++ ) {
+                titles.updateLength(titles.addMovie(movies.getTitle(i)), movies.getLength(i));
+            }
+            int offset = segment.base - base;
+            for ( int id = 0; id < segment.index.getTermCount(); id++ ) {
+                String word = segment.index.getTerm(id);
+                PostingList list = lists.get(word);
+                PostingList.Cursor c = segment.index.getPostings(id).cursor();
+                while ( c.next() ) {
+                    if ( skip.get(segment.base + c.movieId()) ) {
+                        continue;
+                    }
+                    if ( list == null ) {
+                        list = new PostingList();
+                        lists.put(word, list);
+                    }
+                    list.add(offset + c.movieId(), c.position());
+                }
+            }
+        }
+
+        File file = new File(directory, base + "-" + end + SEGMENT_SUFFIX);
+        File tmp  = new File(directory, file.getName() + TMP_SUFFIX);
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<PostingList> postings = new ArrayList<PostingList>();
+        for ( Map.Entry<String, PostingList> entry : lists.entrySet() ) {
+            words.add(entry.getKey());
+            postings.add(entry.getValue());
+        }
+        IndexSegment.write(tmp.getPath(), titles, words, postings);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Segment merged = new Segment(IndexSegment.open(file.getPath()), base, file);
+
+        synchronized ( stateLock ) {
+            // flushes only append, so the run is still in place
+            State s = state;
+            int start = Arrays.asList(s.segments).indexOf(run[0]);
+            Segment[] segments = new Segment[s.segments.length - run.length + 1];
+            System.arraycopy(s.segments, 0, segments, 0, start);
+            segments[start] = merged;
+            System.arraycopy(s.segments, start + run.length, segments, start + 1,
+                             s.segments.length - start - run.length);
+            state = new State(segments, s.memtable, s.memtableBase);
+        }
+        // searches still reading the old segments keep their mappings
+        for ( Segment segment : run ) {
+            segment.file.delete();
+        }
+    }
+
+    /*
+     * Finds the @k movies in which wordA and wordB appear closest to each other, over
+     * every segment and the memtable. See RUMDbSearchEngine.topKSearch.
+     *
+     * @param wordA the first word to search
+     * @param wordB the second word to search
+     * @param k the maximum number of results
+     * @return ArrayList of at most @k MovieSearchResult sorted from the smallest
+     * distance to the greatest, or null if either word is in no movie.
+     */
+    public ArrayList<MovieSearchResult> topKSearch (String wordA, String wordB, int k) {
+        State s = state;
+        BitSet skip = deleted;
+        // no more results than movies, so a huge k costs nothing
+        int most = Math.max(0, Math.min(k, s.memtableBase + s.memtable.getMovies().size()));
+        PriorityQueue<MovieSearchResult> heap =
+            new PriorityQueue<MovieSearchResult>(most + 1, MovieSearchResult.WORST_FIRST);
+        boolean foundA = false, foundB = false;
+        for ( Segment segment : s.segments ) {
+            WordOccurrence occA = segment.index.getWordOccurrence(wordA);
+            WordOccurrence occB = segment.index.getWordOccurrence(wordB);
+            foundA |= occA != null;
+            foundB |= occB != null;
+            if ( occA != null && occB != null && k > 0 ) {
+                RUMDbSearchEngine.collectTopK(occA.getPostings(), occB.getPostings(),
+                                              segment.index.getMovies(), segment.base, skip, k, heap);
+            }
+        }
+        WordOccurrence occA = s.memtable.getWordOccurrence(wordA);
+        WordOccurrence occB = s.memtable.getWordOccurrence(wordB);
+        foundA |= occA != null;
+        foundB |= occB != null;
+        if ( occA != null && occB != null && k > 0 ) {
+            RUMDbSearchEngine.collectTopK(occA.getPostings(), occB.getPostings(),
+                                          s.memtable.getMovies(), s.memtableBase, skip, k, heap);
+        }
+        if ( !foundA || !foundB ) {
+            return null;
+        }
+        ArrayList<MovieSearchResult> top = new ArrayList<MovieSearchResult>(heap);
+        top.sort(MovieSearchResult.WORST_FIRST.reversed());
+        return top;
+    }
+
+    /*
+     * @return topKSearch(wordA, wordB, 10)
+     */
+    public ArrayList<MovieSearchResult> topTenSearch (String wordA, String wordB) {
+        return topKSearch(wordA, wordB, 10);
+    }
+
+    /*
+     * @return the number of segment files
+     */
+    public int getSegmentCount () {
+        return state.segments.length;
+    }
+
+    /*
+     * @return the number of movies inserted, including deleted ones
+     */
+    public int getMovieCount () {
+        State s = state;
+        return s.memtableBase + s.memtable.getMovies().size();
+    }
+}
@@ -0,0 +1,466 @@
+package searchengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+/*
+ * A sorted dictionary of the words of a search engine, used to expand partial or
+ * misspelled query words into the words that are actually indexed:
+ *
+ *      prefix     "trag"     -> every word starting with "trag"
+ *      wildcard   "tr?g*c"   -> every word matching the pattern, where '?' matches one
+ *                               character and '*' any number of characters
+ *      fuzzy      "tragc", 1 -> every word within Levenshtein distance 1
+ *
+ * The words are kept in a sorted array, so the words sharing a prefix form a
+ * contiguous range: prefix expansion is a binary search for the range. Wildcards are
+ * matched against the range of the pattern's literal prefix, or, when the pattern
+ * starts with a wildcard, against the range of its literal suffix in a second array of
+ * the reversed words.
+ *
+ * Fuzzy matching walks a trie of the words depth first, carrying one row of the
+ * Levenshtein distance matrix per level, and leaves a branch as soon as every entry of
+ * the row exceeds the allowed distance. Near the root almost every short prefix is
+ * within two edits of the query, so the walk is split in two (the forward-backward
+ * method): cutting the query in two parts, a word within k edits of it has a prefix
+ * within k / 2 edits of the first part, or a suffix within k - k / 2 - 1 edits of the
+ * second part. One walk of the trie of the words only enters branches that can still
+ * satisfy the first condition, one walk of the trie of the reversed words the second,
+ * and for k = 1 both parts must match exactly, which leaves a handful of branches.
+ *
+ * The tries are stored breadth first in a long array: the children of a node are
+ * consecutive, so a node is only a character, the index of its first child and a bit
+ * telling whether a word ends there, packed into one long. Scanning the children of a
+ * node reads one run of memory, which also holds everything needed to visit them.
+ *
+ * A TermDictionary is immutable. add() makes a new one with more words, sharing the
+ * arrays and tries of the old one: the added words are kept aside in a sorted array
+ * of recent words, scanned by every expansion, and everything is rebuilt only once the
+ * recent words outgrow a RECENT_FRACTION of the others. A search engine under a steady
+ * load of new words thus rebuilds its dictionary after a fixed fraction of new words
+ * rather than on every expansion, and the expansions see every word meanwhile.
+ *
+ */
+public class TermDictionary {
+
+    public static final int MAX_EDITS = 2;
+
+    private static final int RECENT_FRACTION = 16;   // recent words allowed per word of terms
+    private static final int MIN_RECENT      = 1024; // recent words allowed in any dictionary
+
+    private final String[] terms;    // sorted words
+    private final String[] reversed; // each word reversed, sorted
+    private final Trie     forward;  // trie of terms
+    private final Trie     backward; // trie of reversed
+    private final String[] recent;   // words added since terms was built, sorted
+
+    /*
+     * @param words the words, with no duplicates
+     */
+    public TermDictionary (Collection<String> words) {
+        terms    = words.toArray(new String[0]);
+        reversed = new String[terms.length];
+        Arrays.sort(terms);
+        for ( int i = 0; i < terms.length; i++ ) {
+            reversed[i] = new StringBuilder(terms[i]).reverse().toString();
+        }
+        Arrays.sort(reversed);
+        forward  = new Trie(terms);
+        backward = new Trie(reversed);
+        recent   = new String[0];
+    }
+
+    private TermDictionary (TermDictionary base, String[] recent) {
+        this.terms    = base.terms;
+        this.reversed = base.reversed;
+        this.forward  = base.forward;
+        this.backward = base.backward;
+        this.recent   = recent;
+    }
+
+    /*
+     * @param words words that are not in the dictionary, with no duplicates
+     * @return a dictionary of the words of this one and @words
+     */
+    public TermDictionary add (Collection<String> words) {
+        if ( words.isEmpty() ) {
+            return this;
+        }
+        String[] added = words.toArray(new String[0]);
+        Arrays.sort(added);
+        String[] merged = merge(recent, added);
+        if ( merged.length <= Math.max(MIN_RECENT, terms.length / RECENT_FRACTION) ) {
+            return new TermDictionary(this, merged);
+        }
+        return new TermDictionary(Arrays.asList(merge(terms, merged)));
+    }
+
+    /*
+     * @return the words of the sorted arrays @a and @b, which have none in common, sorted
+     */
+    private static String[] merge (String[] a, String[] b) {
+        String[] merged = new String[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while ( i < a.length && j < b.length ) {
+            merged[k++] = a[i].compareTo(b[j]) < 0 ? a[i++] : b[j++];
+        }
+        System.arraycopy(a, i, merged, k, a.length - i);
+        System.arraycopy(b, j, merged, k + a.length - i, b.length - j);
+        return merged;
+    }
+
+    /*
+     * @return the number of words
+     */
+    public int size () {
+        return terms.length + recent.length;
+    }
+
+    /*
+     * @return true if @word is in the dictionary
+     */
+    public boolean contains (String word) {
+        return Arrays.binarySearch(terms, word) >= 0 || Arrays.binarySearch(recent, word) >= 0;
+    }
+
+    /*
+     * @param prefix the beginning of the words
+     * @return the words starting with @prefix, sorted
+     */
+    public ArrayList<String> prefix (String prefix) {
+        int from = lowerBound(terms, prefix);
+        int to   = prefixEnd(terms, from, prefix);
+        int recentFrom = lowerBound(recent, prefix);
+        int recentTo   = prefixEnd(recent, recentFrom, prefix);
+        if ( recentFrom == recentTo ) {
+            return new ArrayList<String>(Arrays.asList(terms).subList(from, to));
+        }
+        return new ArrayList<String>(Arrays.asList(merge(Arrays.copyOfRange(terms, from, to),
+                                                         Arrays.copyOfRange(recent, recentFrom, recentTo))));
+    }
+
+    /*
+     * @param pattern a word where '?' matches any one character and '*' matches any
+     * number of characters, including none
+     * @return the matching words, sorted
+     */
+    public ArrayList<String> wildcard (String pattern) {
+        int first = indexOfWildcard(pattern);
+        if ( first == -1 ) {
+            ArrayList<String> exact = new ArrayList<String>();
+            if ( contains(pattern) ) {
+                exact.add(pattern);
+            }
+            return exact;
+        }
+        int last = first;
+        for ( int i = first; i < pattern.length(); i++ ) {
+            if ( isWildcard(pattern.charAt(i)) ) {
+                last = i;
+            }
+        }
+        String head = pattern.substring(0, first);
+        String tail = new StringBuilder(pattern.substring(last + 1)).reverse().toString();
+
+        ArrayList<String> matches = new ArrayList<String>();
+        if ( head.length() >= tail.length() ) {
+            int from = lowerBound(terms, head);
+            int to   = prefixEnd(terms, from, head);
+            for ( int i = from; i < to; i++ ) {
+                if ( matches(pattern, terms[i]) ) {
+                    matches.add(terms[i]);
+                }
+            }
+        } else {
+            int from = lowerBound(reversed, tail);
+            int to   = prefixEnd(reversed, from, tail);
+            for ( int i = from; i < to; i++ ) {
+                String word = new StringBuilder(reversed[i]).reverse().toString();
+                if ( matches(pattern, word) ) {
+                    matches.add(word);
+                }
+            }
+        }
+        int from = lowerBound(recent, head);
+        int to   = prefixEnd(recent, from, head);
+        for ( int i = from; i < to; i++ ) {
+            if ( matches(pattern, recent[i]) ) {
+                matches.add(recent[i]);
+            }
+        }
+        matches.sort(null);
+        return matches;
+    }
+
+    /*
+     * @param word the misspelled word
+     * @param maxEdits the largest number of single character insertions, deletions or
+     * substitutions, 0 to MAX_EDITS
+     * @return the words within @maxEdits edits of @word, sorted
+     */
+    public ArrayList<String> fuzzy (String word, int maxEdits) {
+        if ( maxEdits < 0 || maxEdits > MAX_EDITS ) {
+            throw new IllegalArgumentException("edit distance must be between 0 and " + MAX_EDITS);
+        }
+        HashSet<String> matches = new HashSet<String>();
+        int prefixEdits = maxEdits / 2, suffixEdits = maxEdits - prefixEdits - 1;
+        // any split works; the walk allowed more edits on its part gets the longer part,
+        // which it has more trouble coming close to, so it prunes sooner
+        int split = prefixEdits > suffixEdits ? word.length() * 2 / 3 : word.length() / 2;
+        forward.walk(word, maxEdits, split, prefixEdits, false, matches);
+        if ( suffixEdits >= 0 ) {
+            String backwards = new StringBuilder(word).reverse().toString();
+            backward.walk(backwards, maxEdits, word.length() - split, suffixEdits, true, matches);
+        }
+        for ( String w : recent ) {
+            if ( withinEdits(word, w, maxEdits) ) {
+                matches.add(w);
+            }
+        }
+        ArrayList<String> sorted = new ArrayList<String>(matches);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /*
+     * A trie, stored breadth first. Node 0 is the root; the children of node i are the
+     * nodes (nodes[i] >>> 32) to (nodes[i + 1] >>> 32) - 1, in character order.
+     */
+    private static class Trie {
+        private static final long TERMINAL = 1L << 16;
+
+        private final long[] nodes; // first child << 32 | TERMINAL if a word ends here | character
+        private final int    maxLength;
+
+        /*
+         * Builds the trie of @words. Each node covers the range of words starting with
+         * its prefix; its children are the runs of that range with the same next
+         * character.
+         *
+         * @param words sorted words, with no duplicates
+         */
+        Trie (String[] words) {
+            int    capacity = Math.max(16, words.length);
+            long[] packed   = new long[capacity + 1];
+            int[]  los      = new int[capacity];
+            int[]  his      = new int[capacity];
+            int[]  depths   = new int[capacity];
+            int    count    = 1;
+            int    longest  = 0;
+            his[0] = words.length;
+            for ( int node = 0; node < count; node++ ) {
+                int lo = los[node], hi = his[node], depth = depths[node];
+                if ( lo < hi && words[lo].length() == depth ) {
+                    packed[node] |= TERMINAL;
+                    longest = depth;
+                    lo++;
+                }
+                packed[node] |= (long) count << 32;
+                while ( lo < hi ) {
+                    char c   = words[lo].charAt(depth);
+                    int  end = runEnd(words, lo, hi, depth, c);
+                    if ( count == capacity ) {
+                        capacity *= 2;
+                        packed = Arrays.copyOf(packed, capacity + 1);
+                        los    = Arrays.copyOf(los, capacity);
+                        his    = Arrays.copyOf(his, capacity);
+                        depths = Arrays.copyOf(depths, capacity);
+                    }
+                    packed[count] = c;
+                    los[count]    = lo;
+                    his[count]    = end;
+                    depths[count] = depth + 1;
+                    count++;
+                    lo = end;
+                }
+            }
+            packed[count] = (long) count << 32; // end of the last node's children
+            nodes     = Arrays.copyOf(packed, count + 1);
+            maxLength = longest; // breadth first, so the last word found is the longest
+        }
+
+        /*
+         * Finds the words within @maxEdits edits of @query, only entering branches
+         * whose prefix can still come within @gateEdits edits of the first @gate
+         * characters of @query.
+         *
+         * @param reverse true to add the matching words reversed
+         * @param matches where the matching words are added
+         */
+        void walk (String query, int maxEdits, int gate, int gateEdits, boolean reverse,
+                   HashSet<String> matches) {
+            int[][] rows = new int[maxLength + 2][query.length() + 1];
+            for ( int j = 0; j <= query.length(); j++ ) {
+                rows[0][j] = j;
+            }
+            walk(query, maxEdits, gate, gateEdits, gate <= gateEdits, 0, 0, rows,
+                 new char[maxLength + 1], reverse, matches);
+        }
+
+        /*
+         * Visits @node, at @depth; rows[@depth] holds the distances between the node's
+         * prefix, path[0..@depth), and each prefix of @query. @passed is true once a
+         * prefix on the way came within @gateEdits edits of the first @gate characters.
+         */
+        private void walk (String query, int maxEdits, int gate, int gateEdits, boolean passed,
+                           int node, int depth, int[][] rows, char[] path, boolean reverse,
+                           HashSet<String> matches) {
+            int n = query.length();
+            int[] row = rows[depth];
+            if ( (nodes[node] & TERMINAL) != 0 && Math.abs(n - depth) <= maxEdits
+                 && row[n] <= maxEdits ) {
+                String word = new String(path, 0, depth);
+                matches.add(reverse ? new StringBuilder(word).reverse().toString() : word);
+            }
+            // only the entries within maxEdits of the diagonal can be maxEdits or less:
+            // the others are left out, with maxEdits + 1 on both sides of the band
+            int[] next = rows[depth + 1];
+            int   d    = depth + 1;
+            int   lo   = Math.max(1, d - maxEdits);
+            int   hi   = Math.min(n, d + maxEdits);
+            int end = (int) (nodes[node + 1] >>> 32);
+            for ( int child = (int) (nodes[node] >>> 32); child < end; child++ ) {
+                char c = (char) nodes[child];
+                next[0] = d;
+                if ( lo > 1 ) {
+                    next[lo - 1] = maxEdits + 1;
+                }
+                int min = next[0], gateMin = next[0];
+                for ( int j = lo; j <= hi; j++ ) {
+                    int cost = query.charAt(j - 1) == c ? 0 : 1;
+                    next[j] = Math.min(Math.min(row[j] + 1, next[j - 1] + 1), row[j - 1] + cost);
+                    min = Math.min(min, next[j]);
+                    if ( j <= gate ) {
+                        gateMin = Math.min(gateMin, next[j]);
+                    }
+                }
+                if ( hi < n ) {
+                    next[hi + 1] = maxEdits + 1;
+                }
+                // entries past the gate column only come from entries up to it, so once
+                // they all exceed gateEdits no longer prefix can pass the gate
+                if ( min > maxEdits || (!passed && gateMin > gateEdits) ) {
+                    continue;
+                }
+                boolean through = gate == 0 || (gate >= lo && gate <= hi) ? next[gate] <= gateEdits : false;
+                path[depth] = c;
+                walk(query, maxEdits, gate, gateEdits, passed || through,
+                     child, depth + 1, rows, path, reverse, matches);
+            }
+        }
+    }
+
+    /*
+     * @return true if @a and @b are within @maxEdits insertions, deletions or
+     * substitutions of each other, from one row of the distance matrix at a time
+     */
+    private static boolean withinEdits (String a, String b, int maxEdits) {
+        if ( Math.abs(a.length() - b.length()) > maxEdits ) {
+            return false;
+        }
+        int[] row = new int[b.length() + 1], next = new int[b.length() + 1];
+        for ( int j = 0; j <= b.length(); j++ ) {
+            row[j] = j;
+        }
+        for ( int i = 1; i <= a.length(); i++ ) {
+            next[0] = i;
+            int best = i;
+            for ( int j = 1; j <= b.length(); j++ ) {
+                int substitute = row[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                next[j] = Math.min(substitute, Math.min(row[j], next[j - 1]) + 1);
+                best = Math.min(best, next[j]);
+            }
+            if ( best > maxEdits ) {
+                return false;
+            }
+            int[] t = row;
+            row  = next;
+            next = t;
+        }
+        return row[b.length()] <= maxEdits;
+    }
+
+    /*
+     * @return the end of the run of @words[@lo..@hi) whose character at @depth is @c;
+     * every word of the range is longer than @depth and @words[@lo] has @c at @depth
+     */
+    private static int runEnd (String[] words, int lo, int hi, int depth, char c) {
+        int low = lo + 1, high = hi;
+        while ( low < high ) {
+            int mid = (low + high) >>> 1;
+            if ( words[mid].charAt(depth) <= c ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * @return the index of the first word of @words not smaller than @key
+     */
+    private static int lowerBound (String[] words, String key) {
+        int i = Arrays.binarySearch(words, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /*
+     * @return the end of the range of @words, starting at @from, that start with @prefix
+     */
+    private static int prefixEnd (String[] words, int from, String prefix) {
+        int first = from, last = words.length;
+        while ( first < last ) {
+            int mid = (first + last) >>> 1;
+            if ( words[mid].startsWith(prefix) ) {
+                first = mid + 1;
+            } else {
+                last = mid;
+            }
+        }
+        return first;
+    }
+
+    private static boolean isWildcard (char c) {
+        return c == '*' || c == '?';
+    }
+
+    /*
+     * @return the index of the first '*' or '?' of @pattern, -1 if there is none
+     */
+    static int indexOfWildcard (String pattern) {
+        for ( int i = 0; i < pattern.length(); i++ ) {
+            if ( isWildcard(pattern.charAt(i)) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Matches @word against @pattern, going back to the last '*' on a mismatch.
+     */
+    private static boolean matches (String pattern, String word) {
+        int p = 0, w = 0, star = -1, starWord = 0;
+        while ( w < word.length() ) {
+            if ( p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == word.charAt(w)) ) {
+                p++;
+                w++;
+            } else if ( p < pattern.length() && pattern.charAt(p) == '*' ) {
+                star     = p++;
+                starWord = w;
+            } else if ( star != -1 ) {
+                p = star + 1;
+                w = ++starWord;
+            } else {
+                return false;
+            }
+        }
+        while ( p < pattern.length() && pattern.charAt(p) == '*' ) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
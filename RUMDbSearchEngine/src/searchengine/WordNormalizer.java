@@ -0,0 +1,107 @@
+package searchengine;
+
+import java.util.HashSet;
+
+/*
+ * This class turns description words into the form stored in the hash table and
+ * filters out noise words.
+ *
+ * A word is kept if, after removing trailing punctuation ('.', ',', '?', ':', ';' and
+ * '!'), it consists only of letters and digits and is not a noise word. Kept words
+ * are lower case. Noise words are held in a HashSet, so checking a word is O(1).
+ *
+ * The checks are done on the characters of the word in place: a word that is already
+ * lower case and has no trailing punctuation is returned as is, and no other string
+ * is created for it. hash() gives the case-insensitive hash code used to place words
+ * in the hash table, also without creating a lower case copy.
+ *
+ */
+public class WordNormalizer {
+
+    private final HashSet<String> noiseWords; // noise words, lower case
+
+    public WordNormalizer () {
+        noiseWords = new HashSet<String>();
+    }
+
+    /*
+     * Creates a normalizer with the noise words of @noiseWordsFile, one or more words
+     * per line separated by whitespace.
+     *
+     * @param noiseWordsFile contains words that will not be inserted into the hash table.
+     */
+    public static WordNormalizer fromFile (String noiseWordsFile) {
+        WordNormalizer normalizer = new WordNormalizer();
+        StdIn.setFile(noiseWordsFile);
+        while ( !StdIn.isEmpty() ) {
+            normalizer.addNoiseWord(StdIn.readString());
+        }
+        return normalizer;
+    }
+
+    /*
+     * Adds a noise word.
+     * @param word a word that should never be inserted in the hash table
+     */
+    public void addNoiseWord (String word) {
+        noiseWords.add(word.toLowerCase());
+    }
+
+    /*
+     * @return true if @word (lower case) is a noise word
+     */
+    public boolean isNoiseWord (String word) {
+        return noiseWords.contains(word);
+    }
+
+    /*
+     * Normalizes a description word.
+     *
+     * @param word candidate word
+     * @return the word without trailing punctuation in lower case, or null if it is
+     * not a word or is a noise word
+     */
+    public String normalize (String word) {
+        int end = word.length();
+        while ( end > 0 && isPunctuation(word.charAt(end - 1)) ) {
+            end--;
+        }
+        if ( end == 0 ) {
+            return null; // empty, or the entire word is punctuation
+        }
+        boolean lowerCase = true;
+        for ( int i = 0; i < end; i++ ) {
+            char ch = word.charAt(i);
+            if ( !Character.isLetterOrDigit(ch) ) {
+                return null;
+            }
+            lowerCase &= Character.toLowerCase(ch) == ch;
+        }
+        if ( end < word.length() ) {
+            word = word.substring(0, end);
+        }
+        if ( !lowerCase ) {
+            word = word.toLowerCase();
+        }
+        return noiseWords.contains(word) ? null : word;
+    }
+
+    private static boolean isPunctuation (char ch) {
+        return ch == '.' || ch == ',' || ch == '?' || ch == ':' || ch == ';' || ch == '!';
+    }
+
+    /*
+     * Computes the hash code of @word in lower case, which is the same as
+     * word.toLowerCase().hashCode() for words the normalizer keeps.
+     *
+     * @param word the word
+     * @return the case-insensitive hash code
+     */
+    public static int hash (String word) {
+        int h = 0;
+        for ( int i = 0; i < word.length(); i++ ) {
+            h = 31 * h + Character.toLowerCase(word.charAt(i));
+        }
+        return h;
+    }
+}
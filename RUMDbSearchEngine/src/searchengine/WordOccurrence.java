@@ -6,18 +6,40 @@ import java.util.ArrayList;
  *
  * This class represents the occurrences of a word in every movie description it appears.
  * 
+ * The occurrences are kept in a compressed PostingList that refers to movies by id;
+ * the MovieDictionary translates ids back into titles.
+ * 
  * @author Haolin (Daniel) Jin
  */ 
 
 public class WordOccurrence {
 
-	private String word;                   // the word
-	private ArrayList<Location> locations; // all locations where the word occurs
-	public WordOccurrence next;
+	private final String word;             // the word
+	private final PostingList postings;    // all locations where the word occurs
+	private final MovieDictionary movies;  // movie ids used by postings
+	public volatile WordOccurrence next;   // volatile so concurrent readers see a complete chain
 
 	public WordOccurrence ( String word ) {
+		this(word, new PostingList(), new MovieDictionary());
+	}
+
+	/*
+	 * Creates a WordOccurrence whose movie ids are shared with other words.
+	 * @movies the dictionary that assigns movie ids
+	 */
+	WordOccurrence ( String word, MovieDictionary movies ) {
+		this(word, new PostingList(), movies);
+	}
+
+	/*
+	 * Creates a WordOccurrence over existing postings.
+	 * @postings the word's postings
+	 * @movies the dictionary the postings' movie ids refer to
+	 */
+	WordOccurrence ( String word, PostingList postings, MovieDictionary movies ) {
 		this.word = word;
-		locations = new ArrayList<Location>();
+		this.postings = postings;
+		this.movies = movies;
 		next = null;
 	}
 
@@ -31,19 +53,35 @@ public class WordOccurrence {
 
 	/*
 	 * Returns all location where word occurs.
+	 * 
+	 * The locations are decoded from the postings on every call, changes to the
+	 * returned list are not reflected in this object.
 	 * @return array containing word's locations.
 	 */
 	public ArrayList<Location> getLocations (){
+		ArrayList<Location> locations = new ArrayList<Location>(postings.size());
+		PostingList.Cursor c = postings.cursor();
+		while ( c.next() ) {
+			locations.add(new Location(movies.getTitle(c.movieId()), c.position()));
+		}
 		return locations;
 	}
 
+	/*
+	 * Returns the compressed postings of @word.
+	 * @return the word's PostingList
+	 */
+	PostingList getPostings (){
+		return postings;
+	}
+
 	/*
 	 * Inserts a new occurrence of @word.
 	 * @title the movie's title where @word is located.
 	 * @position word's position in the movie's description.
 	 */ 
 	public void addOccurrence(String title, int position){
-		locations.add(new Location(title, position));
+		postings.add(movies.resolve(title), position);
 	}
 	
 	/*
@@ -51,7 +89,16 @@ public class WordOccurrence {
 	 * @location where @word occurs
 	 */
 	public void addOccurrence(Location location){
-		locations.add(location);
+		addOccurrence(location.getTitle(), location.getPosition());
+	}
+
+	/*
+	 * Inserts a new occurrence of @word in movie @movieId
+	 * @movieId id of the movie in this word's MovieDictionary
+	 * @position word's position in the movie's description.
+	 */
+	void addOccurrence(int movieId, int position){
+		postings.add(movieId, position);
 	}
 
 	/*
@@ -69,8 +116,11 @@ public class WordOccurrence {
 		if ( !word.equals(o.getWord()) ) 
 			return false;
 
-		for ( int i = 0; i < locations.size(); i++ ) {
-			if ( !locations.get(i).equals(o.getLocations().get(i)) ) {
+		PostingList.Cursor mine   = postings.cursor();
+		PostingList.Cursor theirs = o.postings.cursor();
+		while ( mine.next() ) {
+			if ( !theirs.next() || mine.position() != theirs.position()
+					|| !movies.getTitle(mine.movieId()).equals(o.movies.getTitle(theirs.movieId())) ) {
 				return false;
 			}
 		}
@@ -83,15 +133,15 @@ public class WordOccurrence {
 	 */
 	public String toString() {
 
-		String ret = "[" + word + ":";
+		StringBuilder ret = new StringBuilder("[").append(word).append(":");
 
-		for ( int i = 0; i < locations.size(); i++ ) {
-			Location loc = locations.get(i);
-			ret += loc.toString();
-			if ( i < locations.size()-1 ) ret += ",";
+		PostingList.Cursor c = postings.cursor();
+		for ( int i = 0; c.next(); i++ ) {
+			if ( i > 0 ) ret.append(",");
+			ret.append(movies.getTitle(c.movieId())).append("(").append(c.position()).append(")");
 		}
 
-		ret += "]";
-		return ret;
+		ret.append("]");
+		return ret.toString();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package searchengine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Synthetic movie descriptions whose word frequencies follow Zipf's law, as words do
+ * in natural language: the word of rank r (1 being the most frequent) is drawn with
+ * probability proportional to 1 / r^exponent. With an exponent of 1 the most frequent
+ * word makes up about 8% of a 100000 word vocabulary's occurrences and half of the
+ * words occur only a handful of times, so posting list lengths, chain lengths and
+ * search costs are as skewed as with real descriptions.
+ *
+ * The words are Benchmark.syntheticWords ("ax", "bx", ...), the word of rank r being
+ * the r-th one.
+ *
+ */
+class ZipfCorpus {
+
+    private final String[] words;
+    private final double[] cumulative; // cumulative[i]: total weight of ranks 1 to i + 1
+
+    /*
+     * @param vocabulary number of distinct words
+     * @param exponent Zipf exponent, 1 for natural language
+     */
+    ZipfCorpus (int vocabulary, double exponent) {
+        words      = Benchmark.syntheticWords(vocabulary);
+        cumulative = new double[vocabulary];
+        double sum = 0;
+        for ( int i = 0; i < vocabulary; i++ ) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+    }
+
+    /*
+     * @return the number of distinct words
+     */
+    int size () {
+        return words.length;
+    }
+
+    /*
+     * @param rank 1 for the most frequent word
+     * @return the word of rank @rank
+     */
+    String word (int rank) {
+        return words[rank - 1];
+    }
+
+    /*
+     * @return a word drawn with @random according to the Zipf distribution
+     */
+    String next (Random random) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+        return words[i < 0 ? -i - 1 : i];
+    }
+
+    /*
+     * Inserts @movies movies named "movie0", "movie1", ... of @wordsPerMovie words each
+     * into @engine. The same @seed always gives the same movies.
+     */
+    void index (RUMDbSearchEngine engine, int movies, int wordsPerMovie, long seed) {
+        Random random = new Random(seed);
+        for ( int m = 0; m < movies; m++ ) {
+            String title = "movie" + m;
+            for ( int p = 1; p <= wordsPerMovie; p++ ) {
+                engine.insertWordLocation(next(random), new Location(title, p));
+            }
+        }
+    }
+}